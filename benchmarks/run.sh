@@ -0,0 +1,19 @@
+#!/bin/bash
+#
+# Builds jarinstaller and the benchmarks and runs them, writing the results to
+# benchmarks/results/<commit>.json. Extra arguments are passed on to JMH, like a
+# benchmark name pattern or -p sizeMb=10.
+
+set -e
+
+cd "$(dirname "$0")/.."
+mvn -B -q install -DskipTests -Dgpg.skip -Dmaven.javadoc.skip=true
+mvn -B -q -f benchmarks/pom.xml package
+
+commit=$(git rev-parse --short HEAD)
+if [ -n "$(git status --porcelain -- src pom.xml)" ]; then
+    commit="$commit-dirty"
+fi
+
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$commit.json" "$@"
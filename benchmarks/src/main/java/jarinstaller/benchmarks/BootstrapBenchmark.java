@@ -0,0 +1,177 @@
+package jarinstaller.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jarinstaller.cmdline.classpath.DependencyLoader;
+import jarinstaller.cmdline.classpath.Handler;
+import jarinstaller.cmdline.classpath.NestedJarClassLoader;
+import jarinstaller.impl.DependencyCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listing the nested dependency jars and loading one class from each of them, with
+ * the class loaders DependencyLoader can use: classpath: URLs through Handler,
+ * NestedJarClassLoader on the jar, file: URLs to the extracted cache and
+ * NestedJarClassLoader on the cache with its package index. The few* benchmarks load
+ * classes from a tenth of the dependencies, like a run that touches little of a fat jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BootstrapBenchmark {
+
+    private static final String DEPENDENCIES = "dependencies/";
+
+    @Param({ "100", "300" })
+    public int dependencies;
+
+    @Param({ "20" })
+    public int classesPerDependency;
+
+    private Path home;
+    private Path jarPath;
+    private URLClassLoader outerClassLoader;
+    private URLClassLoader indexedClassLoader;
+    private Method getResourceListing;
+    private Method getDependencyListing;
+    private URL[] classpathURLs;
+    private URL[] cacheURLs;
+    private Path cachePath;
+
+    @Setup
+    public void setup() throws Exception {
+        home = Fixtures.useTempHome();
+        jarPath = Fixtures.jar(home.resolve("app-1.0.jar"), 0, dependencies, classesPerDependency);
+
+        outerClassLoader = new URLClassLoader(new URL[] { jarPath.toUri().toURL() }, null);
+        Handler.setup(outerClassLoader);
+
+        getResourceListing = DependencyLoader.class.getDeclaredMethod("getResourceListing", ClassLoader.class, String.class);
+        getResourceListing.setAccessible(true);
+
+        Path indexedJarPath = Fixtures.jar(home.resolve("indexed-1.0.jar"), 0, dependencies, classesPerDependency, true);
+        indexedClassLoader = new URLClassLoader(new URL[] { indexedJarPath.toUri().toURL() }, null);
+        getDependencyListing = DependencyLoader.class.getDeclaredMethod("getDependencyListing", ClassLoader.class, String.class);
+        getDependencyListing.setAccessible(true);
+        // Called once like getResourceListing below, so single shot runs compare the same
+        getDependencyListing();
+
+        List<URL> urls = new ArrayList<>();
+        for (String dependency : resourceListing()) {
+            if (dependency.endsWith(".jar")) {
+                urls.add(new URL("classpath:" + DEPENDENCIES + dependency));
+            }
+        }
+        urls.add(jarPath.toUri().toURL());
+        classpathURLs = urls.toArray(new URL[0]);
+
+        urls.clear();
+        cachePath = DependencyCache.extract(jarPath, "benchmark");
+        try (DirectoryStream<Path> jars = Files.newDirectoryStream(cachePath, "*.jar")) {
+            for (Path jar : jars) {
+                urls.add(jar.toUri().toURL());
+            }
+        }
+        urls.add(jarPath.toUri().toURL());
+        cacheURLs = urls.toArray(new URL[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        outerClassLoader.close();
+        indexedClassLoader.close();
+        Fixtures.delete(home);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> resourceListing() throws Exception {
+        return (List<String>) getResourceListing.invoke(null, outerClassLoader, DEPENDENCIES);
+    }
+
+    private void loadOneClassFromEach(ClassLoader classLoader, Blackhole blackhole) throws ClassNotFoundException {
+        loadOneClassFromEvery(1, classLoader, blackhole);
+    }
+
+    private void loadOneClassFromEvery(int step, ClassLoader classLoader, Blackhole blackhole) throws ClassNotFoundException {
+        for (int i = 0; i < dependencies; i += step) {
+            blackhole.consume(classLoader.loadClass(Fixtures.className(i, classesPerDependency - 1)));
+        }
+    }
+
+    @Benchmark
+    public List<String> getResourceListing() throws Exception {
+        return resourceListing();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<String> getDependencyListing() throws Exception {
+        return (List<String>) getDependencyListing.invoke(null, indexedClassLoader, DEPENDENCIES);
+    }
+
+    @Benchmark
+    public void classpathURLs(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(classpathURLs, null)) {
+            loadOneClassFromEach(classLoader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void nestedJarClassLoader(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new NestedJarClassLoader(jarPath, DEPENDENCIES, null)) {
+            loadOneClassFromEach(classLoader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void cacheURLs(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(cacheURLs, null)) {
+            loadOneClassFromEach(classLoader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void indexedCache(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new NestedJarClassLoader(jarPath, cachePath, null)) {
+            loadOneClassFromEach(classLoader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void fewCacheURLs(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(cacheURLs, null)) {
+            loadOneClassFromEvery(10, classLoader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void fewIndexedCache(Blackhole blackhole) throws Exception {
+        try (URLClassLoader classLoader = new NestedJarClassLoader(jarPath, cachePath, null)) {
+            loadOneClassFromEvery(10, classLoader, blackhole);
+        }
+    }
+}
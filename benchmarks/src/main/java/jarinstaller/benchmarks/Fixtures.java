@@ -0,0 +1,204 @@
+package jarinstaller.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import jarinstaller.cmdline.classpath.DependencyLoader;
+
+/**
+ * Synthetic jars and home directories for the benchmarks.
+ *
+ * Everything is generated from a fixed seed so runs on different commits measure the
+ * same input.
+ */
+public class Fixtures {
+
+    public static final String MAIN_CLASS = "bench.Main";
+
+    private static final long SEED = 42;
+
+    public static final PrintStream NULL_PRINT_STREAM = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    /**
+     * Creates a temp directory and makes it the user.home of the benchmark fork.
+     */
+    public static Path useTempHome() throws IOException {
+        Path home = Files.createTempDirectory("jarinstaller-bench");
+        System.setProperty("user.home", home.toString());
+        Files.createDirectories(home.resolve(".jars/jars"));
+        Files.createDirectories(home.resolve(".jars/bin"));
+        return home;
+    }
+
+    /**
+     * Writes a jar with a Main-Class, fillerBytes of incompressible content and
+     * dependencyCount nested jars in dependencies/ with classesPerDependency classes each.
+     */
+    public static Path jar(Path path, long fillerBytes, int dependencyCount, int classesPerDependency) throws IOException {
+        return jar(path, fillerBytes, dependencyCount, classesPerDependency, false);
+    }
+
+    /**
+     * Like {@link #jar(Path, long, int, int)}, with the dependencies index the build writes
+     * when withIndex is true.
+     */
+    public static Path jar(Path path, long fillerBytes, int dependencyCount, int classesPerDependency, boolean withIndex) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS);
+
+        Random random = new Random(SEED);
+        try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(path), manifest)) {
+            byte[] buffer = new byte[1 << 20];
+            int part = 0;
+            for (long remaining = fillerBytes; remaining > 0; part++) {
+                output.putNextEntry(new JarEntry("filler/" + part + ".bin"));
+                for (long partRemaining = Math.min(remaining, 64L << 20); partRemaining > 0; ) {
+                    random.nextBytes(buffer);
+                    int length = (int) Math.min(buffer.length, partRemaining);
+                    output.write(buffer, 0, length);
+                    partRemaining -= length;
+                    remaining -= length;
+                }
+                output.closeEntry();
+            }
+
+            if (dependencyCount > 0) {
+                output.putNextEntry(new JarEntry("dependencies/"));
+                output.closeEntry();
+            }
+            StringBuilder index = new StringBuilder();
+            for (int i = 0; i < dependencyCount; i++) {
+                storedEntry(output, "dependencies/dependency-" + i + "-1.0.jar", dependency(i, classesPerDependency));
+                index.append("dependencies/dependency-" + i + "-1.0.jar\n");
+            }
+
+            if (withIndex) {
+                output.putNextEntry(new JarEntry(DependencyLoader.DEPENDENCIES_INDEX));
+                output.write(index.toString().getBytes(StandardCharsets.UTF_8));
+                output.closeEntry();
+            }
+        }
+
+        return path;
+    }
+
+    /**
+     * Returns a jar with the classes dep&lt;index&gt;.C0 to C&lt;count - 1&gt;.
+     */
+    public static byte[] dependency(int index, int classCount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream output = new JarOutputStream(bytes)) {
+            for (int i = 0; i < classCount; i++) {
+                output.putNextEntry(new JarEntry(className(index, i).replace('.', '/') + ".class"));
+                output.write(emptyClass(className(index, i)));
+                output.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static String className(int dependency, int index) {
+        return "dep" + dependency + ".C" + index;
+    }
+
+    /**
+     * Writes bin/ scripts and empty jars for count synthetic tools.
+     */
+    public static void scripts(Path home, int count) throws IOException {
+        Path jars = home.resolve(".jars/jars");
+        Path bin = home.resolve(".jars/bin");
+        for (int i = 0; i < count; i++) {
+            Path jarPath = jars.resolve("tool" + i + "-1." + i + ".jar");
+            Files.write(jarPath, new byte[0]);
+            Files.write(bin.resolve("tool" + i), ("#!/bin/bash\n" +
+                    "\n" +
+                    "export JARINSTALLER_PATH=~/.jars/\n" +
+                    "export JARINSTALLER_JAR_PATH=" + jarPath + "\n" +
+                    "export JARINSTALLER_SCRIPT_PATH=" + bin.resolve("tool" + i) + "\n" +
+                    "\n" +
+                    "java -jar $JARINSTALLER_JAR_PATH \"$@\"\n").getBytes("UTF-8"));
+        }
+    }
+
+    public static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void storedEntry(JarOutputStream output, String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        JarEntry entry = new JarEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc.getValue());
+
+        output.putNextEntry(entry);
+        output.write(content);
+        output.closeEntry();
+    }
+
+    /**
+     * A class file for "public class name" without members.
+     */
+    private static byte[] emptyClass(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(0xCAFEBABE);
+        output.writeShort(0);
+        output.writeShort(52);
+
+        output.writeShort(5);
+        output.writeByte(1);
+        output.writeUTF(name.replace('.', '/'));
+        output.writeByte(7);
+        output.writeShort(1);
+        output.writeByte(1);
+        output.writeUTF("java/lang/Object");
+        output.writeByte(7);
+        output.writeShort(3);
+
+        output.writeShort(0x0021);
+        output.writeShort(2);
+        output.writeShort(4);
+        output.writeShort(0);
+        output.writeShort(0);
+        output.writeShort(0);
+        output.writeShort(0);
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+}
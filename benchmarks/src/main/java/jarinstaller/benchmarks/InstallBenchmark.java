@@ -0,0 +1,84 @@
+package jarinstaller.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import jarinstaller.JarInstallerException;
+import jarinstaller.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Utils.install of a jar that is not installed, and of one that already is.
+ *
+ * Single shot, as an install of a 1 GB jar takes seconds. Copy throughput is the jar
+ * size divided by the score of fresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class InstallBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int sizeMb;
+
+    private Path home;
+    private Path jarPath;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        home = Fixtures.useTempHome();
+        jarPath = Fixtures.jar(home.resolve("large-1.0.jar"), sizeMb * (1L << 20), 0, 0);
+
+        // Install tells about $PATH on System.out
+        out = System.out;
+        System.setOut(Fixtures.NULL_PRINT_STREAM);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(out);
+        Fixtures.delete(home);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Installed {
+
+        @Setup(Level.Iteration)
+        public void install(InstallBenchmark benchmark) throws JarInstallerException {
+            Utils.install(benchmark.jarPath, Fixtures.NULL_PRINT_STREAM);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void unInstall() throws JarInstallerException {
+        Utils.unInstall(jarPath, Fixtures.NULL_PRINT_STREAM);
+    }
+
+    @Benchmark
+    public boolean fresh() throws JarInstallerException {
+        return Utils.install(jarPath, Fixtures.NULL_PRINT_STREAM);
+    }
+
+    @Benchmark
+    public boolean unchanged(Installed installed) throws JarInstallerException {
+        return Utils.install(jarPath, Fixtures.NULL_PRINT_STREAM);
+    }
+}
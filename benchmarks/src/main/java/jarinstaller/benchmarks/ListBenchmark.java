@@ -0,0 +1,90 @@
+package jarinstaller.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import jarinstaller.cmdline.Application;
+import jarinstaller.impl.Registry;
+import jarinstaller.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listing installed jars, reading every bin/ script versus the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListBenchmark {
+
+    @Param({ "10000" })
+    public int scripts;
+
+    private Path home;
+    private Method listJars;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws Exception {
+        home = Fixtures.useTempHome();
+        Fixtures.scripts(home, scripts);
+
+        // The first read builds the registry from bin/
+        Registry.entries().close();
+
+        listJars = Application.class.getDeclaredMethod("listJars", String.class, boolean.class);
+        listJars.setAccessible(true);
+
+        out = System.out;
+        System.setOut(Fixtures.NULL_PRINT_STREAM);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(out);
+        Fixtures.delete(home);
+    }
+
+    @Benchmark
+    public void getJarFileNameForEachScript(Blackhole blackhole) throws IOException {
+        for (File script : Utils.getBinDir().listFiles()) {
+            blackhole.consume(Utils.getJarFileNameFor(script.getName()));
+        }
+    }
+
+    @Benchmark
+    public long registryEntries() throws IOException {
+        try (Stream<Registry.Entry> entries = Registry.entries()) {
+            return entries.count();
+        }
+    }
+
+    @Benchmark
+    public void listJars() throws Exception {
+        listJars.invoke(null, null, false);
+    }
+
+    @Benchmark
+    public void listJarsJson() throws Exception {
+        listJars.invoke(null, "json", false);
+    }
+}
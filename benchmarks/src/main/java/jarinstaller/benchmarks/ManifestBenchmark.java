@@ -0,0 +1,57 @@
+package jarinstaller.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import jarinstaller.JarInstallerException;
+import jarinstaller.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Utils.hasMainClassInManifest on large jars with many entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ManifestBenchmark {
+
+    @Param({ "10", "100" })
+    public int sizeMb;
+
+    @Param({ "500" })
+    public int dependencies;
+
+    private Path home;
+    private Path jarPath;
+
+    @Setup
+    public void setup() throws IOException {
+        home = Fixtures.useTempHome();
+        jarPath = Fixtures.jar(home.resolve("large-1.0.jar"), sizeMb * (1L << 20), dependencies, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(home);
+    }
+
+    @Benchmark
+    public boolean hasMainClassInManifest() throws JarInstallerException {
+        return Utils.hasMainClassInManifest(jarPath);
+    }
+}
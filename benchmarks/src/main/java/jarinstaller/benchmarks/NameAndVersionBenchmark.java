@@ -0,0 +1,35 @@
+package jarinstaller.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import jarinstaller.impl.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Utils.getNameAndVersion for the three kinds of jar names it handles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NameAndVersionBenchmark {
+
+    @Param({ "/tmp/jarinstaller-0.3.0.jar", "/tmp/some-tool-SNAPSHOT.jar", "/tmp/tool.jar" })
+    public String path;
+
+    @Benchmark
+    public Utils.NameAndVersion getNameAndVersion() {
+        return Utils.getNameAndVersion(path);
+    }
+}
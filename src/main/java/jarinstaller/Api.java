@@ -1,5 +1,10 @@
 package jarinstaller;
 
+import jarinstaller.impl.InstallOptions;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
 import static jarinstaller.impl.Utils.getJarPathAtBottomOfStack;
 
 
@@ -26,7 +31,38 @@ public class Api {
     }
     
     /**
-     * Returns true if a jar with the same name and size can be found in ~/.jars/jars
+     * Installs the jars in parallel, a jar that fails does not stop the others.
+     *
+     * @param jarPaths the jars to install
+     * @return true on success
+     * @throws JarInstallerException if any of the jars could not be installed, with the
+     *         reason for each jar as a suppressed exception
+     */
+    public static boolean install(Collection<Path> jarPaths) throws JarInstallerException {
+        Map<Path, JarInstallerException> failures = jarinstaller.impl.Utils.install(jarPaths, System.out, new InstallOptions());
+        if (!failures.isEmpty()) {
+            JarInstallerException exception = new JarInstallerException("Failed to install " + failures.keySet());
+            failures.values().forEach(exception::addSuppressed);
+            throw exception;
+        }
+        return true;
+    }
+    
+    /**
+     * Installs the jar read from input as the command name, reading it only once.
+     *
+     * @param input the content of the jar, not closed
+     * @param name the name of the command, or null for the Implementation-Title of the
+     *        manifest of the jar
+     * @return true on success
+     * @throws JarInstallerException if input is not a runnable jar or it could not be installed
+     */
+    public static boolean install(InputStream input, String name) throws JarInstallerException {
+        return jarinstaller.impl.Utils.install(input, name, System.out, new InstallOptions());
+    }
+    
+    /**
+     * Returns true if a jar with the same name and content can be found in ~/.jars/jars
      *
      * @return true if a jar with the same name exists
      * @throws JarInstallerException if there is any exception
@@ -1,17 +1,32 @@
 package jarinstaller.cmdline;
 
 import jarinstaller.JarInstallerException;
-import jarinstaller.impl.Utils.NameAndVersion;
+import jarinstaller.impl.InstallOptions;
+import jarinstaller.impl.Journal;
+import jarinstaller.impl.Profiles;
+import jarinstaller.impl.Registry;
+import jarinstaller.impl.Verifier;
+import jarinstaller.impl.Versions;
 import static jarinstaller.impl.Utils.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
+import static java.util.Arrays.asList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
-import java.util.regex.Pattern;
-import static java.util.regex.Pattern.MULTILINE;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
@@ -27,6 +42,19 @@ public class Application {
         parser.accepts("version");
         parser.accepts("h");
         parser.accepts("install-self");
+        parser.accepts("format").withRequiredArg();
+        parser.accepts("check");
+        parser.accepts("cds");
+        parser.accepts("cds-training-args").withRequiredArg();
+        parser.accepts("daemon");
+        parser.accepts("profile").withRequiredArg();
+        parser.accepts("preload");
+        parser.accepts("slim");
+        parser.accepts("runtime");
+        parser.accepts("keep").withRequiredArg().ofType(Integer.class);
+        parser.accepts("name").withRequiredArg();
+        parser.accepts("link");
+        parser.accepts("require-signed");
 
         OptionSet optionSet;
 
@@ -62,6 +90,9 @@ public class Application {
             return;
         }
 
+        // Puts back the tools an earlier run was interrupted in the middle of changing
+        Journal.recover(System.out);
+
         if (nonOptions.get(0).equals("install")) {
             if (nonOptions.size() == 1) {
                 System.err.println(
@@ -73,7 +104,43 @@ public class Application {
                 return;
             }
 
-            install(new File(nonOptions.get(1)).toPath(), System.out);
+            InstallOptions installOptions = new InstallOptions();
+            installOptions.cds = optionSet.has("cds");
+            installOptions.daemon = optionSet.has("daemon");
+            installOptions.preload = optionSet.has("preload");
+            installOptions.slim = optionSet.has("slim");
+            installOptions.runtime = optionSet.has("runtime");
+            installOptions.link = optionSet.has("link");
+            installOptions.requireSigned = optionSet.has("require-signed");
+            if (optionSet.has("keep")) {
+                installOptions.keep = (Integer) optionSet.valueOf("keep");
+            }
+            if (optionSet.has("profile")) {
+                installOptions.profile = (String) optionSet.valueOf("profile");
+            }
+            if (optionSet.has("cds-training-args")) {
+                String trainingArgs = ((String) optionSet.valueOf("cds-training-args")).trim();
+                installOptions.cdsTrainingArgs = trainingArgs.isEmpty() ? new ArrayList<>() : new ArrayList<>(asList(trainingArgs.split("\\s+")));
+            }
+
+            List<String> jarArguments = nonOptions.subList(1, nonOptions.size());
+            if (jarArguments.size() == 1 && jarArguments.get(0).equals("-")) {
+                install(System.in, (String) optionSet.valueOf("name"), System.out, installOptions);
+                return;
+            }
+            if (jarArguments.size() == 1 && !jarArguments.get(0).startsWith("@") && !new File(jarArguments.get(0)).isDirectory()) {
+                install(new File(jarArguments.get(0)).toPath(), System.out, false, installOptions);
+                return;
+            }
+
+            List<Path> jarPaths = new ArrayList<>();
+            for (String jarArgument : jarArguments) {
+                addJarPaths(jarArgument, Paths.get(""), jarPaths);
+            }
+
+            if (!install(jarPaths, System.out, installOptions).isEmpty()) {
+                System.exit(1);
+            }
         } else if (nonOptions.get(0).equals("uninstall")) {
             if (nonOptions.size() == 1) {
                 System.err.println(
@@ -86,8 +153,63 @@ public class Application {
             }
 
             unInstall(new File(nonOptions.get(1)).toPath(), System.out);
+        } else if (nonOptions.get(0).equals("relink")) {
+            if (!relink(System.out).isEmpty()) {
+                System.exit(1);
+            }
+        } else if (nonOptions.get(0).equals("verify")) {
+            if (!Verifier.verify(System.out).isEmpty()) {
+                System.exit(1);
+            }
+        } else if (nonOptions.get(0).equals("unslim")) {
+            if (nonOptions.size() == 1) {
+                System.err.println(
+                        "Unslim action needs the name of an installed jar.\n" +
+                        "\n" +
+                        "Like this: jarinstaller unslim your-command\n"
+                );
+
+                return;
+            }
+
+            unslim(nonOptions.get(1), System.out);
+        } else if (nonOptions.get(0).equals("use")) {
+            if (nonOptions.size() == 1) {
+                System.err.println(
+                        "Use action needs the name of an installed jar.\n" +
+                        "\n" +
+                        "Like this: jarinstaller use your-command 1.0\n"
+                );
+
+                return;
+            }
+
+            if (nonOptions.size() == 2) {
+                printVersions(nonOptions.get(1));
+                return;
+            }
+
+            use(nonOptions.get(1), nonOptions.get(2), System.out);
+        } else if (nonOptions.get(0).equals("info")) {
+            if (nonOptions.size() == 1) {
+                System.err.println(
+                        "Info action needs the name of an installed jar.\n" +
+                        "\n" +
+                        "Like this: jarinstaller info your-command\n"
+                );
+
+                return;
+            }
+
+            printInfo(nonOptions.get(1));
         } else if (nonOptions.get(0).equals("list")) {
-            listJars();
+            String format = (String) optionSet.valueOf("format");
+            if (format != null && !format.equals("json") && !format.equals("tsv")) {
+                System.err.println("Unknown format \"" + format + "\", use json or tsv.\n");
+                return;
+            }
+
+            listJars(format, optionSet.has("check"));
         } else {
             System.out.println("\nERROR! unknown param, \"" + nonOptions.get(0) + "\"");
             printHelp();
@@ -98,39 +220,203 @@ public class Application {
         return String.format("%1$-" + n + "s", s);  
     }
     
-    private static void listJars() throws IOException {
-        System.out.println("\n\tInstalled jars\n");
-        
-        Pattern pattern = Pattern.compile("JARINSTALLER_JAR_PATH=(.*)$", MULTILINE);
-        
-        String[] fileNames = getBinDir().list();
-        int maxLength = 0;
-        for (String fileName : fileNames) {
-            maxLength = Math.max(maxLength, fileName.length());
-        }
-        
-        for (String fileName : fileNames) {
-            
-            String jarFileName = getJarFileNameFor(fileName);
-            
-            if (jarFileName != null) {
-                NameAndVersion nameAndVersion = getNameAndVersion(jarFileName);
-                
-                String missingJar = new File(getJarsDir().toPath().resolve(jarFileName).toString()).exists() ? "" : " (missing jar)";
-                String version = nameAndVersion.version.trim().length() == 0 ? "" : " (" + nameAndVersion.version + ")";
-                
-                System.out.println(padRight(fileName, maxLength) + " -> " + jarFileName + missingJar);
+    private static void listJars(String format, boolean check) throws IOException {
+        try (Stream<Registry.Entry> entries = Registry.entries()) {
+            Stream<Registry.Entry> stream = entries;
+            Set<String> missing = ConcurrentHashMap.newKeySet();
+            Set<String> broken = ConcurrentHashMap.newKeySet();
+
+            // The listing for people always marks missing jars, like it did before the registry
+            if (check || format == null) {
+                stream = stream.parallel().peek((entry) -> {
+                    if (!Files.exists(getJarsDir().toPath().resolve(entry.jar))) {
+                        missing.add(entry.name);
+                    }
+                });
+            }
+
+            // Linked jars go away with a clean build, so they are always looked at
+            stream = stream.peek((entry) -> {
+                String link = entry.attributes.get("link");
+                if (link != null && !link.equals("hard") && !Files.exists(Paths.get(link))) {
+                    broken.add(entry.name);
+                }
+            });
+
+            if ("json".equals(format)) {
+                System.out.println("[");
+                boolean[] first = { true };
+                stream.forEachOrdered((entry) -> {
+                    Map<String, Object> fields = Registry.toMap(entry);
+                    if (check) {
+                        fields.put("missing", missing.contains(entry.name));
+                    }
+                    if (entry.attributes.containsKey("link")) {
+                        fields.put("broken", broken.contains(entry.name));
+                    }
+                    System.out.println((first[0] ? "  " : ", ") + toJson(fields));
+                    first[0] = false;
+                });
+                System.out.println("]");
+            } else if ("tsv".equals(format)) {
+                System.out.println("name\tjar\tversion\tdigest\tsize\tinstalled" + (check ? "\tstatus" : ""));
+                stream.forEachOrdered((entry) -> {
+                    System.out.println(
+                            entry.name + "\t" + entry.jar + "\t" + entry.version + "\t" + entry.digest + "\t" + entry.size + "\t" + entry.installed +
+                            (check ? (broken.contains(entry.name) ? "\tbroken link" : missing.contains(entry.name) ? "\tmissing" : "\tok") : "")
+                    );
+                });
+            } else {
+                List<Registry.Entry> list = stream.collect(Collectors.toList());
+                int maxLength = 0;
+                for (Registry.Entry entry : list) {
+                    maxLength = Math.max(maxLength, entry.name.length());
+                }
+
+                System.out.println("\n\tInstalled jars\n");
+
+                for (Registry.Entry entry : list) {
+                    String note = missing.contains(entry.name) && !broken.contains(entry.name) ? " (missing jar)" : "";
+                    String link = entry.attributes.get("link");
+                    if (link != null && !link.equals("hard")) {
+                        note += broken.contains(entry.name) ? " (broken link to " + link + ")" : " (linked to " + link + ")";
+                    }
+                    System.out.println(padRight(entry.name, maxLength) + " -> " + entry.jar + note);
+                }
+
+                System.out.println("");
             }
         }
-        
+    }
+    
+    private static void printVersions(String name) throws IOException {
+        List<String> versions = Versions.list(name);
+        if (versions.isEmpty()) {
+            System.out.println("There are no versions of " + name + " in ~/.jars/tools/");
+            return;
+        }
+
+        String current = Versions.current(name).orElse("");
+        for (String version : versions) {
+            Registry.Entry entry = Versions.readEntry(Versions.getVersionDir(name, version));
+            System.out.println((version.equals(current) ? "* " : "  ") + padRight(version, 20) + " " + entry.installed);
+        }
+    }
+
+    private static void printInfo(String name) throws IOException {
+        Optional<Registry.Entry> found = Registry.get(name);
+        if (!found.isPresent()) {
+            System.out.println("There is no " + name + " in ~/.jars/bin/");
+            return;
+        }
+
+        Registry.Entry entry = found.get();
+        String profile = entry.attributes.getOrDefault("profile", Profiles.DEFAULT);
+        List<String> options = Profiles.getOptions(profile, name);
+
+        System.out.println("");
+        for (Map.Entry<String, Object> field : Registry.toMap(entry).entrySet()) {
+            if (!field.getKey().equals("profile")) {
+                System.out.println(padRight(field.getKey(), 10) + " " + field.getValue());
+            }
+        }
+        System.out.println(padRight("profile", 10) + " " + profile + (Profiles.AUTO.equals(profile) ? ", now " + Profiles.getAutoProfile(name) : ""));
+        System.out.println(padRight("options", 10) + " " + (options.isEmpty() ? "none" : String.join(" ", options)));
+
+        List<RunRecorder.Run> runs = Profiles.getRuns(name);
+        if (!runs.isEmpty()) {
+            System.out.println("\n\tRecorded runs\n");
+            System.out.println(
+                    RunRecorder.FAST_STARTUP + " below " + RunRecorder.SHORT_RUN_MILLIS + " ms and " + RunRecorder.SMALL_RSS_KB / 1024 + " MB, " +
+                    RunRecorder.THROUGHPUT + " from " + RunRecorder.LONG_RUN_MILLIS + " ms,\n" +
+                    "the profile changes when the last " + RunRecorder.AGREEING_RUNS + " runs agree\n"
+            );
+            for (RunRecorder.Run run : runs) {
+                System.out.println(
+                        Instant.ofEpochMilli(run.epochMillis) + "  " +
+                        String.format("%8d ms  %6s MB  ", run.wallMillis, run.peakRssKb < 0 ? "?" : Long.toString(run.peakRssKb / 1024)) +
+                        RunRecorder.classify(run.wallMillis, run.peakRssKb)
+                );
+            }
+        }
+
         System.out.println("");
     }
     
+    private static String toJson(Map<String, Object> fields) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(toJson(field.getKey())).append(": ");
+            Object value = field.getValue();
+            json.append(value instanceof Number || value instanceof Boolean ? value.toString() : toJson(String.valueOf(value)));
+        }
+        return json.append("}").toString();
+    }
+    
+    private static String toJson(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+    
+    /**
+     * Adds the jar, the jars in the directory or the jars listed in the @file given by argument.
+     */
+    private static void addJarPaths(String argument, Path baseDir, List<Path> jarPaths) throws IOException {
+        if (argument.startsWith("@")) {
+            Path listPath = baseDir.resolve(argument.substring(1));
+            for (String line : Files.readAllLines(listPath)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    addJarPaths(line, listPath.toAbsolutePath().getParent(), jarPaths);
+                }
+            }
+            return;
+        }
+
+        Path path = baseDir.resolve(argument);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                files.filter((file) -> file.getFileName().toString().endsWith(".jar") && Files.isRegularFile(file))
+                     .sorted()
+                     .forEach(jarPaths::add);
+            }
+        } else {
+            jarPaths.add(path);
+        }
+    }
+    
     private static void installSelf() throws JarInstallerException {
         install(getJarPathFor(Application.class), System.out, true);
     }
     
     public static Properties readManifest(Class<?> clz) {
+        try {
+            Path jarPath = getJarPathFor(clz);
+            if (Files.isRegularFile(jarPath)) {
+                Properties prop = new Properties();
+                Manifest manifest = jarinstaller.impl.Utils.readManifest(jarPath);
+                if (manifest != null) {
+                    manifest.getMainAttributes().forEach((key, value) -> prop.setProperty(key.toString(), value.toString()));
+                }
+                return prop;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Loading MANIFEST for class " + clz + " failed!", e);
+        }
+
+        // Not run from a jar, look for the manifest next to the classes
         String resource = "/" + clz.getName().replace(".", "/") + ".class";
         String fullPath = clz.getResource(resource).toString();
         String archivePath = fullPath.substring(0, fullPath.length() - resource.length());
@@ -158,9 +444,40 @@ public class Application {
             "jarInstaller is used to install runnable jars and map them\n" +
             "to a command in the path.\n" +
             "\n"+
-            "   install         installes a jar file\n" +
+            "   install         installes jar files, the jars in a directory or\n" +
+            "                   the jars listed in an @file, - reads one from stdin\n" +
             "   uninstall       uninstalles a jar file\n" +
             "   list            list installed jars\n" +
+            "   relink          rewrite all launchers for the current java\n" +
+            "   verify          check the installed jars for corruption and\n" +
+            "                   report files nothing uses\n" +
+            "   info            show an installed jar, its jvm options and\n" +
+            "                   recorded runs\n" +
+            "   unslim          install the full jar of one installed with --slim\n" +
+            "   use             list the kept versions of an installed jar or\n" +
+            "                   switch to one of them\n" +
+            "\n" +
+            "   --format=FORMAT print list as json or tsv\n" +
+            "   --check         mark missing jars in json and tsv too\n" +
+            "   --cds           install with a class data sharing archive\n" +
+            "   --cds-training-args=ARGS\n" +
+            "                   arguments for the cds training run, --help by default\n" +
+            "   --daemon        install to run in a resident JVM\n" +
+            "   --profile=NAME  jvm options, default, fast-startup, throughput\n" +
+            "                   or auto to pick one from recorded runs\n" +
+            "   --preload       record the classes of a run and load them in the\n" +
+            "                   background at later starts\n" +
+            "   --slim          leave out the dependency jars that are not used\n" +
+            "   --runtime       run on a runtime image with only the modules\n" +
+            "                   the jar needs\n" +
+            "   --keep=N        versions of the jar to keep for use, 3 by default\n" +
+            "   --link          link to the jar instead of copying it, for jars\n" +
+            "                   that are rebuilt\n" +
+            "   --require-signed\n" +
+            "                   refuse jars that are not signed or do not match\n" +
+            "                   their signature\n" +
+            "   --name=NAME     command name of a jar installed from stdin, the\n" +
+            "                   Implementation-Title of its manifest by default\n" +
             "\n" +
             "   -h, --help      show help\n" +
             "   --install-self  installes jarinstaller\n" +
@@ -4,9 +4,12 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 
 import jarinstaller.cmdline.classpath.DependencyLoader;
+import jarinstaller.cmdline.classpath.Trace;
 
 public class InitClass {
     public static void main(String...args) throws IOException, URISyntaxException {
+        long start = Trace.start();
         DependencyLoader.init("jarinstaller.cmdline.Application", args);
+        Trace.phase("init", start);
     }
 }
@@ -0,0 +1,186 @@
+package jarinstaller.cmdline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The java agent the launcher of a tool installed with --profile=auto adds to some of
+ * its runs. When the JVM exits it records the wall time and peak RSS of the run in
+ * ~/.jars/profiles/&lt;tool&gt;.runs and, once the recent runs agree on a profile, makes
+ * it the profile of the tool in ~/.jars/profiles/&lt;tool&gt;.auto.
+ *
+ * The agent jar only holds this class, so it must not use anything but the JDK.
+ */
+public class RunRecorder {
+
+    public static final String DEFAULT = "default";
+    public static final String FAST_STARTUP = "fast-startup";
+    public static final String THROUGHPUT = "throughput";
+
+    public static final long SHORT_RUN_MILLIS = 2000;
+    public static final long SMALL_RSS_KB = 256 * 1024;
+    public static final long LONG_RUN_MILLIS = 30000;
+
+    /**
+     * The number of latest runs that have to agree before the profile is changed.
+     */
+    public static final int AGREEING_RUNS = 5;
+
+    private static final int KEPT_RUNS = 20;
+
+    private static long startMillis;
+
+    public static class Run {
+
+        public long epochMillis;
+        public long wallMillis;
+        public long peakRssKb;
+
+        public Run(long epochMillis, long wallMillis, long peakRssKb) {
+            this.epochMillis = epochMillis;
+            this.wallMillis = wallMillis;
+            this.peakRssKb = peakRssKb;
+        }
+    }
+
+    /**
+     * The argument is the launch time in microseconds since the epoch, empty when bash
+     * is too old to tell.
+     */
+    public static void premain(String args) {
+        startMillis = args != null && args.matches("\\d+") ? Long.parseLong(args) / 1000 : System.currentTimeMillis();
+        Runtime.getRuntime().addShutdownHook(new Thread(RunRecorder::record, "jarinstaller-run-recorder"));
+    }
+
+    /**
+     * Returns the profile that suits a run, a peak RSS below zero is unknown.
+     */
+    public static String classify(long wallMillis, long peakRssKb) {
+        if (wallMillis < SHORT_RUN_MILLIS && peakRssKb < SMALL_RSS_KB) {
+            return FAST_STARTUP;
+        }
+        if (wallMillis >= LONG_RUN_MILLIS) {
+            return THROUGHPUT;
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the profile the latest runs agree on, or current if they do not.
+     */
+    public static String choose(List<Run> runs, String current) {
+        if (runs.size() < AGREEING_RUNS) {
+            return current;
+        }
+
+        String chosen = null;
+        for (Run run : runs.subList(runs.size() - AGREEING_RUNS, runs.size())) {
+            String profile = classify(run.wallMillis, run.peakRssKb);
+            if (chosen != null && !chosen.equals(profile)) {
+                return current;
+            }
+            chosen = profile;
+        }
+        return chosen;
+    }
+
+    /**
+     * Parses the lines of a .runs file, epoch millis, wall millis and peak RSS in KB
+     * separated by tabs.
+     */
+    public static List<Run> parse(String content) {
+        List<Run> runs = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3) {
+                try {
+                    runs.add(new Run(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                } catch (NumberFormatException ex) {
+                    // Skip a line cut short by a crash
+                }
+            }
+        }
+        return runs;
+    }
+
+    private static void record() {
+        String jarinstallerPath = System.getenv("JARINSTALLER_PATH");
+        String scriptPath = System.getenv("JARINSTALLER_SCRIPT_PATH");
+        if (jarinstallerPath == null || scriptPath == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Run run = new Run(now, now - startMillis, peakRssKb());
+
+        try {
+            Path profilesDir = Paths.get(jarinstallerPath, "profiles");
+            String name = Paths.get(scriptPath).getFileName().toString();
+            Files.createDirectories(profilesDir);
+
+            Path runsPath = profilesDir.resolve(name + ".runs");
+            Path autoPath = profilesDir.resolve(name + ".auto");
+
+            try (FileChannel channel = FileChannel.open(runsPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                    // Read it all
+                }
+
+                List<Run> runs = parse(new String(buffer.array(), StandardCharsets.UTF_8));
+                runs.add(run);
+                if (runs.size() > KEPT_RUNS) {
+                    runs = new ArrayList<>(runs.subList(runs.size() - KEPT_RUNS, runs.size()));
+                }
+
+                StringBuilder content = new StringBuilder();
+                for (Run kept : runs) {
+                    content.append(kept.epochMillis).append('\t').append(kept.wallMillis).append('\t').append(kept.peakRssKb).append('\n');
+                }
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)), 0);
+
+                String current = DEFAULT;
+                if (Files.exists(autoPath)) {
+                    String[] fields = new String(Files.readAllBytes(autoPath), StandardCharsets.UTF_8).trim().split(" ");
+                    current = fields[0].isEmpty() ? DEFAULT : fields[0];
+                }
+
+                // Read by the launcher, so it is replaced and never seen half written
+                Path tempPath = profilesDir.resolve("." + name + ".auto.tmp");
+                Files.write(tempPath, (choose(runs, current) + " " + runs.size() + "\n").getBytes(StandardCharsets.UTF_8));
+                Files.move(tempPath, autoPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Recording is best effort, it must never change how the tool exits
+        }
+    }
+
+    /**
+     * Returns the peak resident set size of the JVM in KB, or -1 where there is no /proc.
+     */
+    private static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,140 @@
+package jarinstaller.cmdline.classpath;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import jarinstaller.impl.JarStore;
+
+/**
+ * Records the classes a run loads from the jar and its dependencies, and in later runs
+ * loads them on background threads while main starts, so the reading, defining and
+ * verifying of classes is spread over spare cores instead of done one at a time on the
+ * main thread.
+ *
+ * The launcher of a jar installed with --preload sets JARINSTALLER_PRELOAD to the digest
+ * of the jar. The list is kept next to the installed jar in &lt;name&gt;.preload with the
+ * digest on the first line, so when the content of the jar changes the next run records
+ * it again. Recording needs the {@link NestedJarClassLoader}, the classes of the other
+ * loaders are not seen.
+ *
+ * Preloading uses up to two threads, none on a single core where it would only compete
+ * with main. The system property jarinstaller.preload.threads sets the number.
+ */
+public class ClassPreloader {
+
+    static final String HEADER = "# jarinstaller preload ";
+
+    private static final int MAX_THREADS = 2;
+
+    private final Path listPath;
+    private final String digest;
+
+    ClassPreloader(Path listPath, String digest) {
+        this.listPath = listPath;
+        this.digest = digest;
+    }
+
+    public static Path getListPath(Path jarPath) {
+        String jarName = jarPath.getFileName().toString();
+        return jarPath.resolveSibling(jarName.replaceFirst("\\.jar$", "") + ".preload");
+    }
+
+    /**
+     * Returns the preloader the launcher of the jar at path asks for, null if it does not.
+     */
+    static ClassPreloader fromEnvironment(Path path) {
+        String digest = System.getenv("JARINSTALLER_PRELOAD");
+        Path jarPath = DependencyLoader.getLaunchedJarPath(path);
+        if (digest == null || digest.isEmpty() || jarPath == null) {
+            return null;
+        }
+        return new ClassPreloader(getListPath(jarPath), digest);
+    }
+
+    /**
+     * Starts loading the recorded classes with classLoader, or recording the classes it
+     * loads when there is no list for the digest.
+     *
+     * @return the number of classes that are being preloaded, 0 when recording
+     */
+    int start(ClassLoader classLoader) {
+        List<String> classNames = read();
+        if (classNames == null) {
+            if (classLoader instanceof NestedJarClassLoader) {
+                NestedJarClassLoader recording = (NestedJarClassLoader) classLoader;
+                recording.recordLoadedClasses();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> write(recording.getLoadedClasses())));
+            }
+            return 0;
+        }
+
+        int threadCount = Integer.getInteger("jarinstaller.preload.threads", Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        for (int i = 0; i < threadCount; i++) {
+            int first = i;
+            Thread thread = new Thread(() -> preload(classLoader, classNames, first, threadCount), "jarinstaller-preload-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return threadCount > 0 ? classNames.size() : 0;
+    }
+
+    /**
+     * Loads every count:th class from first on, so the threads go through the list in
+     * about the order main needs them.
+     */
+    private static void preload(ClassLoader classLoader, List<String> classNames, int first, int count) {
+        for (int i = first; i < classNames.size(); i += count) {
+            try {
+                // Getting the fields links, and so verifies, the class without initializing it
+                Class.forName(classNames.get(i), false, classLoader).getDeclaredFields();
+                Trace.preloadedClasses.incrementAndGet();
+            } catch (ClassNotFoundException | LinkageError | SecurityException ex) {
+                // Main gets the same error if it needs the class
+            }
+        }
+    }
+
+    /**
+     * Returns the recorded class names, null if there are none for the digest.
+     */
+    List<String> read() {
+        try {
+            if (!Files.isRegularFile(listPath)) {
+                return null;
+            }
+
+            List<String> lines = Files.readAllLines(listPath, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER + digest)) {
+                return null;
+            }
+            return new ArrayList<>(lines.subList(1, lines.size()));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the list by moving a complete temp file into place, so a run that starts
+     * meanwhile reads the old list or the new one.
+     */
+    void write(List<String> classNames) {
+        StringBuilder content = new StringBuilder(HEADER).append(digest).append('\n');
+        for (String className : classNames) {
+            content.append(className).append('\n');
+        }
+
+        Path tempPath = JarStore.tempPathFor(listPath);
+        try {
+            Files.write(tempPath, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempPath, listPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Not recorded, the next run tries again
+            tempPath.toFile().delete();
+        }
+    }
+}
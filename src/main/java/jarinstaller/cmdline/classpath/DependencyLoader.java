@@ -1,7 +1,10 @@
 package jarinstaller.cmdline.classpath;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
@@ -11,7 +14,11 @@ import java.net.URLDecoder;
 import static java.util.Arrays.asList;
 
 import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -22,9 +29,16 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import jarinstaller.JarInstallerException;
+import jarinstaller.impl.DependencyCache;
 
 public class DependencyLoader {
 
+    /**
+     * The dependency jars of the jar, one entry name per line, written at build so the
+     * bootstrap does not have to list the entries of the jar to find them.
+     */
+    public static final String DEPENDENCIES_INDEX = "META-INF/jarinstaller/dependencies.idx";
+
     public static Path getJarPathFor(Class mainClass) throws JarInstallerException {
         try {
             return new File(mainClass.getProtectionDomain().getCodeSource().getLocation().toURI().getPath()).toPath();
@@ -34,6 +48,12 @@ public class DependencyLoader {
     }
 
     public static Path getJarPathAtBottomOfStack() throws JarInstallerException {
+        // In a daemon the bottom of the stack is the daemon, not the installed jar
+        String daemonJarPath = System.getProperty("jarinstaller.daemon.jar");
+        if (daemonJarPath != null) {
+            return Paths.get(daemonJarPath);
+        }
+
         try {
             StackTraceElement[] elements = Thread.currentThread().getStackTrace();
             return getJarPathFor(Class.forName(elements[elements.length -1].getClassName()));
@@ -43,40 +63,180 @@ public class DependencyLoader {
     }
 
     public static void init(String className, String[] arguments) throws IOException, URISyntaxException {
-        Handler.setup(DependencyLoader.class.getClassLoader());
-        List<URL> urls = new ArrayList<>();
-
-        List<String> paths = getResourceListing(DependencyLoader.class.getClassLoader(), "dependencies/");
-            for (String path : paths) {
-            if (path.endsWith(".jar")) {
-                urls.add(new URL("classpath:dependencies/" + path));
-            }
+        if (Trace.isEnabled()) {
+            Trace.launcher();
+            Runtime.getRuntime().addShutdownHook(new Thread(Trace::counters));
         }
 
+        long start = Trace.start();
+        Handler.setup(DependencyLoader.class.getClassLoader());
+        Trace.phase("handler.setup", start);
+
         try {
             Path path = getJarPathAtBottomOfStack();
-            urls.add(path.toUri().toURL());
+            ClassLoader parent = DependencyLoader.class.getClassLoader().getParent();
 
-            URLClassLoader urlClassLoader = new URLClassLoader(urls.toArray(new URL[0]), DependencyLoader.class.getClassLoader().getParent());
-            Handler.setup(urlClassLoader);
+            start = Trace.start();
+            URLClassLoader urlClassLoader = createClassLoader(path, parent);
+            Trace.phase("classloader", start);
 
+            ClassPreloader preloader = ClassPreloader.fromEnvironment(path);
+            if (preloader != null) {
+                start = Trace.start();
+                preloader.start(urlClassLoader);
+                Trace.phase("preload.start", start);
+            }
+
+            start = Trace.start();
             Class klass = urlClassLoader.loadClass(className);
-            for(Method method : klass.getMethods()) {
+            Method[] methods = klass.getMethods();
+            Trace.phase("main.lookup", start);
+
+            start = Trace.start();
+            for(Method method : methods) {
                 if (method.getName().equals("main")) {
                     method.invoke(klass, new Object[] {arguments});
                 }
             }
+            Trace.phase("main.invoke", start);
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
+            printSlimHint(e);
         } catch (IllegalAccessException e) {
             e.printStackTrace();
         } catch (InvocationTargetException e) {
             e.printStackTrace();
+            printSlimHint(e);
         } catch (JarInstallerException e) {
             e.printStackTrace();
         }
     }
     
+    /**
+     * Tells how to get the left out dependency jars back when a jar installed with --slim
+     * misses a class.
+     */
+    private static void printSlimHint(Throwable throwable) {
+        String name = System.getenv("JARINSTALLER_SLIM");
+        if (name == null) {
+            return;
+        }
+
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ClassNotFoundException || cause instanceof NoClassDefFoundError) {
+                System.err.println("\n" + name + " was installed with --slim and misses a class, install all of it with: jarinstaller unslim " + name);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the class loader for the jar at path and the dependency jars inside of it.
+     * They are loaded from the extracted cache when the launcher gives one, only opening
+     * the jars its package index points to, otherwise in place from the jar.
+     */
+    public static URLClassLoader createClassLoader(Path path, ClassLoader parent) throws IOException, URISyntaxException {
+        URLClassLoader urlClassLoader = null;
+        Path cachePath = getDependencyCachePath(path);
+        if (cachePath != null && NestedJarClassLoader.hasIndex(cachePath)) {
+            try {
+                urlClassLoader = new NestedJarClassLoader(path, cachePath, parent);
+            } catch (IOException ex) {
+                // A broken index, fall back to all the jars in the cache
+            }
+        }
+        if (urlClassLoader == null && cachePath != null) {
+            urlClassLoader = new URLClassLoader(getCachedDependencyURLs(cachePath, path), parent);
+        }
+
+        if (urlClassLoader == null && Files.isRegularFile(path)) {
+            try {
+                urlClassLoader = new NestedJarClassLoader(path, "dependencies/", parent);
+            } catch (IOException ex) {
+                // Could not map the jar, fall back to loading the nested jars through classpath: URLs
+            }
+        }
+
+        if (urlClassLoader == null) {
+            urlClassLoader = new URLClassLoader(getDependencyURLs(path), parent);
+        }
+
+        Handler.setup(urlClassLoader);
+        return urlClassLoader;
+    }
+    
+    /**
+     * Returns the directory the launcher says the dependencies of path are extracted to,
+     * extracting them if that has not been done yet.
+     */
+    private static Path getDependencyCachePath(Path path) {
+        String cachePath = System.getenv("JARINSTALLER_CACHE_PATH");
+        if (cachePath == null || getLaunchedJarPath(path) == null) {
+            return null;
+        }
+
+        try {
+            Path cacheDir = Paths.get(cachePath);
+            if (!Files.isDirectory(cacheDir)) {
+                cacheDir = DependencyCache.extract(path, cacheDir.getFileName().toString());
+            }
+            return cacheDir;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the path the launcher gave for the jar at path, null if it launched another
+     * jar. The jar in ~/.jars/jars is a link to the version in use and the JVM reports the
+     * path the link leads to.
+     */
+    static Path getLaunchedJarPath(Path path) {
+        String jarPath = System.getenv("JARINSTALLER_JAR_PATH");
+        if (jarPath == null) {
+            return null;
+        }
+
+        Path launchedPath = Paths.get(jarPath);
+        try {
+            if (path.equals(launchedPath) || path.toRealPath().equals(launchedPath.toRealPath())) {
+                return launchedPath;
+            }
+        } catch (IOException ex) {
+            // Not there, so not the launched jar
+        }
+        return null;
+    }
+
+    private static URL[] getCachedDependencyURLs(Path cachePath, Path path) throws IOException {
+        List<URL> urls = new ArrayList<>();
+
+        try (DirectoryStream<Path> dependencies = Files.newDirectoryStream(cachePath, "*.jar")) {
+            for (Path dependency : dependencies) {
+                urls.add(dependency.toUri().toURL());
+            }
+        }
+
+        urls.add(path.toUri().toURL());
+        return urls.toArray(new URL[0]);
+    }
+
+    private static URL[] getDependencyURLs(Path path) throws IOException, URISyntaxException {
+        List<URL> urls = new ArrayList<>();
+
+        long start = Trace.start();
+        List<String> paths = getDependencyListing(DependencyLoader.class.getClassLoader(), "dependencies/");
+        Trace.phase("resource.listing", start);
+        for (String dependency : paths) {
+            if (dependency.endsWith(".jar")) {
+                urls.add(new URL("classpath:dependencies/" + dependency));
+            }
+        }
+
+        urls.add(path.toUri().toURL());
+        return urls.toArray(new URL[0]);
+    }
+    
     private static void addURL(URLClassLoader urlClassLoader, String url) {
         try {
             Method method = URLClassLoader.class.getDeclaredMethod("addURL", new Class[]{ URL.class });
@@ -88,6 +248,29 @@ public class DependencyLoader {
         }
     }
     
+    /**
+     * Returns the names in path from the dependencies index, listing the jar only when
+     * it was built without one.
+     */
+    static List<String> getDependencyListing(ClassLoader classLoader, String path) throws URISyntaxException, IOException {
+        try (InputStream input = classLoader.getResourceAsStream(DEPENDENCIES_INDEX)) {
+            if (input == null) {
+                return getResourceListing(classLoader, path);
+            }
+
+            List<String> result = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(path) && line.length() > path.length()) {
+                    result.add(line.substring(path.length()));
+                }
+            }
+            return result;
+        }
+    }
+
     private static List<String> getResourceListing(ClassLoader urlClassLoader, String path) throws URISyntaxException, IOException {
       URL dirURL = urlClassLoader.getResource(path);
       if (dirURL != null && dirURL.getProtocol().equals("file")) {
@@ -102,23 +285,24 @@ public class DependencyLoader {
       if (dirURL.getProtocol().equals("jar")) {
         /* A JAR path */
         String jarPath = dirURL.getPath().substring(5, dirURL.getPath().indexOf("!")); //strip out only the JAR file
-        JarFile jar = new JarFile(URLDecoder.decode(jarPath, "UTF-8"));
-        Enumeration<JarEntry> entries = jar.entries(); //gives ALL entries in jar
-        Set<String> result = new HashSet<String>(); //avoid duplicates in case it is a subdirectory
-        while(entries.hasMoreElements()) {
-          String name = entries.nextElement().getName();
-          if (name.startsWith(path)) { //filter according to the path
-            String entry = name.substring(path.length());
-            int checkSubdir = entry.indexOf("/");
-            if (checkSubdir >= 0) {
-              // if it is a subdirectory, we just return the directory name
-              entry = entry.substring(0, checkSubdir);
+        try (JarFile jar = new JarFile(URLDecoder.decode(jarPath, "UTF-8"))) {
+          Enumeration<JarEntry> entries = jar.entries(); //gives ALL entries in jar
+          Set<String> result = new HashSet<String>(); //avoid duplicates in case it is a subdirectory
+          while(entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.startsWith(path)) { //filter according to the path
+              String entry = name.substring(path.length());
+              int checkSubdir = entry.indexOf("/");
+              if (checkSubdir >= 0) {
+                // if it is a subdirectory, we just return the directory name
+                entry = entry.substring(0, checkSubdir);
+              }
+              result.add(entry);
             }
-            result.add(entry);
           }
+
+          return asList(result.toArray(new String[result.size()]));
         }
-        
-        return asList(result.toArray(new String[result.size()]));
       } 
         
       throw new UnsupportedOperationException("Cannot list files for URL "+dirURL);
@@ -1,19 +1,40 @@
 package jarinstaller.cmdline.classpath;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.UnknownServiceException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * The classpath: protocol, resources of the class loader given to {@link #setup}.
+ *
+ * Small resources are kept in a least recently used cache once read, so tools that
+ * reread their bundled templates or configs get them without a class loader lookup.
+ * The cache holds up to jarinstaller.classpath.cache bytes, 1 MiB by default and 0 to
+ * turn it off. The resources come from the installed jar, which does not change under
+ * a running tool, so cached entries are only dropped when the cache is full or the
+ * class loader changes.
+ */
 public class Handler extends URLStreamHandler {
 
+    static final int MAX_CACHED_SIZE = 64 * 1024;
+
     static ClassLoader classLoader;
 
+    static final ResourceCache cache = new ResourceCache(Long.getLong("jarinstaller.classpath.cache", 1024 * 1024));
+
     public static void setup(ClassLoader classLoader) {
         Handler.classLoader = classLoader;
+        cache.clear();
         String pkgs = "jarinstaller.cmdline";
 
         if(System.getProperties().contains("java.protocol.handler.pkgs")) {
@@ -23,30 +44,186 @@ public class Handler extends URLStreamHandler {
         System.getProperties().put("java.protocol.handler.pkgs", pkgs);
     }
 
+    /**
+     * The number of classpath: resources served from the cache.
+     */
+    public static long getCacheHits() {
+        return Trace.classpathCacheHits.get();
+    }
+
+    /**
+     * The number of classpath: resources looked up in the class loader.
+     */
+    public static long getCacheMisses() {
+        return Trace.classpathCacheMisses.get();
+    }
+
     protected URLConnection openConnection(URL u) throws IOException {
         return new Connection(u);
     }
 
+    /**
+     * The resource name of a classpath: URL, the path without a leading slash.
+     */
+    static String resourcePath(URL url) {
+        String path = url.getPath();
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    static class CachedResource {
+
+        final byte[] bytes;
+        final long lastModified;
+
+        CachedResource(byte[] bytes, long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Least recently used resources, bounded by their total size.
+     */
+    static class ResourceCache {
+
+        private final long maxBytes;
+        private final LinkedHashMap<String, CachedResource> resources = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        ResourceCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        boolean isEnabled() {
+            return maxBytes > 0;
+        }
+
+        synchronized CachedResource get(String path) {
+            return resources.get(path);
+        }
+
+        synchronized void put(String path, CachedResource resource) {
+            if (resource.bytes.length > maxBytes) {
+                return;
+            }
+
+            CachedResource previous = resources.put(path, resource);
+            bytes += resource.bytes.length - (previous != null ? previous.bytes.length : 0);
+
+            Iterator<Map.Entry<String, CachedResource>> eldest = resources.entrySet().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().getValue().bytes.length;
+                eldest.remove();
+            }
+        }
+
+        synchronized void clear() {
+            resources.clear();
+            bytes = 0;
+        }
+
+        synchronized long size() {
+            return bytes;
+        }
+    }
+
     private static class Connection extends URLConnection {
 
+        private CachedResource cached;
+        private URLConnection resource;
+
         Connection(URL url) {
             super(url);
         }
 
-        public void connect() {
+        public void connect() throws IOException {
+            if (connected) {
+                return;
+            }
+
+            String path = resourcePath(url);
+            cached = cache.get(path);
+            if (cached != null) {
+                Trace.classpathCacheHits.incrementAndGet();
+                connected = true;
+                return;
+            }
+
+            Trace.classpathCacheMisses.incrementAndGet();
+            URL resourceURL = Handler.classLoader.getResource(path);
+            if (resourceURL == null) {
+                throw new IOException("Resource not found: " + url.getFile());
+            }
+            resource = resourceURL.openConnection();
+
+            long length = resource.getContentLengthLong();
+            // Nested jars are copied to a temp file once by the JDK, caching them only takes room
+            if (cache.isEnabled() && length >= 0 && length <= MAX_CACHED_SIZE && !path.endsWith(".jar")) {
+                cached = new CachedResource(readAll(resource.getInputStream(), (int) length), lastModified(resource));
+                cache.put(path, cached);
+            }
+            connected = true;
+        }
+
+        /**
+         * The time of the entry for resources in jars, a jar: connection gives the time
+         * of the jar file.
+         */
+        private static long lastModified(URLConnection resource) {
+            if (resource instanceof JarURLConnection) {
+                try {
+                    long time = ((JarURLConnection) resource).getJarEntry().getTime();
+                    if (time >= 0) {
+                        return time;
+                    }
+                } catch (IOException ex) {
+                    // Fall back to the time of the jar
+                }
+            }
+            return resource.getLastModified();
+        }
+
+        private static byte[] readAll(InputStream input, int length) throws IOException {
+            try (InputStream in = input) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+                byte[] buffer = new byte[Math.max(length, 1)];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, read);
+                }
+                return bytes.toByteArray();
+            }
         }
 
         public InputStream getInputStream() throws IOException {
-            String resourcePath = url.toString()
-                                     .replaceAll("^classpath:(/|)", "")
-                                     .replaceAll("#runtime$", "");
-            InputStream inputStream = Handler.classLoader.getResourceAsStream(resourcePath);
+            connect();
+            return cached != null ? new ByteArrayInputStream(cached.bytes) : resource.getInputStream();
+        }
 
-            if(inputStream == null) {
-                throw new IOException("Resource not found: " + url.getFile());
+        @Override
+        public long getContentLengthLong() {
+            try {
+                connect();
+            } catch (IOException ex) {
+                return -1;
             }
+            return cached != null ? cached.bytes.length : resource.getContentLengthLong();
+        }
+
+        @Override
+        public int getContentLength() {
+            long length = getContentLengthLong();
+            return length <= Integer.MAX_VALUE ? (int) length : -1;
+        }
 
-            return inputStream;
+        @Override
+        public long getLastModified() {
+            try {
+                connect();
+            } catch (IOException ex) {
+                return 0;
+            }
+            return cached != null ? cached.lastModified : lastModified(resource);
         }
 
         public OutputStream getOutputStream() throws IOException {
@@ -54,4 +231,3 @@ public class Handler extends URLStreamHandler {
         }
     }
 }
-
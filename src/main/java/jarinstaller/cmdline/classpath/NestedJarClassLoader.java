@@ -0,0 +1,348 @@
+package jarinstaller.cmdline.classpath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.jar.Manifest;
+
+import jarinstaller.impl.ZipDirectory;
+
+/**
+ * Class loader for a jar with its dependencies as jars inside of it, or extracted next
+ * to it in the dependency cache.
+ *
+ * Dependency jars are opened the first time a lookup needs them. With a
+ * {@link PackageIndex} a lookup only goes to the jars that have entries in the
+ * package of the name, without one it goes through the jars in order. Nested jars that
+ * are stored uncompressed are used in place through the mapping of the outer jar,
+ * compressed ones are inflated into memory. Nothing is extracted to temp files.
+ */
+public class NestedJarClassLoader extends URLClassLoader {
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final List<NestedJar> nestedJars = new ArrayList<>();
+    private final PackageIndex index;
+    private final URLStreamHandler handler = new NestedJarHandler();
+    private volatile Queue<String> loadedClasses;
+
+    private interface Opener {
+        ZipDirectory open() throws IOException;
+    }
+
+    private static class NestedJar {
+
+        final String name;
+        final Path path;
+        final ProtectionDomain protectionDomain;
+        final Opener opener;
+        volatile ZipDirectory directory;
+        Manifest manifest;
+        boolean manifestRead;
+
+        NestedJar(String name, Path path, ProtectionDomain protectionDomain, Opener opener) {
+            this.name = name;
+            this.path = path;
+            this.protectionDomain = protectionDomain;
+            this.opener = opener;
+        }
+
+        ZipDirectory directory() throws IOException {
+            ZipDirectory opened = directory;
+            if (opened == null) {
+                synchronized (this) {
+                    opened = directory;
+                    if (opened == null) {
+                        opened = opener.open();
+                        directory = opened;
+                        Trace.nestedJarsOpened.incrementAndGet();
+                    }
+                }
+            }
+            return opened;
+        }
+    }
+
+    /**
+     * Creates a loader for the classes in jarPath and the jars in directory inside of it.
+     */
+    public NestedJarClassLoader(Path jarPath, String directory, ClassLoader parent) throws IOException {
+        super(new URL[] { jarPath.toUri().toURL() }, parent);
+
+        ProtectionDomain protectionDomain = protectionDomain(jarPath);
+
+        ZipDirectory outer = ZipDirectory.map(jarPath, directory);
+        for (ZipDirectory.Entry entry : outer.entries()) {
+            String name = entry.name.substring(directory.length());
+            if (!name.endsWith(".jar") || name.contains("/")) {
+                continue;
+            }
+
+            nestedJars.add(new NestedJar(entry.name, null, protectionDomain, () -> ZipDirectory.read(entry.method == ZipDirectory.STORED
+                    ? outer.data(entry)
+                    : ByteBuffer.wrap(outer.read(entry)))));
+        }
+        index = null;
+    }
+
+    /**
+     * Creates a loader for the classes in jarPath and the dependency jars extracted to
+     * cachePath, in the order of the package index there.
+     */
+    public NestedJarClassLoader(Path jarPath, Path cachePath, ClassLoader parent) throws IOException {
+        super(new URL[] { jarPath.toUri().toURL() }, parent);
+
+        index = PackageIndex.read(cachePath.resolve(PackageIndex.FILE_NAME));
+        for (String name : index.jars()) {
+            Path path = cachePath.resolve(name);
+            nestedJars.add(new NestedJar(name, path, protectionDomain(path), () -> ZipDirectory.map(path)));
+        }
+    }
+
+    /**
+     * True if the dependency cache has a package index, caches extracted by older
+     * versions do not.
+     */
+    public static boolean hasIndex(Path cachePath) {
+        return Files.isRegularFile(cachePath.resolve(PackageIndex.FILE_NAME));
+    }
+
+    private ProtectionDomain protectionDomain(Path path) throws MalformedURLException {
+        return new ProtectionDomain(new CodeSource(path.toUri().toURL(), (Certificate[]) null), null, this, null);
+    }
+
+    /**
+     * The jars that can have name, all of them in order without an index.
+     */
+    private List<NestedJar> candidates(String name) {
+        if (index == null) {
+            return nestedJars;
+        }
+
+        int[] numbers = index.jarsFor(name);
+        List<NestedJar> candidates = new ArrayList<>(numbers.length);
+        for (int number : numbers) {
+            candidates.add(nestedJars.get(number));
+        }
+        return candidates;
+    }
+
+    /**
+     * Starts keeping the names of the classes this loader defines, for {@link ClassPreloader}.
+     */
+    void recordLoadedClasses() {
+        loadedClasses = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * The names of the classes defined since {@link #recordLoadedClasses()}, in the order
+     * they were defined.
+     */
+    List<String> getLoadedClasses() {
+        Queue<String> recorded = loadedClasses;
+        return recorded != null ? new ArrayList<>(recorded) : Collections.emptyList();
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Class<?> klass = findClassInJars(name);
+        Queue<String> recording = loadedClasses;
+        if (recording != null) {
+            recording.add(name);
+        }
+        return klass;
+    }
+
+    private Class<?> findClassInJars(String name) throws ClassNotFoundException {
+        try {
+            return super.findClass(name);
+        } catch (ClassNotFoundException ex) {
+            // Not in the outer jar, look in the nested ones
+        }
+
+        String path = name.replace('.', '/') + ".class";
+        for (NestedJar nestedJar : candidates(path)) {
+            try {
+                ZipDirectory.Entry entry = nestedJar.directory().get(path);
+                if (entry != null) {
+                    return defineClass(name, nestedJar, entry);
+                }
+            } catch (IOException ex) {
+                throw new ClassNotFoundException(name, ex);
+            }
+        }
+
+        throw new ClassNotFoundException(name);
+    }
+
+    private Class<?> defineClass(String name, NestedJar nestedJar, ZipDirectory.Entry entry) throws IOException {
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0) {
+            String packageName = name.substring(0, lastDot);
+            // getDefinedPackage is Java 9 and later, this still runs on Java 8
+            @SuppressWarnings("deprecation")
+            Package definedPackage = getPackage(packageName);
+            if (definedPackage == null) {
+                try {
+                    Manifest manifest = manifestOf(nestedJar);
+                    if (manifest != null) {
+                        definePackage(packageName, manifest, null);
+                    } else {
+                        definePackage(packageName, null, null, null, null, null, null, null);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    // Defined by another thread in the meantime
+                }
+            }
+        }
+
+        Trace.nestedClassesLoaded.incrementAndGet();
+        Trace.nestedBytesRead.addAndGet(entry.size);
+
+        ZipDirectory directory = nestedJar.directory();
+        if (entry.method == ZipDirectory.STORED) {
+            return defineClass(name, directory.data(entry), nestedJar.protectionDomain);
+        }
+
+        byte[] bytes = directory.read(entry);
+        return defineClass(name, bytes, 0, bytes.length, nestedJar.protectionDomain);
+    }
+
+    private Manifest manifestOf(NestedJar nestedJar) throws IOException {
+        synchronized (nestedJar) {
+            if (!nestedJar.manifestRead) {
+                ZipDirectory directory = nestedJar.directory();
+                ZipDirectory.Entry entry = directory.get("META-INF/MANIFEST.MF");
+                if (entry != null) {
+                    try (InputStream input = directory.open(entry)) {
+                        nestedJar.manifest = new Manifest(input);
+                    }
+                }
+                nestedJar.manifestRead = true;
+            }
+            return nestedJar.manifest;
+        }
+    }
+
+    @Override
+    public URL findResource(String name) {
+        URL url = super.findResource(name);
+        if (url != null) {
+            return url;
+        }
+
+        for (NestedJar nestedJar : candidates(name)) {
+            if (has(nestedJar, name)) {
+                return urlFor(nestedJar, name);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> urls = Collections.list(super.findResources(name));
+
+        for (NestedJar nestedJar : candidates(name)) {
+            if (has(nestedJar, name)) {
+                urls.add(urlFor(nestedJar, name));
+            }
+        }
+
+        return Collections.enumeration(urls);
+    }
+
+    private static boolean has(NestedJar nestedJar, String name) {
+        try {
+            return nestedJar.directory().get(name) != null;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * A jar: URL for extracted jars, like URLClassLoader gives, and a nestedjar: URL
+     * served by this loader for nested ones.
+     */
+    private URL urlFor(NestedJar nestedJar, String name) {
+        try {
+            if (nestedJar.path != null) {
+                return new URL("jar:" + nestedJar.path.toUri() + "!/" + new URI(null, null, name, null).getRawPath());
+            }
+            return new URL("nestedjar", null, -1, "/" + nestedJar.name + "!/" + name, handler);
+        } catch (MalformedURLException | URISyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private class NestedJarHandler extends URLStreamHandler {
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String path = url.getPath();
+            int separator = path.indexOf("!/");
+
+            String jarName = path.substring(1, separator);
+            String name = path.substring(separator + 2);
+
+            for (NestedJar nestedJar : candidates(name)) {
+                if (nestedJar.name.equals(jarName)) {
+                    ZipDirectory.Entry entry = nestedJar.directory().get(name);
+                    if (entry != null) {
+                        return new NestedJarConnection(url, nestedJar.directory(), entry);
+                    }
+                }
+            }
+
+            throw new IOException("Resource not found: " + url);
+        }
+    }
+
+    private static class NestedJarConnection extends URLConnection {
+
+        private final ZipDirectory directory;
+        private final ZipDirectory.Entry entry;
+
+        NestedJarConnection(URL url, ZipDirectory directory, ZipDirectory.Entry entry) {
+            super(url);
+            this.directory = directory;
+            this.entry = entry;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            Trace.nestedBytesRead.addAndGet(entry.size);
+            return directory.open(entry);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return entry.size;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package jarinstaller.cmdline.classpath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jarinstaller.impl.JarStore;
+import jarinstaller.impl.ZipDirectory;
+
+/**
+ * An index from directory, that is package for classes, to the dependency jars with
+ * entries in it, so a class or resource is looked up in the jars that can have it
+ * instead of in all of them.
+ *
+ * The file starts with a header line and the jar names, one per line in class path
+ * order, followed by an empty line and then one line per directory with the directory
+ * and the numbers of its jars separated by tabs.
+ */
+public class PackageIndex {
+
+    public static final String FILE_NAME = "packages.idx";
+
+    private static final String HEADER = "# jarinstaller package index 1";
+
+    private static final int[] NONE = new int[0];
+
+    private final List<String> jars;
+    private final Map<String, int[]> directories;
+
+    private PackageIndex(List<String> jars, Map<String, int[]> directories) {
+        this.jars = jars;
+        this.directories = directories;
+    }
+
+    /**
+     * Builds the index of the jars, given by name in class path order.
+     */
+    public static PackageIndex build(Map<String, ZipDirectory> jars) {
+        Map<String, List<Integer>> directories = new LinkedHashMap<>();
+        int number = 0;
+        for (ZipDirectory jar : jars.values()) {
+            for (ZipDirectory.Entry entry : jar.entries()) {
+                List<Integer> numbers = directories.computeIfAbsent(directoryOf(entry.name), directory -> new ArrayList<>());
+                if (numbers.isEmpty() || numbers.get(numbers.size() - 1) != number) {
+                    numbers.add(number);
+                }
+            }
+            number++;
+        }
+
+        Map<String, int[]> index = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> directory : directories.entrySet()) {
+            index.put(directory.getKey(), directory.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new PackageIndex(new ArrayList<>(jars.keySet()), index);
+    }
+
+    public static PackageIndex read(Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            return read(input);
+        }
+    }
+
+    public static PackageIndex read(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("Not a package index");
+        }
+
+        List<String> jars = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            jars.add(line);
+        }
+
+        Map<String, int[]> directories = new HashMap<>();
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            int[] numbers = new int[fields.length - 1];
+            for (int i = 1; i < fields.length; i++) {
+                numbers[i - 1] = Integer.parseInt(fields[i]);
+                if (numbers[i - 1] >= jars.size()) {
+                    throw new IOException("Corrupt package index, " + line);
+                }
+            }
+            directories.put(fields[0], numbers);
+        }
+
+        return new PackageIndex(jars, directories);
+    }
+
+    /**
+     * Writes the index by moving a complete temp file into place.
+     */
+    public void write(Path path) throws IOException {
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (String jar : jars) {
+            content.append(jar).append('\n');
+        }
+        content.append('\n');
+        for (Map.Entry<String, int[]> directory : directories.entrySet()) {
+            content.append(directory.getKey());
+            for (int number : directory.getValue()) {
+                content.append('\t').append(number);
+            }
+            content.append('\n');
+        }
+
+        Path tempPath = JarStore.tempPathFor(path);
+        try {
+            Files.write(tempPath, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * The jar names in class path order.
+     */
+    public List<String> jars() {
+        return jars;
+    }
+
+    /**
+     * Returns the numbers of the jars that have entries in the directory of name, in
+     * class path order.
+     */
+    public int[] jarsFor(String name) {
+        int[] numbers = directories.get(directoryOf(name));
+        return numbers != null ? numbers : NONE;
+    }
+
+    static String directoryOf(String name) {
+        int slash = name.endsWith("/") ? name.lastIndexOf('/', name.length() - 2) : name.lastIndexOf('/');
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+}
@@ -0,0 +1,102 @@
+package jarinstaller.cmdline.classpath;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startup phase timings, enabled with the JARINSTALLER_TRACE environment variable or
+ * the jarinstaller.trace system property.
+ *
+ * With the value 1, true or stderr the timings are written to stderr, any other value
+ * is taken as a file to append them to. Each timing is one JSON object per line.
+ */
+public class Trace {
+
+    static final AtomicLong nestedClassesLoaded = new AtomicLong();
+    static final AtomicLong nestedBytesRead = new AtomicLong();
+    static final AtomicLong nestedJarsOpened = new AtomicLong();
+    static final AtomicLong classpathCacheHits = new AtomicLong();
+    static final AtomicLong classpathCacheMisses = new AtomicLong();
+    static final AtomicLong preloadedClasses = new AtomicLong();
+
+    private static final PrintStream out = open();
+
+    private static PrintStream open() {
+        String trace = System.getProperty("jarinstaller.trace", System.getenv("JARINSTALLER_TRACE"));
+        if (trace == null || trace.isEmpty() || trace.equals("0") || trace.equals("false")) {
+            return null;
+        }
+
+        if (trace.equals("1") || trace.equals("true") || trace.equals("stderr")) {
+            return System.err;
+        }
+
+        try {
+            return new PrintStream(new FileOutputStream(trace, true), true, "UTF-8");
+        } catch (IOException ex) {
+            System.err.println("Could not open " + trace + " for tracing, " + ex.getMessage());
+            return null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return out != null;
+    }
+
+    /**
+     * Returns the start time for a phase, 0 if tracing is not enabled.
+     */
+    public static long start() {
+        return out != null ? System.nanoTime() : 0;
+    }
+
+    public static void phase(String name, long start) {
+        if (out != null) {
+            emit("{\"phase\":\"" + name + "\",\"ns\":" + (System.nanoTime() - start) + "}");
+        }
+    }
+
+    /**
+     * Writes the time from the launcher script start until now, if the launcher recorded it.
+     */
+    public static void launcher() {
+        String launchTime = System.getenv("JARINSTALLER_LAUNCH_US");
+        if (out == null || launchTime == null) {
+            return;
+        }
+
+        try {
+            long launchMicros = Long.parseLong(launchTime.trim());
+            long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+            emit("{\"phase\":\"launcher.jvm-start\",\"ns\":" + (jvmStartMillis * 1000 - launchMicros) * 1000 + "}");
+            emit("{\"phase\":\"launcher.bootstrap\",\"ns\":" + (System.currentTimeMillis() * 1000 - launchMicros) * 1000 + "}");
+        } catch (NumberFormatException ex) {
+            // Not written by our launcher
+        }
+    }
+
+    /**
+     * Writes the class loading counters.
+     */
+    public static void counters() {
+        if (out != null) {
+            emit("{\"counters\":{" +
+                    "\"classesLoaded\":" + ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() + "," +
+                    "\"nestedClassesLoaded\":" + nestedClassesLoaded.get() + "," +
+                    "\"nestedBytesRead\":" + nestedBytesRead.get() + "," +
+                    "\"nestedJarsOpened\":" + nestedJarsOpened.get() + "," +
+                    "\"classpathCacheHits\":" + classpathCacheHits.get() + "," +
+                    "\"classpathCacheMisses\":" + classpathCacheMisses.get() + "," +
+                    "\"preloadedClasses\":" + preloadedClasses.get() + "}}");
+        }
+    }
+
+    private static void emit(String line) {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package jarinstaller.cmdline.daemon;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The launcher of a jar installed with --daemon. Runs the jar in the daemon of the tool,
+ * starting the daemon first if it is not running, and exits with the exit code of the
+ * jar.
+ *
+ * Falls back to running the jar in a new JVM when the daemon can not be started, the
+ * daemon needs a JVM that still lets System.exit be trapped, and when the daemon was
+ * started in another directory than the one the jar is run in.
+ */
+public class Client {
+
+    private static final long START_TIMEOUT_MILLIS = 10000;
+    private static final String DEFAULT_IDLE_SECONDS = "600";
+
+    public static void main(String[] args) throws Exception {
+        if (System.getenv("HOME") != null) {
+            System.setProperty("user.home", System.getenv("HOME"));
+        }
+
+        Path jarPath = Paths.get(System.getenv("JARINSTALLER_JAR_PATH"));
+        String name = Paths.get(System.getenv("JARINSTALLER_SCRIPT_PATH")).getFileName().toString();
+        Daemon daemon = new Daemon(name);
+
+        if (javaVersion() < 24) {
+            // A second attempt if the first daemon had an older version of the jar
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Daemon.Connection connection = connectOrStart(daemon, jarPath);
+                if (connection == null) {
+                    break;
+                }
+
+                Integer exitCode = run(daemon, connection, jarPath, args);
+                if (exitCode != null) {
+                    System.exit(exitCode);
+                }
+            }
+        }
+
+        System.exit(runWithoutDaemon(jarPath, args));
+    }
+
+    /**
+     * Runs the jar in the daemon, or in a JVM of its own if the daemon serves another
+     * directory.
+     *
+     * @return the exit code, or null if the daemon did not take the request
+     */
+    private static Integer run(Daemon daemon, Daemon.Connection connection, Path jarPath, String[] args) throws IOException, InterruptedException {
+        boolean elsewhere;
+        try {
+            connection.write(Daemon.TOKEN, daemon.readToken());
+
+            List<String> environment = new ArrayList<>();
+            for (Map.Entry<String, String> variable : System.getenv().entrySet()) {
+                environment.add(variable.getKey() + "=" + variable.getValue());
+            }
+
+            connection.write(Daemon.ARGUMENTS, Arrays.asList(args));
+            connection.write(Daemon.ENVIRONMENT, environment);
+            connection.write(Daemon.DIRECTORY, System.getProperty("user.dir"));
+
+            Daemon.Frame frame = connection.read();
+            elsewhere = frame != null && frame.type == Daemon.ELSEWHERE;
+            if (frame == null || frame.type != Daemon.STARTED) {
+                connection.close();
+                if (!elsewhere) {
+                    return null;
+                }
+            }
+        } catch (IOException ex) {
+            connection.close();
+            return null;
+        }
+        if (elsewhere) {
+            return runWithoutDaemon(jarPath, args);
+        }
+
+        Thread stdinPump = new Thread(() -> pumpStdin(connection), "stdin");
+        stdinPump.setDaemon(true);
+        stdinPump.start();
+
+        OutputStream out = new FileOutputStream(FileDescriptor.out);
+        OutputStream err = new FileOutputStream(FileDescriptor.err);
+
+        Daemon.Frame frame;
+        while ((frame = connection.read()) != null) {
+            if (frame.type == Daemon.STDOUT) {
+                out.write(frame.bytes);
+            } else if (frame.type == Daemon.STDERR) {
+                err.write(frame.bytes);
+            } else if (frame.type == Daemon.EXIT) {
+                return ByteBuffer.wrap(frame.bytes).getInt();
+            }
+        }
+
+        System.err.println("The jarinstaller daemon for " + daemon.name + " stopped, see " + daemon.logPath);
+        return 1;
+    }
+
+    private static void pumpStdin(Daemon.Connection connection) {
+        try {
+            InputStream in = new FileInputStream(FileDescriptor.in);
+            byte[] buffer = new byte[1 << 13];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                connection.write(Daemon.STDIN, buffer, 0, read);
+            }
+            connection.write(Daemon.STDIN_CLOSED, new byte[0]);
+        } catch (IOException ex) {
+            // The daemon is done
+        }
+    }
+
+    private static Daemon.Connection connectOrStart(Daemon daemon, Path jarPath) throws IOException, InterruptedException, URISyntaxException {
+        try {
+            return daemon.connect();
+        } catch (IOException ex) {
+            // Not running, start it
+        }
+
+        daemon.createRunDir();
+        try (FileChannel lockChannel = FileChannel.open(daemon.lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Released when the channel is closed
+            lockChannel.lock();
+
+            // Someone else might have started it while we waited for the lock
+            try {
+                return daemon.connect();
+            } catch (IOException ex) {
+                // Still not running
+            }
+
+            Process process = start(daemon, jarPath);
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    return daemon.connect();
+                } catch (IOException ex) {
+                    if (!process.isAlive()) {
+                        return null;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Process start(Daemon daemon, Path jarPath) throws IOException, URISyntaxException {
+        List<String> command = new ArrayList<>();
+        if (Files.isExecutable(Paths.get("/usr/bin/setsid"))) {
+            // Not in the process group of the shell, so ^C does not stop the daemon
+            command.add("/usr/bin/setsid");
+        }
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (javaVersion() >= 9) {
+            command.add("--add-opens=java.base/java.lang=ALL-UNNAMED");
+            command.add("--add-opens=java.base/java.util=ALL-UNNAMED");
+        }
+        if (javaVersion() >= 12) {
+            command.add("-Djava.security.manager=allow");
+        }
+        command.add("-cp");
+        command.add(Paths.get(Client.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString());
+        command.add(Server.class.getName());
+        command.add(jarPath.toString());
+        command.add(daemon.name);
+
+        String idleSeconds = System.getenv("JARINSTALLER_DAEMON_IDLE");
+        command.add(idleSeconds != null && idleSeconds.matches("\\d+") ? idleSeconds : DEFAULT_IDLE_SECONDS);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(daemon.logPath.toFile()));
+        return builder.start();
+    }
+
+    private static int runWithoutDaemon(Path jarPath, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-jar");
+        command.add(jarPath.toString());
+        command.addAll(Arrays.asList(args));
+
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
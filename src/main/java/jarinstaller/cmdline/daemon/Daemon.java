@@ -0,0 +1,335 @@
+package jarinstaller.cmdline.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import jarinstaller.impl.Utils;
+
+/**
+ * The files in ~/.jars/run/ for the daemon of a tool and the connection between the
+ * daemon client and server.
+ *
+ * The connection is a Unix domain socket on JDK 16 and later and a loopback TCP socket
+ * with the port in a file before that. Either way the client starts by sending the
+ * token the server wrote to a file only the user can read, and then everything is sent
+ * as frames of a type byte, a length and the bytes.
+ */
+class Daemon {
+
+    // Client to server
+    static final byte TOKEN = 'T';
+    static final byte ARGUMENTS = 'A';
+    static final byte ENVIRONMENT = 'E';
+    static final byte DIRECTORY = 'D';
+    static final byte STDIN = 'I';
+    static final byte STDIN_CLOSED = 'C';
+
+    // Server to client
+    static final byte STARTED = 'G';
+    static final byte STALE = 'S';
+    static final byte ELSEWHERE = 'W';
+    static final byte STDOUT = 'O';
+    static final byte STDERR = 'R';
+    static final byte EXIT = 'X';
+
+    private static final int MAX_FRAME = 16 << 20;
+
+    private static final ProtocolFamily UNIX = unixProtocolFamily();
+
+    final String name;
+    final Path socketPath;
+    final Path portPath;
+    final Path tokenPath;
+    final Path lockPath;
+    final Path logPath;
+
+    Daemon(String name) {
+        Path runDir = Utils.getRunDir().toPath();
+        this.name = name;
+        this.socketPath = runDir.resolve(name + ".sock");
+        this.portPath = runDir.resolve(name + ".port");
+        this.tokenPath = runDir.resolve(name + ".token");
+        this.lockPath = runDir.resolve(name + ".lock");
+        this.logPath = runDir.resolve(name + ".log");
+    }
+
+    static class Frame {
+
+        final byte type;
+        final byte[] bytes;
+
+        Frame(byte type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        String string() {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The strings of a frame written with {@link Connection#write(byte, List)}.
+         */
+        List<String> strings() {
+            List<String> strings = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == 0) {
+                    strings.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            return strings;
+        }
+    }
+
+    static class Connection implements Closeable {
+
+        private final SocketChannel channel;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.input = new DataInputStream(new BufferedInputStream(inputStream(channel)));
+            this.output = new DataOutputStream(new BufferedOutputStream(outputStream(channel)));
+        }
+
+        /**
+         * Returns the next frame, or null when the other side has closed the connection.
+         */
+        Frame read() throws IOException {
+            int type = input.read();
+            if (type < 0) {
+                return null;
+            }
+
+            int length = input.readInt();
+            if (length < 0 || length > MAX_FRAME) {
+                throw new IOException("Invalid frame length " + length);
+            }
+
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new Frame((byte) type, bytes);
+        }
+
+        synchronized void write(byte type, byte[] bytes, int offset, int length) throws IOException {
+            output.writeByte(type);
+            output.writeInt(length);
+            output.write(bytes, offset, length);
+            output.flush();
+        }
+
+        void write(byte type, byte[] bytes) throws IOException {
+            write(type, bytes, 0, bytes.length);
+        }
+
+        void write(byte type, String value) throws IOException {
+            write(type, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Writes the strings, each ended by NUL.
+         */
+        void write(byte type, List<String> values) throws IOException {
+            StringBuilder joined = new StringBuilder();
+            for (String value : values) {
+                joined.append(value).append('\0');
+            }
+            write(type, joined.toString());
+        }
+
+        void writeInt(byte type, int value) throws IOException {
+            write(type, ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        /**
+         * An output stream that sends what is written as frames of type.
+         */
+        OutputStream frameOutputStream(byte type) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    if (length > 0) {
+                        Connection.this.write(type, bytes, offset, length);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    String readToken() throws IOException {
+        return new String(Files.readAllBytes(tokenPath), StandardCharsets.UTF_8);
+    }
+
+    Connection connect() throws IOException {
+        if (Files.exists(portPath)) {
+            int port = Integer.parseInt(new String(Files.readAllBytes(portPath), StandardCharsets.UTF_8).trim());
+            return new Connection(SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+        }
+
+        if (UNIX == null || !Files.exists(socketPath)) {
+            throw new IOException("No daemon is running for " + name);
+        }
+
+        SocketChannel channel = (SocketChannel) invoke(SocketChannel.class, "open", UNIX);
+        try {
+            channel.connect(unixAddress(socketPath));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new Connection(channel);
+    }
+
+    void createRunDir() throws IOException {
+        Path runDir = socketPath.getParent();
+        if (!Files.isDirectory(runDir)) {
+            Files.createDirectories(runDir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+    }
+
+    /**
+     * Writes a new token and starts listening for clients.
+     */
+    ServerSocketChannel listen(String token) throws IOException {
+        createRunDir();
+        Files.deleteIfExists(socketPath);
+        Files.deleteIfExists(portPath);
+        writePrivate(tokenPath, token);
+
+        if (UNIX != null) {
+            ServerSocketChannel channel = (ServerSocketChannel) invoke(ServerSocketChannel.class, "open", UNIX);
+            channel.bind(unixAddress(socketPath));
+            return channel;
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writePrivate(portPath, Integer.toString(((InetSocketAddress) channel.getLocalAddress()).getPort()));
+        return channel;
+    }
+
+    /**
+     * True as long as nobody has removed the files clients use to find the server.
+     */
+    boolean isListening() {
+        return Files.exists(tokenPath) && (Files.exists(socketPath) || Files.exists(portPath));
+    }
+
+    void removeFiles() throws IOException {
+        Files.deleteIfExists(socketPath);
+        Files.deleteIfExists(portPath);
+        Files.deleteIfExists(tokenPath);
+    }
+
+    private static void writePrivate(Path path, String content) throws IOException {
+        Path tempPath = path.resolveSibling("." + path.getFileName() + ".tmp");
+        Files.deleteIfExists(tempPath);
+        Files.createFile(tempPath, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(tempPath, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ProtocolFamily unixProtocolFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException ex) {
+            // Before JDK 16
+            return null;
+        }
+    }
+
+    private static SocketAddress unixAddress(Path path) throws IOException {
+        try {
+            Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            return (SocketAddress) of.invoke(null, path);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets are not supported", ex);
+        }
+    }
+
+    private static Object invoke(Class<?> channelClass, String method, ProtocolFamily family) throws IOException {
+        try {
+            return channelClass.getMethod(method, ProtocolFamily.class).invoke(null, family);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets are not supported", ex);
+        }
+    }
+
+    // Not Channels.newInputStream/newOutputStream, they share a lock so reading
+    // blocks writing
+    private static InputStream inputStream(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] bytes = new byte[1];
+                return read(bytes, 0, 1) < 0 ? -1 : bytes[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+    }
+
+    private static OutputStream outputStream(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,468 @@
+package jarinstaller.cmdline.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URLClassLoader;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.Permission;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.Manifest;
+
+import jarinstaller.cmdline.classpath.DependencyLoader;
+import jarinstaller.impl.Utils;
+
+/**
+ * A resident JVM with an installed jar loaded, running its main for each client.
+ *
+ * Clients are served one at a time, as System.in, System.out, System.err and the
+ * environment are swapped for the ones of the client while its main runs. The working
+ * directory of a JVM can not be changed, so only clients in the directory the server
+ * was started in are served, the others run the jar in a JVM of their own.
+ *
+ * Main runs in a thread group of its own and, as in a JVM of its own, the client gets
+ * exit code 0 when main and the other non-daemon threads it started have ended, or the
+ * code of the first System.exit. The threads left running after a System.exit are
+ * interrupted, but can not be stopped. The server stops when it has been idle for the
+ * idle timeout, when the installed jar has changed and when its files in
+ * ~/.jars/run/ are removed.
+ */
+public class Server {
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private static volatile Request current;
+
+    private final Path jarPath;
+    private final Daemon daemon;
+    private final long idleMillis;
+    private final String jarState;
+    private final String token;
+
+    private URLClassLoader classLoader;
+    private Method main;
+    private ServerSocketChannel listener;
+    private Map<String, String> environment;
+    private String directory;
+
+    private boolean busy;
+    private boolean stopped;
+    private long lastActive = System.currentTimeMillis();
+
+    /**
+     * Arguments: the installed jar, the tool name and the idle timeout in seconds.
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getenv("HOME") != null) {
+            System.setProperty("user.home", System.getenv("HOME"));
+        }
+
+        Server server = new Server(Paths.get(args[0]), new Daemon(args[1]), Long.parseLong(args[2]) * 1000);
+        server.start();
+        server.serve();
+
+        // Threads main has left running should not keep a stopped server alive
+        System.exit(0);
+    }
+
+    /**
+     * Makes the daemon of the tool stop, if one is running.
+     */
+    public static void stop(String name) throws IOException {
+        new Daemon(name).removeFiles();
+    }
+
+    private Server(Path jarPath, Daemon daemon, long idleMillis) throws IOException {
+        this.jarPath = jarPath;
+        this.daemon = daemon;
+        this.idleMillis = idleMillis;
+        this.jarState = jarState();
+
+        byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : tokenBytes) {
+            hex.append(String.format("%02x", b));
+        }
+        this.token = hex.toString();
+    }
+
+    private void start() throws Exception {
+        System.setProperty("jarinstaller.daemon.jar", jarPath.toString());
+
+        classLoader = DependencyLoader.createClassLoader(jarPath, Server.class.getClassLoader().getParent());
+        Manifest manifest = Utils.readManifest(jarPath);
+        String mainClass = manifest == null ? null : manifest.getMainAttributes().getValue("Main-Class");
+        if (mainClass == null) {
+            throw new IllegalStateException("No Main-Class in " + jarPath);
+        }
+        main = classLoader.loadClass(mainClass).getMethod("main", String[].class);
+
+        environment = new HashMap<>(System.getenv());
+        directory = System.getProperty("user.dir");
+
+        installExitTrap();
+
+        listener = daemon.listen(token);
+
+        Thread watchdog = new Thread(this::watch, "jarinstaller-daemon-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        System.err.println("Serving " + jarPath + " for " + daemon.name);
+    }
+
+    private void serve() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException ex) {
+                synchronized (this) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                ex.printStackTrace();
+                continue;
+            }
+
+            synchronized (this) {
+                if (stopped) {
+                    close(channel);
+                    return;
+                }
+                busy = true;
+            }
+
+            boolean stale = false;
+            try (Daemon.Connection connection = new Daemon.Connection(channel)) {
+                stale = handle(connection);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                    lastActive = System.currentTimeMillis();
+                }
+            }
+
+            if (stale) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs main for a client.
+     *
+     * @return true if the jar has changed and the server has stopped
+     */
+    private boolean handle(Daemon.Connection connection) throws IOException {
+        Daemon.Frame frame = connection.read();
+        if (frame == null || frame.type != Daemon.TOKEN || !MessageDigest.isEqual(frame.bytes, token.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+
+        if (!jarState.equals(jarState())) {
+            System.err.println("Stopping, jar changed");
+            stop();
+            connection.write(Daemon.STALE, new byte[0]);
+            return true;
+        }
+
+        List<String> arguments = null;
+        Map<String, String> clientEnvironment = new HashMap<>();
+        while ((frame = connection.read()) != null && frame.type != Daemon.DIRECTORY) {
+            if (frame.type == Daemon.ARGUMENTS) {
+                arguments = frame.strings();
+            } else if (frame.type == Daemon.ENVIRONMENT) {
+                for (String variable : frame.strings()) {
+                    int separator = variable.indexOf('=');
+                    clientEnvironment.put(variable.substring(0, separator), variable.substring(separator + 1));
+                }
+            }
+        }
+        if (frame == null || arguments == null) {
+            return false;
+        }
+        String clientDirectory = frame.string();
+        if (!Paths.get(clientDirectory).normalize().equals(Paths.get(directory).normalize())) {
+            // Relative paths of the client would be resolved against the wrong directory
+            connection.write(Daemon.ELSEWHERE, new byte[0]);
+            return false;
+        }
+
+        connection.write(Daemon.STARTED, new byte[0]);
+
+        PipedInputStream stdin = new PipedInputStream(1 << 16);
+        PipedOutputStream stdinWriter = new PipedOutputStream(stdin);
+        Thread stdinPump = new Thread(() -> pumpStdin(connection, stdinWriter), "jarinstaller-daemon-stdin");
+        stdinPump.setDaemon(true);
+        stdinPump.start();
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(connection.frameOutputStream(Daemon.STDOUT), 1 << 13), true);
+        PrintStream err = new PrintStream(new BufferedOutputStream(connection.frameOutputStream(Daemon.STDERR), 1 << 13), true);
+
+        InputStream originalIn = System.in;
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+
+        Request request = new Request();
+        ThreadGroup group = new ThreadGroup("jarinstaller-daemon-request");
+        try {
+            setEnvironment(clientEnvironment);
+            System.setIn(stdin);
+            System.setOut(out);
+            System.setErr(err);
+            current = request;
+
+            String[] argumentArray = arguments.toArray(new String[0]);
+            Thread mainThread = new Thread(group, () -> runMain(argumentArray, request), "main");
+            mainThread.setContextClassLoader(classLoader);
+            mainThread.start();
+
+            request.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            request.exit(1);
+        } finally {
+            current = null;
+            // What is still running after System.exit would have been stopped with the JVM
+            group.interrupt();
+            out.flush();
+            err.flush();
+            System.setIn(originalIn);
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+            setEnvironment(environment);
+        }
+
+        connection.writeInt(Daemon.EXIT, request.exitCode);
+        return false;
+    }
+
+    /**
+     * Runs main in the thread group of the request. The first exit code given to request
+     * is the one the client gets, so an exit(0) after a System.exit changes nothing.
+     */
+    private void runMain(String[] arguments, Request request) {
+        try {
+            main.invoke(null, (Object) arguments);
+            awaitThreads(Thread.currentThread().getThreadGroup());
+            request.exit(0);
+        } catch (InvocationTargetException ex) {
+            if (!(ex.getCause() instanceof ExitException)) {
+                ex.getCause().printStackTrace();
+                request.exit(1);
+            }
+        } catch (InterruptedException ex) {
+            // The request is done, through a System.exit in another thread
+            request.exit(1);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            request.exit(1);
+        }
+    }
+
+    /**
+     * Waits for the non-daemon threads in group, other than this one, to end.
+     */
+    private static void awaitThreads(ThreadGroup group) throws InterruptedException {
+        while (true) {
+            Thread[] threads = new Thread[group.activeCount() + 8];
+            int count = group.enumerate(threads);
+            Thread running = null;
+            for (int i = 0; i < count && running == null; i++) {
+                if (threads[i] != Thread.currentThread() && !threads[i].isDaemon() && threads[i].isAlive()) {
+                    running = threads[i];
+                }
+            }
+            if (running == null) {
+                return;
+            }
+            running.join();
+        }
+    }
+
+    private static void pumpStdin(Daemon.Connection connection, PipedOutputStream stdinWriter) {
+        try {
+            Daemon.Frame frame;
+            while ((frame = connection.read()) != null && frame.type == Daemon.STDIN) {
+                stdinWriter.write(frame.bytes);
+            }
+        } catch (IOException ex) {
+            // The client has gone or main has returned
+        } finally {
+            try {
+                stdinWriter.close();
+            } catch (IOException ex) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            String reason = null;
+            synchronized (this) {
+                if (busy) {
+                    continue;
+                }
+
+                if (System.currentTimeMillis() - lastActive > idleMillis) {
+                    reason = "idle";
+                } else if (!daemon.isListening()) {
+                    reason = "removed";
+                } else if (!jarState.equals(jarState())) {
+                    reason = "jar changed";
+                }
+
+                if (reason != null) {
+                    stop();
+                }
+            }
+
+            if (reason != null) {
+                System.err.println("Stopping, " + reason);
+                System.exit(0);
+            }
+        }
+    }
+
+    private synchronized void stop() {
+        stopped = true;
+        try {
+            // Only remove the files if they still are ours
+            if (daemon.isListening() && token.equals(daemon.readToken())) {
+                daemon.removeFiles();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            listener.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Identifies the content of the installed jar, which is replaced and not written to
+     * when it changes.
+     */
+    private String jarState() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(jarPath, BasicFileAttributes.class);
+            return Objects.toString(attributes.fileKey()) + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException ex) {
+            return "missing";
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Replaces the environment of the JVM. Needs java.base/java.lang and java.util to be
+     * opened on JDK 9 and later, the client starts the server with that.
+     */
+    @SuppressWarnings("unchecked")
+    private static void setEnvironment(Map<String, String> variables) {
+        try {
+            Field field = Class.forName("java.lang.ProcessEnvironment").getDeclaredField("theUnmodifiableEnvironment");
+            field.setAccessible(true);
+            Map<String, String> unmodifiable = (Map<String, String>) field.get(null);
+
+            Field inner = unmodifiable.getClass().getDeclaredField("m");
+            inner.setAccessible(true);
+            Map<String, String> modifiable = (Map<String, String>) inner.get(unmodifiable);
+
+            modifiable.clear();
+            modifiable.putAll(variables);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            System.err.println("Could not set the environment, " + ex);
+        }
+    }
+
+    private static class Request {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int exitCode;
+
+        synchronized void exit(int code) {
+            if (done.getCount() > 0) {
+                exitCode = code;
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Traps System.exit, which needs a security manager. They are deprecated for removal,
+     * and the client runs the jar without a daemon on JDK 24 and later that has none.
+     */
+    @SuppressWarnings("removal")
+    private static void installExitTrap() {
+        System.setSecurityManager(new ExitTrap());
+    }
+
+    private static class ExitException extends SecurityException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExitException(int status) {
+            super("System.exit(" + status + ") in daemon");
+        }
+    }
+
+    @SuppressWarnings("removal")
+    private static class ExitTrap extends SecurityManager {
+
+        @Override
+        public void checkExit(int status) {
+            Request request = current;
+            if (request != null) {
+                request.exit(status);
+                throw new ExitException(status);
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission permission) {
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+        }
+    }
+}
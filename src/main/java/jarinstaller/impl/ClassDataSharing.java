@@ -0,0 +1,115 @@
+package jarinstaller.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class data sharing archives for installed jars, ~/.jars/jars/&lt;jar name&gt;.jsa.
+ *
+ * The archive is created with a training run at install. On JDK 19 and later the
+ * launcher uses -XX:+AutoCreateSharedArchive so the JVM recreates the archive by
+ * itself when the jar or the JDK has changed. On JDK 13 to 18 the archive is dumped
+ * with -XX:ArchiveClassesAtExit and a stale archive is ignored by the JVM. The cds
+ * log is turned off in both cases so a mismatch falls back to a normal launch
+ * without printing warnings.
+ */
+public class ClassDataSharing {
+
+    private static final long TRAINING_TIMEOUT_SECONDS = 120;
+
+    private static final List<String> QUIET = Arrays.asList("-Xlog:cds=off", "-Xlog:cds+dynamic=off");
+
+    public static Path getArchivePath(Path targetPath) {
+        String jarName = targetPath.getFileName().toString();
+        return targetPath.resolveSibling(jarName.replaceFirst("\\.jar$", "") + ".jsa");
+    }
+
+    /**
+     * Creates the archive for targetPath with a training run.
+     *
+     * @return the options the launcher should give the JVM, empty if the JVM does not
+     *         support dynamic archives or the training run failed
+     */
+    public static List<String> createArchive(String java, Path targetPath, Map<String, String> environment, List<String> trainingArgs) throws IOException {
+        Path archivePath = getArchivePath(targetPath);
+        Path tempPath = JarStore.tempPathFor(archivePath);
+
+        try {
+            List<String> options = new ArrayList<>();
+            options.add("-XX:+AutoCreateSharedArchive");
+            options.add("-XX:SharedArchiveFile=" + archivePath);
+            options.addAll(QUIET);
+
+            if (run(java, environment, Arrays.asList("-XX:+AutoCreateSharedArchive", "-XX:SharedArchiveFile=" + tempPath, "-version"))) {
+                Files.deleteIfExists(tempPath);
+                Files.deleteIfExists(archivePath);
+                train(java, targetPath, environment, trainingArgs, options);
+                return Files.exists(archivePath) ? options : new ArrayList<>();
+            }
+
+            List<String> dumpOptions = new ArrayList<>();
+            dumpOptions.add("-XX:ArchiveClassesAtExit=" + tempPath);
+            dumpOptions.addAll(QUIET);
+            train(java, targetPath, environment, trainingArgs, dumpOptions);
+
+            if (!Files.exists(tempPath)) {
+                return new ArrayList<>();
+            }
+
+            Files.move(tempPath, archivePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            options.clear();
+            options.add("-XX:SharedArchiveFile=" + archivePath);
+            options.addAll(QUIET);
+            return options;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    public static void removeArchive(Path targetPath) throws IOException {
+        Files.deleteIfExists(getArchivePath(targetPath));
+    }
+
+    private static void train(String java, Path targetPath, Map<String, String> environment, List<String> trainingArgs, List<String> options) throws IOException {
+        List<String> arguments = new ArrayList<>(options);
+        arguments.add("-jar");
+        arguments.add(targetPath.toString());
+        arguments.addAll(trainingArgs);
+
+        run(java, environment, arguments);
+    }
+
+    private static boolean run(String java, Map<String, String> environment, List<String> arguments) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(arguments);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().putAll(environment);
+        builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        builder.redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")));
+        builder.redirectError(ProcessBuilder.Redirect.to(new File("/dev/null")));
+
+        Process process = builder.start();
+        try {
+            if (!process.waitFor(TRAINING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (InterruptedException ex) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command, ex);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package jarinstaller.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import jarinstaller.cmdline.classpath.NestedJarClassLoader;
+import jarinstaller.cmdline.classpath.PackageIndex;
+
+/**
+ * The jars in dependencies/ of installed jars, extracted once to ~/.jars/cache/&lt;digest&gt;/.
+ *
+ * A cache directory is filled under a temp name and then renamed into place, so a
+ * cache directory that exists is always complete, even when several processes
+ * extract the same jar at the same time. It has a {@link PackageIndex} of the jars so
+ * the class loader only opens the jars it needs.
+ */
+public class DependencyCache {
+
+    public static final String DEPENDENCIES = "dependencies/";
+
+    public static File getCacheDir() {
+        return new File(System.getProperty("user.home") + "/.jars/cache/");
+    }
+
+    public static Path getCachePath(String digest) {
+        return getCacheDir().toPath().resolve(digest);
+    }
+
+    /**
+     * Extracts the dependency jars of jarPath unless they already are in the cache.
+     *
+     * @return the cache directory, or null if the jar has no dependency jars
+     */
+    public static Path extract(Path jarPath, String digest) throws IOException {
+        Path cachePath = getCachePath(digest);
+        if (Files.isDirectory(cachePath)) {
+            if (!NestedJarClassLoader.hasIndex(cachePath)) {
+                // Extracted before there was an index
+                writeIndex(cachePath);
+            }
+            return cachePath;
+        }
+
+        ZipDirectory directory = ZipDirectory.map(jarPath, DEPENDENCIES);
+        List<ZipDirectory.Entry> dependencies = new ArrayList<>();
+        for (ZipDirectory.Entry entry : directory.entries()) {
+            String name = entry.name.substring(DEPENDENCIES.length());
+            if (name.endsWith(".jar") && !name.contains("/")) {
+                dependencies.add(entry);
+            }
+        }
+
+        if (dependencies.isEmpty()) {
+            return null;
+        }
+
+        Files.createDirectories(cachePath.getParent());
+        Path tempPath = Files.createTempDirectory(cachePath.getParent(), "." + digest + ".");
+        try {
+            Map<String, ZipDirectory> jars = new LinkedHashMap<>();
+            for (ZipDirectory.Entry entry : dependencies) {
+                String name = entry.name.substring(DEPENDENCIES.length());
+                Path dependencyPath = tempPath.resolve(name);
+                ByteBuffer content = entry.method == ZipDirectory.STORED
+                        ? directory.data(entry)
+                        : ByteBuffer.wrap(directory.read(entry));
+                jars.put(name, ZipDirectory.read(content));
+
+                try (FileChannel channel = FileChannel.open(dependencyPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    while (content.hasRemaining()) {
+                        channel.write(content);
+                    }
+                }
+            }
+
+            PackageIndex.build(jars).write(tempPath.resolve(PackageIndex.FILE_NAME));
+
+            try {
+                Files.move(tempPath, cachePath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // Fine if it was extracted by someone else in the meantime
+                if (!Files.isDirectory(cachePath)) {
+                    throw ex;
+                }
+            }
+        } finally {
+            delete(tempPath);
+        }
+
+        return cachePath;
+    }
+
+    private static void writeIndex(Path cachePath) throws IOException {
+        Map<String, ZipDirectory> jars = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(cachePath)) {
+            for (Path file : (Iterable<Path>) files.filter(file -> file.getFileName().toString().endsWith(".jar")).sorted()::iterator) {
+                jars.put(file.getFileName().toString(), ZipDirectory.map(file));
+            }
+        }
+        PackageIndex.build(jars).write(cachePath.resolve(PackageIndex.FILE_NAME));
+    }
+
+    public static void remove(String digest) throws IOException {
+        delete(getCachePath(digest));
+    }
+
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jarinstaller.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options for an install, the defaults give a plain install.
+ */
+public class InstallOptions {
+
+    /**
+     * Create a class data sharing archive for the jar with a training run at install.
+     */
+    public boolean cds;
+
+    /**
+     * Arguments for the training run when creating a class data sharing archive.
+     */
+    public List<String> cdsTrainingArgs = new ArrayList<>();
+
+    /**
+     * Run the jar in a resident JVM that the launcher connects to, instead of in a new
+     * JVM for each run.
+     */
+    public boolean daemon;
+
+    /**
+     * The JVM options profile of the launcher, one of {@link Profiles#getNames()}.
+     */
+    public String profile = Profiles.DEFAULT;
+
+    /**
+     * Record the classes a run loads and preload them on background threads in later
+     * runs, for jars started through the jarinstaller bootstrap.
+     */
+    public boolean preload;
+
+    /**
+     * Leave the dependency jars the jar does not use out of the installed copy and keep
+     * the full jar in ~/.jars/originals.
+     */
+    public boolean slim;
+
+    /**
+     * Run the jar on a runtime image linked with only the modules it needs, in
+     * ~/.jars/runtimes and shared by the jars that need the same modules.
+     */
+    public boolean runtime;
+
+    /**
+     * The number of versions of the tool to keep in ~/.jars/tools for jarinstaller use.
+     */
+    public int keep = Versions.DEFAULT_KEEP;
+
+    /**
+     * Link ~/.jars/jars to the jar instead of copying it, for jars that are rebuilt often.
+     */
+    public boolean link;
+
+    /**
+     * Refuse the jar unless it is signed and matches its signature, before anything is copied.
+     */
+    public boolean requireSigned;
+
+    public InstallOptions() {
+        cdsTrainingArgs.add("--help");
+    }
+}
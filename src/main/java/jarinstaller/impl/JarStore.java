@@ -0,0 +1,539 @@
+package jarinstaller.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Content addressed storage for installed jars.
+ *
+ * Every installed jar in ~/.jars/jars is a hard link to a blob in ~/.jars/store
+ * named after the SHA-256 of its content. Installing a jar whose content is
+ * already in the store is just a new link. The link count of the blob is used
+ * as reference count, when only the store itself points at a blob it is removed.
+ *
+ * Digests are cached in the user.jarinstaller.sha256 extended attribute together
+ * with the size and modification time they were computed for, so checking an
+ * installed jar does not mean hashing it again.
+ *
+ * A new jar is read once, see {@link #stage(InputStream)}: the same pass hashes it,
+ * checks its entries and writes it to a temp file in the store that becomes the blob.
+ */
+public class JarStore {
+
+    public enum Result { COPIED, LINKED, UNCHANGED }
+
+    private static final String DIGEST_ATTRIBUTE = "jarinstaller.sha256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int STAGE_BUFFER_SIZE = 256 * 1024;
+
+    public static File getStoreDir() {
+        return new File(System.getProperty("user.home") + "/.jars/store/");
+    }
+
+    public static Path getBlobPath(String digest) {
+        return getStoreDir().toPath().resolve(digest + ".jar");
+    }
+
+    public static String digest(Path path) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream input = Files.newInputStream(path)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * Same as digest(path) but uses and updates the digest cached on the file.
+     */
+    public static String cachedDigest(Path path) throws IOException {
+        String key = digestCacheKey(path);
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+
+        if (view != null) {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(view.size(DIGEST_ATTRIBUTE));
+                view.read(DIGEST_ATTRIBUTE, buffer);
+                String[] cached = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).split(" ");
+                if (cached.length == 2 && cached[0].equals(key)) {
+                    return cached[1];
+                }
+            } catch (IOException | UnsupportedOperationException ex) {
+                // Not cached yet or no extended attributes on this file system
+            }
+        }
+
+        String digest = digest(path);
+        cacheDigest(path, key, digest);
+        return digest;
+    }
+
+    private static void cacheDigest(Path path, String key, String digest) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+
+        try {
+            view.write(DIGEST_ATTRIBUTE, ByteBuffer.wrap((key + " " + digest).getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Read only or no extended attributes, the digest will be computed again next time
+        }
+    }
+
+    private static String digestCacheKey(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return attributes.size() + ":" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Makes targetPath point at the content of jarPath, copying the content into the store
+     * only if it is not there already. The new targetPath is moved into place atomically
+     * so a concurrent launch sees either the old or the new jar.
+     *
+     * @return COPIED if the content had to be copied, LINKED if it was already in the store
+     *         and UNCHANGED if targetPath already had the same content
+     */
+    public static Result link(Path jarPath, Path targetPath) throws IOException {
+        // Already in the store, nothing to read
+        Path blobPath = findBlob(jarPath);
+        if (blobPath != null) {
+            return link(jarPath, blobPath.getFileName().toString().replaceFirst("\\.jar$", ""), targetPath);
+        }
+
+        try (InputStream input = Files.newInputStream(jarPath); Staged staged = stage(input)) {
+            return staged.link(targetPath);
+        }
+    }
+
+    /**
+     * Makes targetPath a symbolic link to jarPath instead of a copy in the store, or a
+     * hard link where there are no symbolic links. A jar it replaces is released from
+     * the store.
+     *
+     * @return LINKED, or UNCHANGED if targetPath already linked to jarPath
+     */
+    public static Result symlink(Path jarPath, Path targetPath) throws IOException {
+        Path sourcePath = jarPath.toAbsolutePath().normalize();
+        if (Files.isSymbolicLink(targetPath) && Files.readSymbolicLink(targetPath).equals(sourcePath)) {
+            return Result.UNCHANGED;
+        }
+
+        Path blobPath = Files.isRegularFile(targetPath, LinkOption.NOFOLLOW_LINKS) ? findBlob(targetPath) : null;
+        Path tempPath = tempPathFor(targetPath);
+        try {
+            try {
+                Files.createSymbolicLink(tempPath, sourcePath);
+            } catch (UnsupportedOperationException ex) {
+                Files.createLink(tempPath, sourcePath);
+            } catch (FileSystemException ex) {
+                if (!isNotSupported(ex)) {
+                    throw ex;
+                }
+                Files.createLink(tempPath, sourcePath);
+            }
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        if (blobPath != null) {
+            releaseBlob(blobPath);
+        }
+        return Result.LINKED;
+    }
+
+    /**
+     * Reads a jar into a temp file in the store, hashing it and checking that it is a
+     * zip with entries whose content matches their CRC on the way. The manifest is
+     * kept when it passes by. Link the staged jar to keep it, closing it without
+     * linking deletes it.
+     *
+     * @throws ZipException if input is not a jar or is corrupt
+     */
+    public static Staged stage(InputStream input) throws IOException {
+        Files.createDirectories(getStoreDir().toPath());
+        Path tempPath = Files.createTempFile(getStoreDir().toPath(), ".stage-", ".tmp");
+
+        try {
+            Scan scan;
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempPath), STAGE_BUFFER_SIZE)) {
+                scan = scan(input, output);
+            }
+
+            cacheDigest(tempPath, digestCacheKey(tempPath), scan.digest);
+            return new Staged(tempPath, scan.digest, scan.manifest, scan.signed);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempPath);
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the jar at path once, checking every entry against its CRC and the central
+     * directory against the entries. The digest is computed, not taken from the cache.
+     *
+     * @return the digest of the content
+     * @throws ZipException if the jar is corrupt
+     */
+    public static String check(Path path) throws IOException {
+        Scan scan;
+        try (InputStream input = Files.newInputStream(path)) {
+            scan = scan(input, null);
+        }
+
+        try (ZipFile zipFile = new ZipFile(path.toFile())) {
+            if (zipFile.size() != scan.entries) {
+                throw new ZipException("The central directory has " + zipFile.size() + " entries but there are " + scan.entries);
+            }
+        }
+        return scan.digest;
+    }
+
+    private static class Scan {
+        String digest;
+        Manifest manifest;
+        int entries;
+        boolean signed;
+    }
+
+    /**
+     * Hashes and unzips input in one pass, copying what is read to output if it is not
+     * null. Input is read to its end but not closed.
+     */
+    private static Scan scan(InputStream input, OutputStream output) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        InputStream tee = new FilterInputStream(new BufferedInputStream(input, STAGE_BUFFER_SIZE)) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    messageDigest.update((byte) read);
+                    if (output != null) {
+                        output.write(read);
+                    }
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    messageDigest.update(buffer, offset, read);
+                    if (output != null) {
+                        output.write(buffer, offset, read);
+                    }
+                }
+                return read;
+            }
+
+            @Override
+            public void close() {
+                // The caller closes input
+            }
+        };
+
+        Scan scan = new Scan();
+        // Not closed, that would close input
+        ZipInputStream zip = new ZipInputStream(tee);
+        byte[] skipBuffer = new byte[STAGE_BUFFER_SIZE];
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            scan.entries++;
+            try {
+                if (scan.manifest == null && entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    scan.manifest = new Manifest(zip);
+                }
+                scan.signed |= Signatures.isSignatureFile(entry.getName()) && entry.getName().toUpperCase(Locale.ROOT).endsWith(".SF");
+                // Reading the entry to its end checks its CRC
+                while (zip.read(skipBuffer) != -1) {
+                }
+            } catch (ZipException ex) {
+                throw new ZipException(ex.getMessage() + " in " + entry.getName());
+            }
+        }
+
+        // The central directory
+        while (tee.read(skipBuffer) != -1) {
+        }
+
+        if (scan.entries == 0) {
+            throw new ZipException("Not a jar, there are no entries in it");
+        }
+        scan.digest = toHex(messageDigest.digest());
+        return scan;
+    }
+
+    /**
+     * A jar read into the store by {@link #stage(InputStream)}.
+     */
+    public static class Staged implements Closeable {
+
+        public final String digest;
+
+        /**
+         * The manifest of the jar, null if it has none.
+         */
+        public final Manifest manifest;
+
+        /**
+         * True if the jar has a signature file, a META-INF/*.SF.
+         */
+        public final boolean signed;
+
+        private final Path path;
+
+        private Staged(Path path, String digest, Manifest manifest, boolean signed) {
+            this.path = path;
+            this.digest = digest;
+            this.manifest = manifest;
+            this.signed = signed;
+        }
+
+        /**
+         * Returns the temp file the jar was read into, it can be read until closed.
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Same as {@link JarStore#link(Path, Path)} for the staged jar. New content is
+         * added to the store by linking the temp file, not by copying it.
+         */
+        public Result link(Path targetPath) throws IOException {
+            Path blobPath = getBlobPath(digest);
+            boolean added = false;
+            if (!Files.exists(blobPath)) {
+                try {
+                    added = tryCreateLink(blobPath, path);
+                } catch (FileAlreadyExistsException ex) {
+                    // Added by someone else in the meantime
+                }
+            }
+
+            Result result = JarStore.link(path, digest, targetPath);
+            return added && result == Result.LINKED ? Result.COPIED : result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Links targetPath to the blob of digest, adding the content from jarPath if the
+     * blob is not there.
+     */
+    private static Result link(Path jarPath, String digest, Path targetPath) throws IOException {
+        // A symbolic link left by --link is replaced even when what it points at is the same
+        if (!Files.isSymbolicLink(targetPath)
+                && Files.exists(targetPath)
+                && Files.size(targetPath) == Files.size(jarPath)
+                && digest.equals(cachedDigest(targetPath))) {
+            return Result.UNCHANGED;
+        }
+
+        Path blobPath = getBlobPath(digest);
+        Path tempPath = tempPathFor(targetPath);
+        Result result = Result.LINKED;
+
+        try {
+            for (int attempt = 0; ; attempt++) {
+                if (!Files.exists(blobPath)) {
+                    addBlob(jarPath, blobPath, digest);
+                    result = Result.COPIED;
+                }
+
+                try {
+                    if (!tryCreateLink(tempPath, blobPath)) {
+                        // No hard links here, fall back to a plain copy outside of the store
+                        Files.copy(jarPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+                        releaseBlob(blobPath);
+                        result = Result.COPIED;
+                    }
+                    break;
+                } catch (NoSuchFileException ex) {
+                    // The blob was released by a concurrent uninstall, add it again
+                    if (attempt > 0) {
+                        throw ex;
+                    }
+                }
+            }
+
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        return result;
+    }
+
+    /**
+     * Hard links linkPath to existingPath.
+     *
+     * @return false if the file system can not hard link them, which is for the caller
+     * to copy instead
+     */
+    private static boolean tryCreateLink(Path linkPath, Path existingPath) throws IOException {
+        try {
+            Files.createLink(linkPath, existingPath);
+            return true;
+        } catch (UnsupportedOperationException ex) {
+            return false;
+        } catch (FileSystemException ex) {
+            if (!isNotSupported(ex)) {
+                throw ex;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * True if ex is the file system refusing a link, across devices, with too many links
+     * or not at all, and not a file in the way, a missing file or a permission.
+     */
+    static boolean isNotSupported(FileSystemException ex) {
+        if (ex instanceof FileAlreadyExistsException || ex instanceof NoSuchFileException || ex instanceof AccessDeniedException) {
+            return false;
+        }
+        String reason = ex.getReason() == null ? "" : ex.getReason().toLowerCase(Locale.ROOT);
+        return reason.contains("cross-device")
+                || reason.contains("not permitted")
+                || reason.contains("too many links")
+                || reason.contains("not supported");
+    }
+
+    /**
+     * Returns a path next to path that can be written and then moved over path.
+     */
+    public static Path tempPathFor(Path path) {
+        return path.resolveSibling("." + path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    }
+
+    /**
+     * Deletes targetPath and removes the blob it pointed at if nothing else points at it.
+     * A symbolic link is just deleted.
+     */
+    public static void unlink(Path targetPath) throws IOException {
+        if (Files.isSymbolicLink(targetPath)) {
+            Files.delete(targetPath);
+            return;
+        }
+
+        Path blobPath = findBlob(targetPath);
+
+        Files.delete(targetPath);
+
+        if (blobPath != null) {
+            releaseBlob(blobPath);
+        }
+    }
+
+    /**
+     * Returns true if targetPath is a link to the blob for the given digest.
+     */
+    public static boolean isLinkedTo(Path targetPath, String digest) throws IOException {
+        Path blobPath = getBlobPath(digest);
+        return Files.exists(targetPath) && Files.exists(blobPath) && Files.isSameFile(targetPath, blobPath);
+    }
+
+    /**
+     * Returns the store blob that targetPath is linked to, or null if it is not in the store.
+     */
+    public static Path findBlob(Path targetPath) throws IOException {
+        if (!Files.exists(targetPath) || linkCount(targetPath) < 2) {
+            return null;
+        }
+
+        Path blobPath = getBlobPath(cachedDigest(targetPath));
+        if (Files.exists(blobPath) && Files.isSameFile(targetPath, blobPath)) {
+            return blobPath;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the number of hard links to path, or -1 if the file system does not tell.
+     */
+    public static int linkCount(Path path) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    private static void addBlob(Path jarPath, Path blobPath, String digest) throws IOException {
+        Files.createDirectories(blobPath.getParent());
+        Path tempPath = Files.createTempFile(blobPath.getParent(), ".blob-", ".tmp");
+        try {
+            Files.copy(jarPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            cacheDigest(tempPath, digestCacheKey(tempPath), digest);
+            Files.move(tempPath, blobPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    static void releaseBlob(Path blobPath) throws IOException {
+        if (linkCount(blobPath) == 1) {
+            Files.deleteIfExists(blobPath);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,343 @@
+package jarinstaller.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the install, uninstall and relink of a tool all or nothing, with a rollback
+ * journal in ~/.jars/journal/&lt;name&gt;.journal.
+ *
+ * The journal starts with the registry entry of the tool and before a file of the tool
+ * is replaced or deleted the old file is hard linked into ~/.jars/journal/&lt;name&gt;/ and
+ * recorded, or for a symbolic link where it pointed, each record forced to disk before
+ * the change. The files themselves are
+ * changed by atomic renames. Deleting the journal commits the operation. If the process
+ * dies before that the journal is still there, and the next run that touches the tool
+ * puts the recorded files and registry entry back.
+ *
+ * Each tool has its own lock, a file lock on ~/.jars/journal/&lt;name&gt;.lock for other
+ * processes and a lock per name for the threads of this JVM, so operations on different
+ * tools run at the same time and those on the same tool one after the other.
+ */
+public class Journal implements Closeable {
+
+    private static final String HEADER = "# jarinstaller journal 1 ";
+
+    private static final String ABSENT = "-";
+
+    private static final ConcurrentHashMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ReentrantLock threadLock;
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final Set<Path> saved = new HashSet<>();
+    private FileChannel journal;
+    private boolean closed;
+
+    private Journal(String name, ReentrantLock threadLock, FileChannel lockChannel, FileLock fileLock) {
+        this.name = name;
+        this.threadLock = threadLock;
+        this.lockChannel = lockChannel;
+        this.fileLock = fileLock;
+    }
+
+    public static File getJournalDir() {
+        return new File(System.getProperty("user.home") + "/.jars/journal/");
+    }
+
+    private static Path getJournalPath(String name) {
+        return getJournalDir().toPath().resolve(name + ".journal");
+    }
+
+    private static Path getBackupDir(String name) {
+        return getJournalDir().toPath().resolve(name);
+    }
+
+    /**
+     * Takes the lock of the tool, waiting for any other operation on it, rolls back an
+     * interrupted operation and starts the journal of a new one.
+     */
+    public static Journal begin(String name, String operation, PrintStream printStream) throws IOException {
+        return begin(name, operation, printStream, true);
+    }
+
+    /**
+     * Same as {@link #begin(String, String, PrintStream)}, but without waiting when
+     * wait is false.
+     *
+     * @return the journal, null if another operation on the tool holds the lock
+     */
+    private static Journal begin(String name, String operation, PrintStream printStream, boolean wait) throws IOException {
+        Path lockPath = getJournalDir().toPath().resolve(name + ".lock");
+        Files.createDirectories(lockPath.getParent());
+
+        ReentrantLock threadLock = LOCKS.computeIfAbsent(name, key -> new ReentrantLock());
+        if (!wait && !threadLock.tryLock()) {
+            return null;
+        } else if (wait) {
+            threadLock.lock();
+        }
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock = wait ? lockChannel.lock() : lockChannel.tryLock();
+            if (fileLock == null) {
+                lockChannel.close();
+                threadLock.unlock();
+                return null;
+            }
+
+            Journal journal = new Journal(name, threadLock, lockChannel, fileLock);
+            journal.rollBack(printStream);
+            journal.start(operation);
+            return journal;
+        } catch (IOException | RuntimeException ex) {
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+            threadLock.unlock();
+            throw ex;
+        }
+    }
+
+    /**
+     * Rolls back the interrupted operations of all tools. A journal whose lock is held
+     * belongs to an operation that is still running, which commits or rolls back itself.
+     */
+    public static void recover(PrintStream printStream) throws IOException {
+        String[] fileNames = getJournalDir().list();
+        if (fileNames == null) {
+            return;
+        }
+
+        for (String fileName : fileNames) {
+            if (fileName.endsWith(".journal")) {
+                String name = fileName.substring(0, fileName.length() - ".journal".length());
+                // Taking the lock rolls back, committing the empty operation removes the journal
+                try (Journal journal = begin(name, "recover", printStream, false)) {
+                    if (journal != null) {
+                        journal.commit();
+                    }
+                }
+            }
+        }
+    }
+
+    private void start(String operation) throws IOException {
+        Path journalPath = getJournalPath(name);
+        Path backupDir = getBackupDir(name);
+        Files.createDirectories(backupDir);
+
+        // Left by a run that died while committing
+        File[] leftovers = backupDir.toFile().listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                JarStore.unlink(leftover.toPath());
+            }
+        }
+
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        Optional<Registry.Entry> entry = Registry.get(name);
+        append(HEADER + operation + "\n" + "registry" + (entry.isPresent() ? "\t" + Registry.format(entry.get()) : "") + "\n");
+    }
+
+    /**
+     * Records path before it is replaced or deleted.
+     */
+    public void save(Path path) throws IOException {
+        save(path, false);
+    }
+
+    /**
+     * Records a jar linked into ~/.jars/store before it is replaced or deleted, so the
+     * store blob is released again when the saved copy is dropped.
+     */
+    public void saveJar(Path path) throws IOException {
+        save(path, true);
+    }
+
+    private void save(Path path, boolean jar) throws IOException {
+        path = path.toAbsolutePath();
+        if (!saved.add(path)) {
+            return;
+        }
+
+        if (Files.isSymbolicLink(path)) {
+            append("link\t" + path + "\t" + Files.readSymbolicLink(path) + "\n");
+            return;
+        }
+
+        String backup = ABSENT;
+        if (Files.exists(path)) {
+            Path backupPath = getBackupDir(name).resolve(Integer.toString(saved.size()));
+            try {
+                Files.createLink(backupPath, path);
+            } catch (UnsupportedOperationException | FileSystemException ex) {
+                Files.copy(path, backupPath, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            backup = backupPath.toString();
+        }
+        append("file\t" + (jar ? "jar" : "plain") + "\t" + path + "\t" + backup + "\n");
+    }
+
+    /**
+     * Commits the operation, the saved files are dropped.
+     */
+    public void commit() throws IOException {
+        List<String> lines = readRecords();
+        journal.close();
+        journal = null;
+        Files.delete(getJournalPath(name));
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            if (fields[0].equals("file") && !fields[3].equals(ABSENT)) {
+                drop(Paths.get(fields[3]), fields[1].equals("jar"));
+            }
+        }
+    }
+
+    /**
+     * Rolls back the operation unless it was committed, and releases the lock.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+                rollBack(new PrintStream(new ByteArrayOutputStream()));
+            }
+        } finally {
+            try {
+                fileLock.release();
+                lockChannel.close();
+            } finally {
+                threadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Puts back the files and registry entry recorded in the journal of the tool, if
+     * there is one.
+     */
+    private void rollBack(PrintStream printStream) throws IOException {
+        Path journalPath = getJournalPath(name);
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        // A record is written and forced before its change, so a record cut off by a
+        // crash had no change made yet and is left out, as is anything else unreadable
+        String content = new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>(Arrays.asList(content.split("\n", -1)));
+        lines.remove(lines.size() - 1);
+        String operation = lines.isEmpty() ? "" : lines.get(0).replace(HEADER, "");
+        List<String> records = lines.subList(Math.min(1, lines.size()), lines.size());
+
+        List<String> reversed = new ArrayList<>(records);
+        Collections.reverse(reversed);
+        for (String line : reversed) {
+            String[] fields = line.split("\t", 2);
+            if (fields[0].equals("file")) {
+                String[] file = line.split("\t");
+                if (file.length == 4) {
+                    restore(file);
+                }
+            } else if (fields[0].equals("link")) {
+                String[] link = line.split("\t");
+                if (link.length != 3) {
+                    continue;
+                }
+                Path path = Paths.get(link[1]);
+                drop(path, false);
+                Files.createSymbolicLink(path, Paths.get(link[2]));
+            } else if (fields[0].equals("registry")) {
+                if (fields.length > 1) {
+                    Registry.Entry entry;
+                    try {
+                        entry = Registry.parse(fields[1]);
+                    } catch (UncheckedIOException | NumberFormatException ex) {
+                        continue;
+                    }
+                    Registry.put(entry);
+                } else {
+                    Registry.remove(name);
+                }
+            }
+        }
+
+        Files.delete(journalPath);
+        if (!operation.equals("recover")) {
+            printStream.println("Rolled back the interrupted " + operation + " of " + name);
+        }
+    }
+
+    private static void restore(String[] fields) throws IOException {
+        boolean jar = fields[1].equals("jar");
+        Path path = Paths.get(fields[2]);
+
+        drop(path, jar);
+        if (!fields[3].equals(ABSENT)) {
+            Path backupPath = Paths.get(fields[3]);
+            if (Files.exists(backupPath)) {
+                Files.move(backupPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    private static void drop(Path path, boolean jar) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (jar) {
+            JarStore.unlink(path);
+        } else {
+            Files.delete(path);
+        }
+    }
+
+    private List<String> readRecords() throws IOException {
+        List<String> lines = Files.readAllLines(getJournalPath(name), StandardCharsets.UTF_8);
+        return lines.subList(Math.min(1, lines.size()), lines.size());
+    }
+
+    private void append(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(true);
+    }
+}
@@ -0,0 +1,182 @@
+package jarinstaller.impl;
+
+import jarinstaller.JarInstallerException;
+import jarinstaller.cmdline.RunRecorder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Named sets of JVM options for the launcher of a tool, chosen at install with
+ * --profile and kept in the registry.
+ *
+ * fast-startup is for short runs with a small heap and throughput for long batch runs.
+ * With auto the launcher reads the profile from ~/.jars/profiles/&lt;tool&gt;.auto,
+ * which {@link RunRecorder} keeps up to date from the wall time and peak RSS of recent
+ * runs. The recorder is a java agent and adds to the startup time, so the launcher
+ * only adds it to every run until there are enough runs to choose from and after
+ * that to one run in SAMPLE_INTERVAL.
+ */
+public class Profiles {
+
+    public static final String DEFAULT = RunRecorder.DEFAULT;
+    public static final String AUTO = "auto";
+
+    private static final int SAMPLE_INTERVAL = 10;
+
+    private static final Map<String, List<String>> OPTIONS = new LinkedHashMap<>();
+
+    static {
+        OPTIONS.put(RunRecorder.DEFAULT, Collections.emptyList());
+        OPTIONS.put(RunRecorder.FAST_STARTUP, Arrays.asList("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-Xshare:auto", "-Xms16m"));
+        OPTIONS.put(RunRecorder.THROUGHPUT, Arrays.asList("-XX:+UseParallelGC"));
+    }
+
+    public static List<String> getNames() {
+        List<String> names = new ArrayList<>(OPTIONS.keySet());
+        names.add(AUTO);
+        return names;
+    }
+
+    /**
+     * Returns the JVM options of the profile, for auto the ones of the profile it has
+     * chosen for the tool.
+     */
+    public static List<String> getOptions(String profile, String name) throws IOException {
+        if (AUTO.equals(profile)) {
+            profile = getAutoProfile(name);
+        }
+        return OPTIONS.getOrDefault(profile, Collections.emptyList());
+    }
+
+    public static void check(String profile) throws JarInstallerException {
+        if (!getNames().contains(profile)) {
+            throw new JarInstallerException("Unknown profile \"" + profile + "\", use " + String.join(", ", getNames()));
+        }
+    }
+
+    public static File getProfilesDir() {
+        return new File(System.getProperty("user.home") + "/.jars/profiles/");
+    }
+
+    /**
+     * Returns the profile auto has chosen for the tool so far.
+     */
+    public static String getAutoProfile(String name) throws IOException {
+        Path autoPath = getProfilesDir().toPath().resolve(name + ".auto");
+        if (!Files.exists(autoPath)) {
+            return DEFAULT;
+        }
+
+        String profile = new String(Files.readAllBytes(autoPath), StandardCharsets.UTF_8).trim().split(" ")[0];
+        return OPTIONS.containsKey(profile) ? profile : DEFAULT;
+    }
+
+    /**
+     * Returns the recorded runs of the tool, oldest first.
+     */
+    public static List<RunRecorder.Run> getRuns(String name) throws IOException {
+        Path runsPath = getProfilesDir().toPath().resolve(name + ".runs");
+        if (!Files.exists(runsPath)) {
+            return new ArrayList<>();
+        }
+        return RunRecorder.parse(new String(Files.readAllBytes(runsPath), StandardCharsets.UTF_8));
+    }
+
+    public static void remove(String name) throws IOException {
+        Files.deleteIfExists(getProfilesDir().toPath().resolve(name + ".auto"));
+        Files.deleteIfExists(getProfilesDir().toPath().resolve(name + ".runs"));
+    }
+
+    /**
+     * Returns the launcher lines that put the options of the profile auto has chosen,
+     * and the recorder when the run is sampled, in JARINSTALLER_JAVA_OPTIONS.
+     */
+    static String autoLauncherLines(String name) {
+        StringBuilder lines = new StringBuilder();
+        lines.append("JARINSTALLER_PROFILE=" + DEFAULT + "\n");
+        lines.append("JARINSTALLER_RUNS=0\n");
+        lines.append("[ -r \"${JARINSTALLER_PATH}profiles/" + name + ".auto\" ] && read -r JARINSTALLER_PROFILE JARINSTALLER_RUNS < \"${JARINSTALLER_PATH}profiles/" + name + ".auto\"\n");
+        lines.append("case \"$JARINSTALLER_PROFILE\" in\n");
+        for (Map.Entry<String, List<String>> profile : OPTIONS.entrySet()) {
+            if (!profile.getValue().isEmpty()) {
+                lines.append("    " + profile.getKey() + ") JARINSTALLER_JAVA_OPTIONS=(" + Utils.shellQuote(profile.getValue()).trim() + ") ;;\n");
+            }
+        }
+        lines.append("    *) JARINSTALLER_JAVA_OPTIONS=() ;;\n");
+        lines.append("esac\n");
+        lines.append("if [ \"${JARINSTALLER_RUNS:-0}\" -lt " + RunRecorder.AGREEING_RUNS + " ] || [ $((RANDOM % " + SAMPLE_INTERVAL + ")) -eq 0 ]; then\n");
+        lines.append("    JARINSTALLER_JAVA_OPTIONS+=(\"-javaagent:${JARINSTALLER_PATH}lib/jarinstaller-recorder.jar=${EPOCHREALTIME/[.,]/}\")\n");
+        lines.append("fi\n");
+        return lines.toString();
+    }
+
+    /**
+     * Writes ~/.jars/lib/jarinstaller-recorder.jar, an agent jar with nothing but the
+     * recorder so it is quick to load and can not clash with the classes of the tool.
+     */
+    static void installRecorder() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Premain-Class", RunRecorder.class.getName());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream output = new JarOutputStream(bytes)) {
+            // Fixed entry times so the jar only changes with the classes
+            JarEntry manifestEntry = new JarEntry(JarFile.MANIFEST_NAME);
+            manifestEntry.setTime(0);
+            output.putNextEntry(manifestEntry);
+            manifest.write(output);
+            output.closeEntry();
+
+            for (Class<?> recorderClass : Arrays.asList(RunRecorder.class, RunRecorder.Run.class)) {
+                String entryName = recorderClass.getName().replace('.', '/') + ".class";
+                JarEntry entry = new JarEntry(entryName);
+                entry.setTime(0);
+                output.putNextEntry(entry);
+                try (InputStream input = RunRecorder.class.getClassLoader().getResourceAsStream(entryName)) {
+                    byte[] buffer = new byte[1 << 13];
+                    int read;
+                    while ((read = input.read(buffer)) >= 0) {
+                        output.write(buffer, 0, read);
+                    }
+                }
+                output.closeEntry();
+            }
+        }
+
+        File libDir = Utils.getLibDir();
+        if (!libDir.exists()) {
+            libDir.mkdirs();
+        }
+
+        Path recorderPath = libDir.toPath().resolve("jarinstaller-recorder.jar");
+        if (Files.exists(recorderPath) && Arrays.equals(bytes.toByteArray(), Files.readAllBytes(recorderPath))) {
+            return;
+        }
+
+        Path tempPath = JarStore.tempPathFor(recorderPath);
+        try {
+            Files.write(tempPath, bytes.toByteArray());
+            Files.move(tempPath, recorderPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
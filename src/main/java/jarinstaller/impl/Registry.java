@@ -0,0 +1,248 @@
+package jarinstaller.impl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The registry of installed tools, ~/.jars/registry.
+ *
+ * One tab separated line per tool with name, jar, version, digest, size and install
+ * time followed by optional key=value attributes. Install and uninstall update the
+ * record of their tool so listing installed tools never has to look at ~/.jars/bin.
+ */
+public class Registry {
+
+    private static final String HEADER = "# jarinstaller registry 1";
+
+    public static class Entry {
+
+        public String name;
+        public String jar;
+        public String version;
+        public String digest;
+        public long size;
+        public String installed;
+        public Map<String, String> attributes = new TreeMap<>();
+
+        public Entry(String name, String jar, String version, String digest, long size, String installed) {
+            this.name = name;
+            this.jar = jar;
+            this.version = version;
+            this.digest = digest;
+            this.size = size;
+            this.installed = installed;
+        }
+    }
+
+    public static Path getRegistryPath() {
+        return new File(System.getProperty("user.home") + "/.jars/registry").toPath();
+    }
+
+    /**
+     * Returns the entries in name order. The stream reads the registry lazily and has to be closed.
+     */
+    public static Stream<Entry> entries() throws IOException {
+        Path registryPath = getRegistryPath();
+
+        if (!Files.exists(registryPath)) {
+            rebuild();
+        }
+
+        if (!Files.exists(registryPath)) {
+            return Stream.empty();
+        }
+
+        return Files.lines(registryPath, StandardCharsets.UTF_8)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .map(Registry::parse);
+    }
+
+    public static Optional<Entry> get(String name) throws IOException {
+        try (Stream<Entry> entries = entries()) {
+            return entries.filter(entry -> entry.name.equals(name)).findFirst();
+        }
+    }
+
+    /**
+     * Adds the entry, replacing any earlier entry with the same name.
+     */
+    public static void put(Entry entry) throws IOException {
+        update(entries -> entries.put(entry.name, entry));
+    }
+
+    public static void remove(String name) throws IOException {
+        update(entries -> entries.remove(name));
+    }
+
+    private interface Change {
+        void apply(Map<String, Entry> entries);
+    }
+
+    private static void update(Change change) throws IOException {
+        Path registryPath = getRegistryPath();
+        Files.createDirectories(registryPath.getParent());
+
+        // A file lock is held for the whole JVM, so threads in this JVM take turns first
+        synchronized (Registry.class) {
+            try (FileChannel lockChannel = FileChannel.open(registryPath.resolveSibling("registry.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                lockChannel.lock();
+
+                Map<String, Entry> entries = new TreeMap<>();
+                try (Stream<Entry> stream = entries()) {
+                    stream.forEach(entry -> entries.put(entry.name, entry));
+                }
+
+                change.apply(entries);
+                write(registryPath, entries.values());
+            }
+        }
+    }
+
+    private static void write(Path registryPath, Iterable<Entry> entries) throws IOException {
+        Path tempPath = JarStore.tempPathFor(registryPath);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Entry entry : entries) {
+                    writer.write(format(entry));
+                    writer.write('\n');
+                }
+            }
+            Files.move(tempPath, registryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Creates the registry from the scripts in ~/.jars/bin, for installs made before there was a registry.
+     */
+    private static void rebuild() throws IOException {
+        String[] scriptNames = Utils.getBinDir().list();
+        if (scriptNames == null || scriptNames.length == 0) {
+            return;
+        }
+
+        Map<String, Entry> entries = new TreeMap<>();
+        for (String scriptName : scriptNames) {
+            String jarFileName = Utils.getJarFileNameFor(scriptName);
+            if (jarFileName == null) {
+                continue;
+            }
+
+            Path jarPath = Utils.getJarsDir().toPath().resolve(jarFileName);
+            boolean exists = Files.exists(jarPath);
+            entries.put(scriptName, new Entry(
+                    scriptName,
+                    jarFileName,
+                    Utils.getNameAndVersion(jarFileName).version,
+                    exists ? JarStore.cachedDigest(jarPath) : "",
+                    exists ? Files.size(jarPath) : 0,
+                    exists ? Files.getLastModifiedTime(jarPath).toInstant().toString() : ""
+            ));
+        }
+
+        write(getRegistryPath(), entries.values());
+    }
+
+    static String format(Entry entry) {
+        List<String> fields = new ArrayList<>();
+        fields.add(entry.name);
+        fields.add(entry.jar);
+        fields.add(entry.version);
+        fields.add(entry.digest);
+        fields.add(Long.toString(entry.size));
+        fields.add(entry.installed);
+        for (Map.Entry<String, String> attribute : entry.attributes.entrySet()) {
+            fields.add(attribute.getKey() + "=" + attribute.getValue());
+        }
+
+        return fields.stream().map(Registry::escape).collect(Collectors.joining("\t"));
+    }
+
+    static Entry parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 6) {
+            throw new UncheckedIOException(new IOException("Corrupt line in " + getRegistryPath() + ": " + line));
+        }
+
+        Entry entry = new Entry(
+                unescape(fields[0]),
+                unescape(fields[1]),
+                unescape(fields[2]),
+                unescape(fields[3]),
+                Long.parseLong(fields[4]),
+                unescape(fields[5])
+        );
+
+        for (int i = 6; i < fields.length; i++) {
+            String attribute = unescape(fields[i]);
+            int separator = attribute.indexOf('=');
+            if (separator > 0) {
+                entry.attributes.put(attribute.substring(0, separator), attribute.substring(separator + 1));
+            }
+        }
+
+        return entry;
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Returns the entry as an ordered map of field name to value, used when printing entries.
+     */
+    public static Map<String, Object> toMap(Entry entry) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", entry.name);
+        map.put("jar", entry.jar);
+        map.put("version", entry.version);
+        map.put("digest", entry.digest);
+        map.put("size", entry.size);
+        map.put("installed", entry.installed);
+        map.putAll(entry.attributes);
+        return map;
+    }
+}
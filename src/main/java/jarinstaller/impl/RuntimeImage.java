@@ -0,0 +1,193 @@
+package jarinstaller.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runtime images with only the modules an installed jar needs, ~/.jars/runtimes/&lt;key&gt;/.
+ *
+ * The modules are found with jdeps of the JDK that does the install, run on the jar and
+ * its extracted dependency jars, and the image is linked with its jlink from the local
+ * jmods. The key is a digest of the JDK and the module names, so tools that need the
+ * same modules share an image and an image is linked again after a JDK upgrade. As
+ * jlink does not keep the class data sharing archive of the JDK it is dumped again in
+ * the image. An image is linked under a temp name and renamed into place, so an image
+ * directory that exists is always complete.
+ */
+public class RuntimeImage {
+
+    private static final long TOOL_TIMEOUT_SECONDS = 300;
+
+    public static File getRuntimesDir() {
+        return new File(System.getProperty("user.home") + "/.jars/runtimes/");
+    }
+
+    public static Path getJavaPath(String key) {
+        return getRuntimesDir().toPath().resolve(key).resolve("bin").resolve("java");
+    }
+
+    /**
+     * Returns the modules jarPath and the dependency jars in cachePath use, as jdeps
+     * finds them, with the extra modules added.
+     *
+     * @return the module names in order, empty if jdeps is missing or failed
+     */
+    public static Set<String> requiredModules(Path jarPath, Path cachePath, Collection<String> extraModules) throws IOException {
+        Path jdeps = getToolPath("jdeps");
+        if (!Files.isExecutable(jdeps)) {
+            return new TreeSet<>();
+        }
+
+        List<String> command = new ArrayList<>(Arrays.asList(jdeps.toString(),
+                "--print-module-deps", "--ignore-missing-deps", "-q",
+                "--multi-release", System.getProperty("java.specification.version"),
+                jarPath.toString()));
+        if (cachePath != null) {
+            try (Stream<Path> files = Files.list(cachePath)) {
+                files.filter(file -> file.getFileName().toString().endsWith(".jar"))
+                        .sorted()
+                        .forEach(file -> command.add(file.toString()));
+            }
+        }
+
+        String output = run(command);
+        Set<String> modules = new TreeSet<>();
+        if (output == null) {
+            return modules;
+        }
+
+        String[] lines = output.trim().split("\n");
+        for (String module : lines[lines.length - 1].split(",")) {
+            if (!module.trim().isEmpty()) {
+                modules.add(module.trim());
+            }
+        }
+        if (!modules.isEmpty()) {
+            modules.add("java.base");
+            modules.addAll(extraModules);
+        }
+        return modules;
+    }
+
+    /**
+     * Returns the key of the image with modules for the JDK of this JVM.
+     */
+    public static String getKey(Set<String> modules) {
+        MessageDigest digest = JarStore.newDigest();
+        digest.update((System.getProperty("java.home") + "\n" + System.getProperty("java.runtime.version") + "\n" + String.join(",", modules)).getBytes(StandardCharsets.UTF_8));
+        return JarStore.toHex(digest.digest()).substring(0, 16);
+    }
+
+    /**
+     * Links the image with modules unless there already is one.
+     *
+     * @return the key of the image, null if it could not be linked
+     */
+    public static String link(Set<String> modules) throws IOException {
+        String key = getKey(modules);
+        Path imagePath = getRuntimesDir().toPath().resolve(key);
+        if (Files.isExecutable(getJavaPath(key))) {
+            return key;
+        }
+
+        Path jlink = getToolPath("jlink");
+        if (!Files.isExecutable(jlink)) {
+            return null;
+        }
+
+        Files.createDirectories(imagePath.getParent());
+        Path tempPath = imagePath.resolveSibling("." + key + "." + System.nanoTime());
+        try {
+            String output = run(Arrays.asList(jlink.toString(),
+                    "--add-modules", String.join(",", modules),
+                    "--output", tempPath.toString(),
+                    "--strip-debug", "--no-header-files", "--no-man-pages"));
+            Path java = tempPath.resolve("bin").resolve("java");
+            if (output == null || !Files.isExecutable(java)) {
+                return null;
+            }
+
+            // Without an archive the classes of the JDK are parsed again at every start
+            run(Arrays.asList(java.toString(), "-Xshare:dump"));
+
+            try {
+                Files.move(tempPath, imagePath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // Fine if it was linked by someone else in the meantime
+                if (!Files.isExecutable(getJavaPath(key))) {
+                    throw ex;
+                }
+            }
+            return key;
+        } finally {
+            DependencyCache.delete(tempPath);
+        }
+    }
+
+    /**
+     * Removes the images no key in keys refers to.
+     */
+    public static void removeUnused(Collection<String> keys) throws IOException {
+        File[] images = getRuntimesDir().listFiles();
+        if (images == null) {
+            return;
+        }
+
+        for (File image : images) {
+            if (!image.getName().startsWith(".") && !keys.contains(image.getName())) {
+                DependencyCache.delete(image.toPath());
+            }
+        }
+    }
+
+    private static Path getToolPath(String name) {
+        return Paths.get(System.getProperty("java.home"), "bin", name);
+    }
+
+    /**
+     * Runs command and returns what it printed, null if it failed.
+     */
+    private static String run(List<String> command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        builder.redirectErrorStream(true);
+
+        Process process = builder.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = process.getInputStream()) {
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+
+        try {
+            if (!process.waitFor(TOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return null;
+            }
+            return process.exitValue() == 0 ? new String(output.toByteArray(), StandardCharsets.UTF_8) : null;
+        } catch (InterruptedException ex) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command, ex);
+        }
+    }
+}
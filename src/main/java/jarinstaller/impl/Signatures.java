@@ -0,0 +1,210 @@
+package jarinstaller.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarException;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Checks the signatures of signed jars once, at install.
+ *
+ * Every entry is read through a verifying {@link JarFile}, on a few threads that each
+ * have a part of the entries and a JarFile of their own, and has to be signed by the
+ * same signer. The verdict, who signed it, the digest of the jar that was checked and
+ * when, is kept in the attributes of the registry entry. {@link Utils#isInstalled(Path)}
+ * trusts it for as long as the cached digest of the jar is that digest. The JVM still verifies the
+ * entries of a signed jar as it loads them when the tool runs.
+ */
+public class Signatures {
+
+    private static final int MAX_THREADS = 8;
+
+    private static final int ENTRIES_PER_THREAD = 256;
+
+    public static class Verdict {
+
+        public final String signer;
+        public final String digest;
+        public final String checked;
+
+        public Verdict(String signer, String digest, String checked) {
+            this.signer = signer;
+            this.digest = digest;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * Reads every entry of the jar at jarPath and checks that it is signed, and not
+     * changed since, by the same signer.
+     *
+     * @param digest the digest of the jar, for the verdict
+     * @return the verdict, null if the jar is not signed
+     * @throws JarException if the jar is signed but an entry does not match its
+     * signature or is not signed
+     */
+    public static Verdict verify(Path jarPath, String digest) throws IOException {
+        List<String> names = new ArrayList<>();
+        boolean signed = false;
+        try (JarFile jarFile = new JarFile(jarPath.toFile(), false)) {
+            for (JarEntry entry : Collections.list(jarFile.entries())) {
+                if (!isSignatureFile(entry.getName())) {
+                    if (!entry.isDirectory()) {
+                        names.add(entry.getName());
+                    }
+                } else if (entry.getName().toUpperCase(Locale.ROOT).endsWith(".SF")) {
+                    signed = true;
+                }
+            }
+        }
+        if (!signed) {
+            return null;
+        }
+
+        int threads = Math.max(1, Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), names.size() / ENTRIES_PER_THREAD));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // A FutureTask, unlike the tasks of the pool, fails with the exception itself
+            List<FutureTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                List<String> part = names.subList(names.size() * i / threads, names.size() * (i + 1) / threads);
+                FutureTask<String> task = new FutureTask<>(() -> verify(jarPath, part));
+                pool.execute(task);
+                tasks.add(task);
+            }
+
+            String signer = null;
+            for (FutureTask<String> task : tasks) {
+                String partSigner = task.get();
+                if (signer != null && partSigner != null && !signer.equals(partSigner)) {
+                    throw new JarException("it is signed by both " + signer + " and " + partSigner);
+                }
+                signer = signer == null ? partSigner : signer;
+            }
+            if (signer == null) {
+                throw new JarException("it has signature files but no signed entries");
+            }
+
+            return new Verdict(signer, digest, Instant.now().toString());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof SecurityException) {
+                throw new JarException(ex.getCause().getMessage());
+            }
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying the signature of " + jarPath, ex);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the entries called names in the jar at jarPath to their end, which checks them
+     * against the signature.
+     *
+     * @return the signer of the entries, null if names is empty
+     */
+    private static String verify(Path jarPath, List<String> names) throws IOException {
+        String signer = null;
+        byte[] buffer = new byte[64 * 1024];
+        try (JarFile jarFile = new JarFile(jarPath.toFile(), true)) {
+            for (String name : names) {
+                JarEntry entry = jarFile.getJarEntry(name);
+                try (InputStream input = jarFile.getInputStream(entry)) {
+                    while (input.read(buffer) != -1) {
+                    }
+                }
+
+                CodeSigner[] signers = entry.getCodeSigners();
+                if (signers == null || signers.length == 0) {
+                    throw new JarException(name + " is not signed");
+                }
+                String entrySigner = signerOf(signers[0]);
+                if (signer != null && !signer.equals(entrySigner)) {
+                    throw new JarException("it is signed by both " + signer + " and " + entrySigner);
+                }
+                signer = entrySigner;
+            }
+        }
+        return signer;
+    }
+
+    private static String signerOf(CodeSigner codeSigner) {
+        Certificate certificate = codeSigner.getSignerCertPath().getCertificates().get(0);
+        return certificate instanceof X509Certificate
+                ? ((X509Certificate) certificate).getSubjectX500Principal().getName()
+                : certificate.toString();
+    }
+
+    /**
+     * True for the files in META-INF a signature consists of, which are not signed themselves.
+     */
+    static boolean isSignatureFile(String name) {
+        String upperName = name.toUpperCase(Locale.ROOT);
+        if (!upperName.startsWith("META-INF/") || upperName.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+
+        return upperName.equals(JarFile.MANIFEST_NAME)
+                || upperName.endsWith(".SF")
+                || upperName.endsWith(".RSA")
+                || upperName.endsWith(".DSA")
+                || upperName.endsWith(".EC")
+                || upperName.startsWith("META-INF/SIG-");
+    }
+
+    /**
+     * Returns the verdict kept in the attributes of entry, null if it has none.
+     */
+    public static Verdict of(Registry.Entry entry) {
+        String signer = entry.attributes.get("signer");
+        if (signer == null) {
+            return null;
+        }
+        return new Verdict(signer, entry.attributes.get("signed-digest"), entry.attributes.get("signature-checked"));
+    }
+
+    /**
+     * Returns the digest the jar at targetPath in ~/.jars/jars had when its signature
+     * was checked, null if it was not signed.
+     */
+    static String getSignedDigest(Path targetPath) throws IOException {
+        try (Stream<Registry.Entry> entries = Registry.entries()) {
+            return entries.filter(entry -> entry.jar.equals(targetPath.getFileName().toString()))
+                    .map(Signatures::of)
+                    .filter(verdict -> verdict != null)
+                    .map(verdict -> verdict.digest)
+                    .findFirst().orElse(null);
+        }
+    }
+
+    public static void put(Registry.Entry entry, Verdict verdict) {
+        entry.attributes.put("signer", verdict.signer);
+        entry.attributes.put("signed-digest", verdict.digest);
+        entry.attributes.put("signature-checked", verdict.checked);
+    }
+
+    public static void remove(Registry.Entry entry) {
+        entry.attributes.remove("signer");
+        entry.attributes.remove("signed-digest");
+        entry.attributes.remove("signature-checked");
+    }
+}
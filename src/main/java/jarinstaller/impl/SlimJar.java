@@ -0,0 +1,320 @@
+package jarinstaller.impl;
+
+import jarinstaller.cmdline.classpath.DependencyLoader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Leaves the dependency jars a jar does not use out of the copy installed with --slim.
+ *
+ * A dependency jar is used when it has a class reachable from the Main-Class, or from
+ * the classes recorded by an earlier run with --preload. References are found in the
+ * constant pools of the classes: class entries, type descriptors and signatures, and
+ * strings that are the names of classes, which covers Class.forName with a literal.
+ * Jars with service providers and jars without classes are always kept, as their use
+ * can not be seen in the code. The full jar is kept in ~/.jars/originals so it can be
+ * installed again with everything if a class turns out to be missing.
+ */
+public class SlimJar {
+
+    private static final String VERSIONS = "META-INF/versions/";
+
+    private static final int OUTER_JAR = -1;
+
+    /**
+     * A class file in the outer jar or in one of its dependency jars.
+     */
+    private static class ClassFile {
+
+        final int jar;
+        final ZipDirectory directory;
+        final ZipDirectory.Entry entry;
+
+        ClassFile(int jar, ZipDirectory directory, ZipDirectory.Entry entry) {
+            this.jar = jar;
+            this.directory = directory;
+            this.entry = entry;
+        }
+    }
+
+    public static File getOriginalsDir() {
+        return new File(System.getProperty("user.home") + "/.jars/originals/");
+    }
+
+    /**
+     * Returns the class names a run recorded for --preload, empty if there are none.
+     */
+    public static List<String> recordedClasses(Path listPath) throws IOException {
+        List<String> classNames = new ArrayList<>();
+        if (Files.isRegularFile(listPath)) {
+            for (String line : Files.readAllLines(listPath, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    classNames.add(line);
+                }
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * Returns the entry names of the dependency jars in jarPath that no reachable class
+     * is in, in the order of the jar.
+     */
+    public static List<String> unusedDependencies(Path jarPath, Manifest manifest, Collection<String> recordedClasses) throws IOException {
+        ZipDirectory outer = ZipDirectory.map(jarPath);
+
+        List<String> dependencies = new ArrayList<>();
+        Map<String, List<ClassFile>> classes = new HashMap<>();
+        Set<Integer> used = new HashSet<>();
+
+        for (ZipDirectory.Entry entry : outer.entries()) {
+            if (isDependency(entry.name)) {
+                int jar = dependencies.size();
+                dependencies.add(entry.name);
+
+                ZipDirectory nested = ZipDirectory.read(entry.method == ZipDirectory.STORED
+                        ? outer.data(entry)
+                        : ByteBuffer.wrap(outer.read(entry)));
+                boolean hasClasses = false;
+                for (ZipDirectory.Entry nestedEntry : nested.entries()) {
+                    if (nestedEntry.name.startsWith("META-INF/services/") && !nestedEntry.isDirectory()) {
+                        used.add(jar);
+                    }
+                    hasClasses |= addClass(classes, new ClassFile(jar, nested, nestedEntry));
+                }
+                if (!hasClasses) {
+                    used.add(jar);
+                }
+            } else {
+                addClass(classes, new ClassFile(OUTER_JAR, outer, entry));
+            }
+        }
+
+        Deque<String> pending = new ArrayDeque<>();
+        for (String attribute : new String[] { "Main-Class", "Launcher-Agent-Class" }) {
+            String className = manifest.getMainAttributes().getValue(attribute);
+            if (className != null) {
+                pending.add(className.trim().replace('.', '/'));
+            }
+        }
+        for (String className : recordedClasses) {
+            pending.add(className.replace('.', '/'));
+        }
+
+        Set<String> reached = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String className = pending.poll();
+            List<ClassFile> classFiles = classes.get(className);
+            if (classFiles == null || !reached.add(className)) {
+                continue;
+            }
+
+            for (ClassFile classFile : classFiles) {
+                if (classFile.jar != OUTER_JAR) {
+                    used.add(classFile.jar);
+                }
+            }
+
+            ClassFile classFile = classFiles.get(0);
+            for (String reference : references(classFile.directory.read(classFile.entry))) {
+                if (classes.containsKey(reference) && !reached.contains(reference)) {
+                    pending.add(reference);
+                }
+            }
+        }
+
+        List<String> unused = new ArrayList<>();
+        for (int jar = 0; jar < dependencies.size(); jar++) {
+            if (!used.contains(jar)) {
+                unused.add(dependencies.get(jar));
+            }
+        }
+        return unused;
+    }
+
+    private static boolean isDependency(String name) {
+        if (!name.startsWith(DependencyCache.DEPENDENCIES)) {
+            return false;
+        }
+        String jarName = name.substring(DependencyCache.DEPENDENCIES.length());
+        return jarName.endsWith(".jar") && !jarName.contains("/");
+    }
+
+    /**
+     * Adds the class of the entry, if it is one, by its internal name. Versioned classes
+     * of multi-release jars count as the class they replace.
+     */
+    private static boolean addClass(Map<String, List<ClassFile>> classes, ClassFile classFile) {
+        String name = classFile.entry.name;
+        if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+            return false;
+        }
+
+        if (name.startsWith(VERSIONS)) {
+            int slash = name.indexOf('/', VERSIONS.length());
+            if (slash < 0) {
+                return false;
+            }
+            name = name.substring(slash + 1);
+        }
+
+        classes.computeIfAbsent(name.substring(0, name.length() - ".class".length()), key -> new ArrayList<>(1)).add(classFile);
+        return true;
+    }
+
+    /**
+     * Returns the possible class names, internal form, in the constant pool of a class.
+     * Every UTF-8 constant is looked at, which is more than the class needs but does not
+     * miss names that are only in descriptors, signatures and annotations.
+     */
+    static Set<String> references(byte[] classBytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(classBytes));
+        if (input.readInt() != 0xCAFEBABE) {
+            return Collections.emptySet();
+        }
+        input.readUnsignedShort();
+        input.readUnsignedShort();
+
+        Set<String> references = new HashSet<>();
+        int count = input.readUnsignedShort();
+        for (int i = 1; i < count; i++) {
+            int tag = input.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    addReferences(input.readUTF(), references);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    input.skipBytes(4);
+                    break;
+                case 5: case 6:
+                    input.skipBytes(8);
+                    i++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20:
+                    input.skipBytes(2);
+                    break;
+                case 15:
+                    input.skipBytes(3);
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        return references;
+    }
+
+    private static void addReferences(String constant, Set<String> references) {
+        references.add(constant);
+        if (constant.indexOf('.') > 0) {
+            references.add(constant.replace('.', '/'));
+        }
+
+        for (int start = constant.indexOf('L'); start >= 0; start = constant.indexOf('L', start + 1)) {
+            int end = constant.indexOf(';', start);
+            if (end < 0) {
+                break;
+            }
+            references.add(constant.substring(start + 1, end));
+        }
+    }
+
+    /**
+     * Writes jarPath to slimPath without the dropped entries, and without them in the
+     * dependencies index if it has one.
+     */
+    public static void write(Path jarPath, Collection<String> dropped, Path slimPath) throws IOException {
+        Set<String> droppedNames = new HashSet<>(dropped);
+
+        try (ZipFile zip = new ZipFile(jarPath.toFile());
+                ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(slimPath))) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (droppedNames.contains(entry.getName())) {
+                    continue;
+                }
+
+                ZipEntry copy = new ZipEntry(entry.getName());
+                copy.setTime(entry.getTime());
+
+                try (InputStream input = zip.getInputStream(entry)) {
+                    if (entry.getName().equals(DependencyLoader.DEPENDENCIES_INDEX)) {
+                        byte[] index = withoutLines(readAll(input), droppedNames);
+                        putEntry(output, copy, entry.getMethod(), index);
+                        continue;
+                    }
+
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        copy.setMethod(ZipEntry.STORED);
+                        copy.setSize(entry.getSize());
+                        copy.setCompressedSize(entry.getSize());
+                        copy.setCrc(entry.getCrc());
+                    }
+                    output.putNextEntry(copy);
+                    copy(input, output);
+                    output.closeEntry();
+                }
+            }
+        }
+    }
+
+    private static void putEntry(ZipOutputStream output, ZipEntry entry, int method, byte[] bytes) throws IOException {
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        output.putNextEntry(entry);
+        output.write(bytes);
+        output.closeEntry();
+    }
+
+    private static byte[] withoutLines(byte[] bytes, Set<String> lines) {
+        StringBuilder content = new StringBuilder();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (!lines.contains(line.trim())) {
+                content.append(line).append('\n');
+            }
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(input, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+    }
+}
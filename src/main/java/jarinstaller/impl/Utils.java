@@ -1,47 +1,130 @@
 package jarinstaller.impl;
 
 import jarinstaller.JarInstallerException;
+import jarinstaller.cmdline.classpath.ClassPreloader;
+import jarinstaller.cmdline.classpath.DependencyLoader;
+import jarinstaller.cmdline.daemon.Server;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import static java.util.Arrays.asList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.jar.JarInputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarException;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import static java.util.regex.Pattern.MULTILINE;
 
 public class Utils {
 
+    private static final int MAX_INSTALL_THREADS = 8;
+
+    private static final String DAEMON_CLIENT = "jarinstaller.cmdline.daemon.Client";
+    private static final List<String> DAEMON_CLIENT_OPTIONS = asList("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-Xshare:auto");
+
+    private static final List<String> JAR_ONLY_ATTRIBUTES = asList("Class-Path", "Launcher-Agent-Class", "Add-Opens", "Add-Exports", "Enable-Native-Access", "SplashScreen-Image");
+
+    private static final Pattern TEMPLATE_KEY = Pattern.compile("\\{\\{(\\w+)}}");
+
+    /**
+     * The launcher script. It runs the java that did the install, or java in the PATH
+     * if that has been removed, and execs it so no bash is left waiting for the JVM.
+     * The java arguments are in ~/.jars/launch/&lt;name&gt;.args on JDK 9 and later.
+     */
+    private static final String LAUNCHER_TEMPLATE =
+        "#!/bin/bash\n" +
+        "\n" +
+        "export JARINSTALLER_PATH=~/.jars/\n" +
+        "export JARINSTALLER_JAR_PATH={{jarPath}}\n" +
+        "export JARINSTALLER_SCRIPT_PATH={{scriptPath}}\n" +
+        "{{cacheLine}}" +
+        "{{preloadLine}}" +
+        "{{slimLine}}" +
+        "JARINSTALLER_JAVA={{java}}\n" +
+        "[ -x \"$JARINSTALLER_JAVA\" ] || JARINSTALLER_JAVA=java\n" +
+        "\n" +
+        "if [ -n \"$JARINSTALLER_TRACE\" ]; then\n" +
+        "    JARINSTALLER_LAUNCH_US=${EPOCHREALTIME/[.,]/}\n" +
+        "    [ -n \"$JARINSTALLER_LAUNCH_US\" ] || JARINSTALLER_LAUNCH_US=$(( $(date +%s) * 1000000 ))\n" +
+        "    export JARINSTALLER_LAUNCH_US\n" +
+        "    JARINSTALLER_TRACE_LINE=\"{\\\"phase\\\":\\\"launcher\\\",\\\"tool\\\":\\\"{{name}}\\\",\\\"epochUs\\\":$JARINSTALLER_LAUNCH_US}\"\n" +
+        "    case \"$JARINSTALLER_TRACE\" in\n" +
+        "        0|false) ;;\n" +
+        "        1|true|stderr) echo \"$JARINSTALLER_TRACE_LINE\" >&2 ;;\n" +
+        "        *) echo \"$JARINSTALLER_TRACE_LINE\" >> \"$JARINSTALLER_TRACE\" ;;\n" +
+        "    esac\n" +
+        "fi\n" +
+        "\n" +
+        "{{profileLines}}" +
+        "exec \"$JARINSTALLER_JAVA\" {{arguments}}\"$@\"\n";
+
     public static Path getTargetPath(Path path) {
         File targetDir = new File("~/.jars/jars/".replaceFirst("^~", System.getProperty("user.home")));
         return targetDir.toPath().resolve(path.getFileName());
     }
     
     public static boolean hasMainClassInManifest(Path jarPath) throws JarInstallerException {
+        Manifest manifest = readManifest(jarPath);
+        return manifest != null && manifest.getMainAttributes().getValue("Main-class") != null;
+    }
+    
+    /**
+     * Reads the manifest through the central directory of the jar, so only the manifest
+     * entry is inflated no matter how large the jar is.
+     *
+     * @return the manifest, or null if the jar has none
+     */
+    public static Manifest readManifest(Path jarPath) throws JarInstallerException {
         try {
-            JarInputStream jarStream = new JarInputStream(new FileInputStream(jarPath.toFile()));
-            Manifest mf = jarStream.getManifest();
-            String mainClass = mf.getMainAttributes().getValue("Main-class");
-            
-            return mainClass != null;
-        } catch (FileNotFoundException ex) {
+            if (Files.size(jarPath) > Integer.MAX_VALUE) {
+                // Too large to map, JarFile reads the central directory too
+                try (JarFile jarFile = new JarFile(jarPath.toFile(), false)) {
+                    return jarFile.getManifest();
+                }
+            }
+
+            ZipDirectory directory = ZipDirectory.map(jarPath, "META-INF/");
+            for (ZipDirectory.Entry entry : directory.entries()) {
+                if (entry.name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    try (InputStream input = directory.open(entry)) {
+                        return new Manifest(input);
+                    }
+                }
+            }
+            return null;
+        } catch (IOException ex) {
             throw new JarInstallerException(ex);
-        } catch (IOException ioex) {
-            throw new JarInstallerException(ioex);
         }
     }
     
@@ -62,12 +145,12 @@ public class Utils {
         }
     }
     
+    static Pattern jarPathPattern = Pattern.compile("JARINSTALLER_JAR_PATH=(.*)$", MULTILINE);
+    
     public static String getJarFileNameFor(String scriptFileName) throws IOException {
-        Pattern pattern = Pattern.compile("JARINSTALLER_JAR_PATH=(.*)$", MULTILINE);
-        
         String bashScript = new String(Files.readAllBytes(getBinDir().toPath().resolve(scriptFileName)), "UTF-8");
             
-        Matcher matcher = pattern.matcher(bashScript);
+        Matcher matcher = jarPathPattern.matcher(bashScript);
         if (matcher.find()) {
             String path = matcher.group(1);
             return new File(path).toPath().getFileName().toString();
@@ -77,6 +160,12 @@ public class Utils {
     }
     
     public static Path getJarPathAtBottomOfStack() throws JarInstallerException {
+        // In a daemon the bottom of the stack is the daemon, not the installed jar
+        String daemonJarPath = System.getProperty("jarinstaller.daemon.jar");
+        if (daemonJarPath != null) {
+            return Paths.get(daemonJarPath);
+        }
+
         try {
             StackTraceElement[] elements = Thread.currentThread().getStackTrace();
             return getJarPathFor(Class.forName(elements[elements.length -1].getClassName()));
@@ -85,10 +174,10 @@ public class Utils {
         }
     }
     
-    public static boolean isInstalled(Path jarPath) {
+    public static boolean isInstalled(Path jarPath) throws JarInstallerException {
         Path targetPath = Utils.getTargetPath(jarPath); 
 
-        if (!Files.exists(jarPath) && !Files.exists(targetPath)) {
+        if (!Files.exists(jarPath) || !Files.exists(targetPath)) {
             return false;
         }
 
@@ -96,7 +185,23 @@ public class Utils {
             return false;
         }
 
-        return true;
+        try {
+            // A signed jar is trusted while it has the digest it had when its signature was
+            // checked. The cached digest is enough here, the JVM still checks each signed
+            // entry against its signature as it is loaded
+            String signedDigest = Signatures.getSignedDigest(targetPath);
+            if (signedDigest != null && !signedDigest.equals(JarStore.cachedDigest(targetPath))) {
+                return false;
+            }
+
+            if (Files.isSameFile(jarPath, targetPath)) {
+                return true;
+            }
+
+            return JarStore.cachedDigest(jarPath).equals(JarStore.cachedDigest(targetPath));
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
     }
     
     
@@ -109,70 +214,831 @@ public class Utils {
     }
     
     public static boolean install(Path jarPath, PrintStream printStream, boolean installingSelf) throws JarInstallerException {
+        return install(jarPath, printStream, installingSelf, new InstallOptions());
+    }
+    
+    public static boolean install(Path jarPath, PrintStream printStream, boolean installingSelf, InstallOptions options) throws JarInstallerException {
+        installJar(jarPath, printStream, installingSelf, options);
+        addBinDirToPath(printStream);
+        return true;
+    }
+    
+    /**
+     * Installs the jars on a bounded number of threads. A failing jar does not stop the
+     * others, the output of each jar is printed in one piece when it is done and
+     * ~/.profile is updated once at the end.
+     *
+     * @return the jars that could not be installed and why, empty if all were installed
+     */
+    public static Map<Path, JarInstallerException> install(Collection<Path> jarPaths, PrintStream printStream, InstallOptions options) throws JarInstallerException {
+        Set<Path> uniquePaths = new LinkedHashSet<>();
+        for (Path jarPath : jarPaths) {
+            uniquePaths.add(jarPath.toAbsolutePath().normalize());
+        }
+
+        int threads = Math.max(1, Math.min(uniquePaths.size(), Math.min(Runtime.getRuntime().availableProcessors(), MAX_INSTALL_THREADS)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<Path, Future<?>> futures = new LinkedHashMap<>();
         try {
-            if (Files.isDirectory(jarPath) || !Files.exists(jarPath)) {
-                throw new JarInstallerException("Install should only be called from inside a JAR file, path: " + jarPath);
+            for (Path jarPath : uniquePaths) {
+                futures.put(jarPath, executor.submit(() -> {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    try {
+                        installJar(jarPath, new PrintStream(output, true), false, options);
+                    } finally {
+                        synchronized (printStream) {
+                            printStream.print(output.toString());
+                        }
+                    }
+                    return null;
+                }));
             }
-            
-            if (! Utils.hasMainClassInManifest(jarPath)) {
-                throw new JarInstallerException("Jar file Manifest does not have Main-class, " + jarPath);
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<Path, JarInstallerException> failures = new LinkedHashMap<>();
+        for (Map.Entry<Path, Future<?>> future : futures.entrySet()) {
+            try {
+                future.getValue().get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                failures.put(future.getKey(), cause instanceof JarInstallerException
+                        ? (JarInstallerException) cause
+                        : new JarInstallerException(cause.toString(), cause instanceof Exception ? (Exception) cause : ex));
+            } catch (InterruptedException ex) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new JarInstallerException("Interrupted while installing", ex);
             }
+        }
+
+        if (failures.size() < uniquePaths.size()) {
+            addBinDirToPath(printStream);
+        }
+
+        printStream.println();
+        printStream.println("Installed " + (uniquePaths.size() - failures.size()) + " of " + uniquePaths.size() + " jars");
+        for (Map.Entry<Path, JarInstallerException> failure : failures.entrySet()) {
+            printStream.println("    Failed " + failure.getKey() + ", " + failure.getValue().getMessage());
+        }
+
+        return failures;
+    }
+    
+    /**
+     * Installs the jar read from input as the tool name, or the Implementation-Title of
+     * its manifest when name is null. The jar is read once, straight into ~/.jars/store.
+     */
+    public static boolean install(InputStream input, String name, PrintStream printStream, InstallOptions options) throws JarInstallerException {
+        checkOptions(options);
+        if (options.link) {
+            throw new JarInstallerException("A jar read from stdin can not be installed with --link");
+        }
+        if (name != null) {
+            checkName(name);
+        }
+
+        try (JarStore.Staged staged = stage(input, "stdin")) {
+            if (staged.manifest == null || staged.manifest.getMainAttributes().getValue("Main-class") == null) {
+                throw new JarInstallerException("Jar file Manifest does not have Main-class, stdin");
+            }
+
+            String title = staged.manifest.getMainAttributes().getValue("Implementation-Title");
+            if (name == null && title == null) {
+                throw new JarInstallerException("The jar has no Implementation-Title, give the name to install it as with --name=NAME");
+            }
+            if (name == null) {
+                name = title.trim().toLowerCase().replaceAll("[^a-z0-9._+-]+", "-");
+                checkName(name);
+            }
+
+            String version = staged.manifest.getMainAttributes().getValue("Implementation-Version");
+            version = version == null ? "" : version.trim();
+            String jarName = name + (version.isEmpty() ? "" : "-" + Versions.versionKey(version, "")) + ".jar";
+            Signatures.Verdict verdict = checkSignature(staged, "stdin", options);
+            installJar(staged, null, staged.manifest, staged.digest, verdict, jarName, new NameAndVersion(name, version), "stdin", printStream, options);
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
 
-            File targetDir = getJarsDir();
-            File targetBinDir = getBinDir();
+        addBinDirToPath(printStream);
+        return true;
+    }
 
-            if (!targetDir.exists()) {
-                targetDir.mkdirs();
+    private static void installJar(Path jarPath, PrintStream printStream, boolean installingSelf, InstallOptions options) throws JarInstallerException {
+        if (Files.isDirectory(jarPath) || !Files.exists(jarPath)) {
+            throw new JarInstallerException("Install should only be called from inside a JAR file, path: " + jarPath);
+        }
+        checkOptions(options);
+
+        NameAndVersion nameAndVersion = getNameAndVersion(jarPath.toString());
+        String jarName = jarPath.getFileName().toString();
+        String source = installingSelf ? "self" : jarPath.toString();
+        try {
+            if (options.link) {
+                // Nothing is copied, the manifest comes from the central directory
+                String digest = JarStore.cachedDigest(jarPath);
+                Signatures.Verdict verdict = checkSignature(jarPath, digest, source, options);
+                installJar(null, jarPath, readManifest(jarPath), digest, verdict, jarName, nameAndVersion, source, printStream, options);
+                return;
             }
 
-            if (!targetBinDir.exists()) {
-                targetBinDir.mkdirs();
+            try (InputStream input = Files.newInputStream(jarPath); JarStore.Staged staged = stage(input, jarPath.toString())) {
+                Signatures.Verdict verdict = checkSignature(staged, source, options);
+                installJar(staged, null, staged.manifest, staged.digest, verdict, jarName, nameAndVersion, source, printStream, options);
             }
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+    }
 
-            Path targetPath = targetDir.toPath().resolve(jarPath.getFileName());
+    private static void checkOptions(InstallOptions options) throws JarInstallerException {
+        if (options.cds && options.daemon) {
+            throw new JarInstallerException("A jar can not be installed with both --cds and --daemon");
+        }
+        Profiles.check(options.profile);
+        if (options.daemon && !Profiles.DEFAULT.equals(options.profile)) {
+            throw new JarInstallerException("A jar can not be installed with both --profile and --daemon");
+        }
+        if (options.daemon && options.runtime) {
+            throw new JarInstallerException("A jar can not be installed with both --runtime and --daemon");
+        }
+        if (options.link && options.slim) {
+            throw new JarInstallerException("A jar can not be installed with both --link and --slim");
+        }
+        if (options.link && options.daemon) {
+            throw new JarInstallerException("A jar can not be installed with both --link and --daemon");
+        }
+        if (options.requireSigned && options.slim) {
+            throw new JarInstallerException("A jar can not be installed with both --require-signed and --slim");
+        }
+    }
 
-            Files.copy(jarPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            if (installingSelf) {
-                printStream.println("Copied self to ~/.jars/jars/" + jarPath.getFileName());
+    /**
+     * Checks the signature of a staged jar, before it is linked into ~/.jars. Only jars
+     * that have a signature file are read again.
+     *
+     * @return the verdict, null if the jar is not signed
+     */
+    private static Signatures.Verdict checkSignature(JarStore.Staged staged, String source, InstallOptions options) throws JarInstallerException, IOException {
+        if (!staged.signed) {
+            if (options.requireSigned) {
+                throw new JarInstallerException(source + " is not signed and --require-signed was given");
+            }
+            return null;
+        }
+        return checkSignature(staged.getPath(), staged.digest, source, options);
+    }
+
+    /**
+     * Checks the signature of the jar at jarPath, once and before it is installed. A
+     * signed jar that does not match its signature is refused, and so is an unsigned
+     * jar when options require a signed one.
+     *
+     * @return the verdict, null if the jar is not signed
+     */
+    private static Signatures.Verdict checkSignature(Path jarPath, String digest, String source, InstallOptions options) throws JarInstallerException, IOException {
+        Signatures.Verdict verdict;
+        try {
+            verdict = Signatures.verify(jarPath, digest);
+        } catch (JarException | SecurityException ex) {
+            throw new JarInstallerException("The signature of " + source + " is not valid, " + ex.getMessage(), ex);
+        }
+
+        if (verdict == null && options.requireSigned) {
+            throw new JarInstallerException(source + " is not signed and --require-signed was given");
+        }
+        return verdict;
+    }
+
+    private static void checkName(String name) throws JarInstallerException {
+        if (!name.matches("[A-Za-z0-9_+][A-Za-z0-9._+-]*")) {
+            throw new JarInstallerException("\"" + name + "\" can not be used as a command name");
+        }
+    }
+
+    /**
+     * Reads the jar from input into the store, see {@link JarStore#stage(InputStream)}.
+     */
+    private static JarStore.Staged stage(InputStream input, String source) throws JarInstallerException, IOException {
+        try {
+            return JarStore.stage(input);
+        } catch (ZipException ex) {
+            throw new JarInstallerException("Not a valid jar file, " + source + ", " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Installs a staged jar, or links linkedPath for --link, as jarName. Source is what
+     * the messages call it and verdict is the checked signature of the jar, or null.
+     */
+    private static void installJar(JarStore.Staged staged, Path linkedPath, Manifest manifest, String digest, Signatures.Verdict verdict, String jarName, NameAndVersion nameAndVersion, String source, PrintStream printStream, InstallOptions options) throws JarInstallerException {
+        try {
+            if (manifest == null || manifest.getMainAttributes().getValue("Main-class") == null) {
+                throw new JarInstallerException("Jar file Manifest does not have Main-class, " + source);
+            }
+
+            String version = nameAndVersion.version;
+            if (version.isEmpty() && manifest.getMainAttributes().getValue("Implementation-Version") != null) {
+                version = manifest.getMainAttributes().getValue("Implementation-Version");
+            }
+            String versionKey = Versions.versionKey(version, digest);
+
+            List<Registry.Entry> prunedVersions;
+            try (Journal journal = Journal.begin(nameAndVersion.name, "install", printStream)) {
+                Optional<Registry.Entry> previous = Registry.get(nameAndVersion.name);
+                File targetDir = getJarsDir();
+
+                if (!targetDir.exists()) {
+                    targetDir.mkdirs();
+                }
+
+                Path targetPath = targetDir.toPath().resolve(jarName);
+                Path versionDir = Versions.getVersionDir(nameAndVersion.name, versionKey);
+                Path versionJarPath = versionDir.resolve(jarName);
+                Path originalPath = SlimJar.getOriginalsDir().toPath().resolve(jarName);
+                journal.save(Versions.getCurrentPath(nameAndVersion.name));
+                journal.saveJar(targetPath);
+                journal.saveJar(versionJarPath);
+                journal.saveJar(originalPath);
+                journal.save(Versions.getEntryPath(versionDir));
+                Files.createDirectories(versionDir);
+
+                Path slimPath = options.slim ? writeSlimJar(staged, nameAndVersion.name, targetPath, originalPath, printStream) : null;
+                JarStore.Result result;
+                try {
+                    if (linkedPath != null) {
+                        result = JarStore.symlink(linkedPath, versionJarPath);
+                    } else {
+                        result = slimPath != null ? JarStore.link(slimPath, versionJarPath) : staged.link(versionJarPath);
+                    }
+                } finally {
+                    if (slimPath != null) {
+                        Files.deleteIfExists(slimPath);
+                    }
+                }
+                if (slimPath == null && Files.exists(originalPath)) {
+                    JarStore.unlink(originalPath);
+                }
+                if (linkedPath != null) {
+                    printStream.println("Linked ~/.jars/jars/" + jarName + " to " + linkedPath.toAbsolutePath().normalize() + ", nothing copied");
+                } else if (result == JarStore.Result.COPIED) {
+                    printStream.println("Copied " + source + " to ~/.jars/jars/" + jarName);
+                } else if (result == JarStore.Result.LINKED) {
+                    printStream.println("Linked " + source + " to ~/.jars/jars/" + jarName + ", content already in ~/.jars/store");
+                } else {
+                    printStream.println("~/.jars/jars/" + jarName + " is already up to date");
+                }
+
+                // Of what was installed, a slim jar has a digest of its own
+                Registry.Entry entry = new Registry.Entry(
+                        nameAndVersion.name,
+                        targetPath.getFileName().toString(),
+                        version,
+                        linkedPath != null ? digest : JarStore.cachedDigest(versionJarPath),
+                        Files.size(versionJarPath),
+                        Instant.now().toString()
+                );
+                if (verdict != null) {
+                    Signatures.put(entry, verdict);
+                }
+                writeLauncher(targetPath, versionDir, manifest, entry, options, journal, printStream);
+                Versions.writeEntry(versionDir, entry);
+
+                // The version is complete, launches see it from this rename on
+                Versions.link(targetPath, Versions.getCurrentPath(nameAndVersion.name).resolve(jarName));
+                Versions.switchTo(nameAndVersion.name, versionKey);
+                unlinkPreviousJar(previous, jarName, journal);
+                Registry.put(entry);
+                journal.commit();
+
+                prunedVersions = Versions.prune(nameAndVersion.name, options.keep);
+            }
+
+            for (Registry.Entry prunedVersion : prunedVersions) {
+                printStream.println("Removed version " + prunedVersion.version + " of " + nameAndVersion.name + ", keeping " + options.keep);
+                if (!isDigestInstalled(prunedVersion.digest)) {
+                    DependencyCache.remove(prunedVersion.digest);
+                }
+            }
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+    }
+    
+    /**
+     * Writes a copy of the staged jar without the dependency jars it does not use next
+     * to targetPath and keeps the full jar in ~/.jars/originals.
+     *
+     * @return the copy, null if every dependency jar is used
+     */
+    private static Path writeSlimJar(JarStore.Staged staged, String name, Path targetPath, Path originalPath, PrintStream printStream) throws IOException {
+        Path jarPath = staged.getPath();
+        List<String> unused = SlimJar.unusedDependencies(jarPath, staged.manifest, SlimJar.recordedClasses(ClassPreloader.getListPath(targetPath)));
+        if (unused.isEmpty()) {
+            printStream.println("Every dependency jar is used, installing all of " + targetPath.getFileName());
+            return null;
+        }
+
+        Path slimPath = JarStore.tempPathFor(targetPath);
+        SlimJar.write(jarPath, unused, slimPath);
+        Files.createDirectories(originalPath.getParent());
+        staged.link(originalPath);
+
+        printStream.println("Left out " + unused.size() + " unused dependency jars, " + String.join(", ", unused));
+        printStream.println("Kept the full jar in ~/.jars/originals/" + originalPath.getFileName() + ", run jarinstaller unslim " + name + " if a class is missing");
+        return slimPath;
+    }
+
+    /**
+     * Writes the launcher of an installed jar, and what it needs, for the java of this
+     * JVM and adds the install options to the attributes of entry. Everything is written
+     * to versionDir, which does not have to be the version in use yet.
+     */
+    private static void writeLauncher(Path targetPath, Path versionDir, Manifest manifest, Registry.Entry entry, InstallOptions options, Journal journal, PrintStream printStream) throws JarInstallerException, IOException {
+        File targetBinDir = getBinDir();
+
+        if (!targetBinDir.exists()) {
+            targetBinDir.mkdirs();
+        }
+
+        // The jar in ~/.jars/jars still leads to the version in use, the jar of versionDir is read
+        Path versionJarPath = versionDir.resolve(entry.jar);
+
+        // A linked jar changes with every build, its dependency jars are read from it
+        Path cachePath = options.link ? null : DependencyCache.extract(versionJarPath, entry.digest);
+        String targetBashScript = targetBinDir.toPath().resolve(entry.name).toString();
+        Path argumentsPath = getLaunchDir().toPath().resolve(entry.name + ".args");
+
+        // The launcher and arguments of the version, reached through the links in bin and launch
+        Path versionScriptPath = versionDir.resolve(entry.name);
+        Path versionArgumentsPath = versionDir.resolve(entry.name + ".args");
+        journal.save(Paths.get(targetBashScript));
+        journal.save(argumentsPath);
+        journal.save(versionScriptPath);
+        journal.save(versionArgumentsPath);
+        journal.save(ClassDataSharing.getArchivePath(versionJarPath));
+        journal.save(ClassPreloader.getListPath(targetPath));
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        String runtimeKey = options.runtime ? linkRuntimeImage(versionJarPath, cachePath, options, printStream) : null;
+        if (runtimeKey != null) {
+            java = RuntimeImage.getJavaPath(runtimeKey).toString();
+        }
+
+        Path runtimePath = null;
+        if (options.daemon) {
+            runtimePath = installRuntime();
+        } else {
+            Server.stop(entry.name);
+        }
+        
+        String profileLines = "";
+        String profileOptions = "";
+        List<String> arguments = new ArrayList<>();
+        if (Profiles.AUTO.equals(options.profile)) {
+            Profiles.installRecorder();
+            profileLines = Profiles.autoLauncherLines(entry.name) + "\n";
+            profileOptions = "\"${JARINSTALLER_JAVA_OPTIONS[@]}\" ";
+        } else {
+            arguments.addAll(Profiles.getOptions(options.profile, entry.name));
+        }
+        
+        List<String> cdsOptions = new ArrayList<>();
+        if (options.cds) {
+            Map<String, String> environment = new HashMap<>();
+            environment.put("JARINSTALLER_PATH", System.getProperty("user.home") + "/.jars/");
+            environment.put("JARINSTALLER_JAR_PATH", versionJarPath.toString());
+            environment.put("JARINSTALLER_SCRIPT_PATH", targetBashScript);
+            if (cachePath != null) {
+                environment.put("JARINSTALLER_CACHE_PATH", cachePath.toString());
+            }
+
+            // Trained on the jar of the version, which the JVM sees as the same file as
+            // the jar in ~/.jars/jars once the version is in use
+            cdsOptions = ClassDataSharing.createArchive(java, versionJarPath, environment, options.cdsTrainingArgs);
+            if (cdsOptions.isEmpty()) {
+                printStream.println("Could not create a class data sharing archive, it needs JDK 13 or later");
             } else {
-                printStream.println("Copied " + jarPath + " to ~/.jars/jars/" + jarPath.getFileName());
+                printStream.println("Created class data sharing archive ~/.jars/tools/" + entry.name + "/" + versionDir.getFileName() + "/" + ClassDataSharing.getArchivePath(versionJarPath).getFileName());
             }
-            
-            NameAndVersion nameAndVersion = getNameAndVersion(jarPath.toString());
-            
-            String targetBashScript = targetBinDir.toPath().resolve(nameAndVersion.name).toString();
-            
-            try(FileWriter bashScriptOutputstream = new FileWriter(targetBashScript);) {
-                bashScriptOutputstream.write("#!/bin/bash\n" +
-                "\n" +
-                "export JARINSTALLER_PATH=~/.jars/\n" +
-                "export JARINSTALLER_JAR_PATH=" + targetPath + "\n" +
-                "export JARINSTALLER_SCRIPT_PATH=" + targetBashScript + "\n" +
-                "\n" +
-                "java -jar $JARINSTALLER_JAR_PATH \"$@\"\n");
+        } else {
+            ClassDataSharing.removeArchive(versionJarPath);
+        }
+        arguments.addAll(cdsOptions);
+
+        // Slim when the full jar is kept aside
+        boolean slim = Files.exists(SlimJar.getOriginalsDir().toPath().resolve(entry.jar));
+
+        // A daemon has its classes loaded already
+        boolean preload = options.preload && runtimePath == null;
+        if (preload && !startsThroughBootstrap(versionJarPath, manifest)) {
+            printStream.println("Not preloading, " + entry.jar + " is not started through the jarinstaller bootstrap, DependencyLoader.init");
+            preload = false;
+        }
+        if (!preload) {
+            Files.deleteIfExists(ClassPreloader.getListPath(targetPath));
+        }
+
+        if (runtimePath != null) {
+            arguments.addAll(DAEMON_CLIENT_OPTIONS);
+            arguments.addAll(asList("-cp", runtimePath.toString(), DAEMON_CLIENT));
+        } else if (canRunMainClass(manifest)) {
+            arguments.addAll(asList("-cp", targetPath.toString(), manifest.getMainAttributes().getValue("Main-Class").trim()));
+        } else {
+            arguments.addAll(asList("-jar", targetPath.toString()));
+        }
+
+        String launchArguments;
+        if (runtimePath == null && javaVersion() >= 9) {
+            writeArgumentFile(versionArgumentsPath, arguments);
+            Versions.link(argumentsPath, Versions.getCurrentPath(entry.name).resolve(argumentsPath.getFileName()));
+            launchArguments = profileOptions + shellQuote("@" + argumentsPath) + " ";
+        } else {
+            // The link in launch may still be used by the version in use
+            Files.deleteIfExists(versionArgumentsPath);
+            launchArguments = profileOptions + shellQuote(arguments);
+        }
+
+        // A slim jar is not the jar that was signed
+        Signatures.Verdict verdict = Signatures.of(entry);
+        if (verdict != null && !verdict.digest.equals(entry.digest)) {
+            verdict = null;
+        }
+
+        Map<String, String> values = new HashMap<>();
+        values.put("name", entry.name);
+        values.put("jarPath", targetPath.toString());
+        values.put("scriptPath", targetBashScript);
+        values.put("cacheLine", cachePath != null ? "export JARINSTALLER_CACHE_PATH=" + cachePath + "\n" : "");
+        values.put("preloadLine", preload ? "export JARINSTALLER_PRELOAD=" + entry.digest + "\n" : "");
+        values.put("slimLine", slim ? "export JARINSTALLER_SLIM=" + shellQuote(entry.name) + "\n" : "");
+        values.put("java", shellQuote(java));
+        values.put("profileLines", profileLines);
+        values.put("arguments", launchArguments);
+
+        writeScript(versionScriptPath, renderTemplate(LAUNCHER_TEMPLATE, values));
+        Versions.link(Paths.get(targetBashScript), Versions.getCurrentPath(entry.name).resolve(entry.name));
+        
+        printStream.println("Created bash script ~/.jars/bin/" + Paths.get(targetBashScript).getFileName());
+        if (verdict != null) {
+            printStream.println("Checked the signature of ~/.jars/jars/" + entry.jar + ", signed by " + verdict.signer);
+        }
+
+        putAttribute(entry, "cds", cdsOptions.isEmpty() ? null : "true");
+        putAttribute(entry, "cds-args", cdsOptions.isEmpty() ? null : String.join(" ", options.cdsTrainingArgs));
+        putAttribute(entry, "profile", Profiles.DEFAULT.equals(options.profile) ? null : options.profile);
+        putAttribute(entry, "daemon", runtimePath == null ? null : "true");
+        putAttribute(entry, "preload", preload ? "true" : null);
+        putAttribute(entry, "slim", slim ? "true" : null);
+        putAttribute(entry, "runtime", runtimeKey);
+        putAttribute(entry, "keep", options.keep == Versions.DEFAULT_KEEP ? null : Integer.toString(options.keep));
+        putAttribute(entry, "link", !options.link ? null : Files.isSymbolicLink(versionJarPath) ? Files.readSymbolicLink(versionJarPath).toString() : "hard");
+        putAttribute(entry, "require-signed", options.requireSigned ? "true" : null);
+        if (verdict != null) {
+            Signatures.put(entry, verdict);
+        } else {
+            Signatures.remove(entry);
+        }
+    }
+
+    /**
+     * Sets the attribute key of entry to value, or removes it when value is null.
+     */
+    private static void putAttribute(Registry.Entry entry, String key, String value) {
+        if (value == null) {
+            entry.attributes.remove(key);
+        } else {
+            entry.attributes.put(key, value);
+        }
+    }
+
+    /**
+     * Links, or finds, the runtime image with the modules the installed jar needs.
+     *
+     * @return the key of the image, null if it could not be linked
+     */
+    private static String linkRuntimeImage(Path targetPath, Path cachePath, InstallOptions options, PrintStream printStream) throws IOException {
+        // The run recorder of the auto profile is a java agent
+        List<String> extraModules = Profiles.AUTO.equals(options.profile) ? asList("java.instrument") : new ArrayList<>();
+        Set<String> modules = RuntimeImage.requiredModules(targetPath, cachePath, extraModules);
+        if (modules.isEmpty()) {
+            printStream.println("Could not find the modules of " + targetPath.getFileName() + ", it needs jdeps of JDK 11 or later");
+            return null;
+        }
+
+        boolean linked = Files.isExecutable(RuntimeImage.getJavaPath(RuntimeImage.getKey(modules)));
+        String key = RuntimeImage.link(modules);
+        if (key == null) {
+            printStream.println("Could not link a runtime image, it needs jlink and the jmods of the JDK");
+        } else if (linked) {
+            printStream.println("Using runtime image ~/.jars/runtimes/" + key + " with " + String.join(", ", modules));
+        } else {
+            printStream.println("Linked runtime image ~/.jars/runtimes/" + key + " with " + String.join(", ", modules));
+        }
+        return key;
+    }
+    
+    /**
+     * Returns the install options recorded in the attributes of entry.
+     */
+    private static InstallOptions optionsOf(Registry.Entry entry) {
+        InstallOptions options = new InstallOptions();
+        options.cds = "true".equals(entry.attributes.get("cds"));
+        options.daemon = "true".equals(entry.attributes.get("daemon"));
+        options.preload = "true".equals(entry.attributes.get("preload"));
+        options.slim = "true".equals(entry.attributes.get("slim"));
+        options.runtime = entry.attributes.containsKey("runtime");
+        options.link = entry.attributes.containsKey("link");
+        options.requireSigned = "true".equals(entry.attributes.get("require-signed"));
+        options.keep = Integer.parseInt(entry.attributes.getOrDefault("keep", Integer.toString(Versions.DEFAULT_KEEP)));
+        options.profile = entry.attributes.getOrDefault("profile", Profiles.DEFAULT);
+        String cdsArgs = entry.attributes.get("cds-args");
+        if (cdsArgs != null) {
+            options.cdsTrainingArgs = cdsArgs.isEmpty() ? new ArrayList<>() : new ArrayList<>(asList(cdsArgs.split(" ")));
+        }
+        return options;
+    }
+
+    /**
+     * Installs the full jar kept aside when name was installed with --slim, with the
+     * other options it was installed with.
+     */
+    public static void unslim(String name, PrintStream printStream) throws JarInstallerException {
+        try {
+            Optional<Registry.Entry> entry = Registry.get(name);
+            if (!entry.isPresent()) {
+                throw new JarInstallerException("There is no " + name + " in ~/.jars/bin/");
             }
 
-            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(Paths.get(targetBashScript));
-            perms.add(PosixFilePermission.OWNER_EXECUTE);
-            Files.setPosixFilePermissions(Paths.get(targetBashScript), perms);
-            
-            printStream.println("Created bash script ~/.jars/bin/" + Paths.get(targetBashScript).getFileName());
+            Path originalPath = SlimJar.getOriginalsDir().toPath().resolve(entry.get().jar);
+            if (!Files.exists(originalPath)) {
+                throw new JarInstallerException(name + " was not installed with --slim");
+            }
+
+            InstallOptions options = optionsOf(entry.get());
+            options.slim = false;
+            installJar(originalPath, printStream, false, options);
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+    }
+
+    /**
+     * Writes the launchers of all installed jars again, for the java of this JVM. The
+     * launchers have the java they run pinned, so this is needed after a JDK upgrade.
+     *
+     * @return the tools that could not be relinked and why, empty if all were
+     */
+    public static Map<String, JarInstallerException> relink(PrintStream printStream) throws JarInstallerException {
+        List<Registry.Entry> entries;
+        try (Stream<Registry.Entry> stream = Registry.entries()) {
+            entries = stream.collect(Collectors.toList());
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+
+        Map<String, JarInstallerException> failures = new LinkedHashMap<>();
+        for (Registry.Entry entry : entries) {
+            InstallOptions options = optionsOf(entry);
+
+            try (Journal journal = Journal.begin(entry.name, "relink", printStream)) {
+                Path targetPath = getJarsDir().toPath().resolve(entry.jar);
+                Manifest manifest = Files.exists(targetPath) ? readManifest(targetPath) : null;
+                if (manifest == null || manifest.getMainAttributes().getValue("Main-Class") == null) {
+                    throw new JarInstallerException("~/.jars/jars/" + entry.jar + " is missing or has no Main-Class");
+                }
+
+                if (!Versions.current(entry.name).isPresent()) {
+                    // Installed before versions, move it into a version directory
+                    Path versionDir = Versions.getVersionDir(entry.name, Versions.versionKey(entry.version, entry.digest));
+                    journal.save(Versions.getCurrentPath(entry.name));
+                    journal.saveJar(targetPath);
+                    journal.saveJar(versionDir.resolve(entry.jar));
+                    Files.createDirectories(versionDir);
+                    JarStore.link(targetPath, versionDir.resolve(entry.jar));
+                    Versions.switchTo(entry.name, versionDir.getFileName().toString());
+                    Versions.link(targetPath, Versions.getCurrentPath(entry.name).resolve(entry.jar));
+                }
+
+                Path versionDir = Versions.getCurrentPath(entry.name).toRealPath();
+                writeLauncher(targetPath, versionDir, manifest, entry, options, journal, new PrintStream(new ByteArrayOutputStream()));
+                journal.save(Versions.getEntryPath(versionDir));
+                Versions.writeEntry(versionDir, entry);
+                Registry.put(entry);
+                journal.commit();
+                printStream.println("Relinked ~/.jars/bin/" + entry.name);
+            } catch (JarInstallerException ex) {
+                failures.put(entry.name, ex);
+            } catch (IOException ioex) {
+                failures.put(entry.name, new JarInstallerException(ioex));
+            }
+        }
+
+        printStream.println();
+        printStream.println("Relinked " + (entries.size() - failures.size()) + " of " + entries.size() + " jars to " + System.getProperty("java.home"));
+        for (Map.Entry<String, JarInstallerException> failure : failures.entrySet()) {
+            printStream.println("    Failed " + failure.getKey() + ", " + failure.getValue().getMessage());
+        }
+
+        return failures;
+    }
+
+    /**
+     * Switches the tool name to an installed version kept in ~/.jars/tools, the launcher,
+     * arguments and jar of that version are used from the next launch on.
+     */
+    public static void use(String name, String version, PrintStream printStream) throws JarInstallerException {
+        try (Journal journal = Journal.begin(name, "use", printStream)) {
+            Path versionDir = Versions.getVersionDir(name, version);
+            if (!Files.isRegularFile(Versions.getEntryPath(versionDir))) {
+                List<String> versions = Versions.list(name);
+                if (versions.isEmpty()) {
+                    throw new JarInstallerException("There are no versions of " + name + " in ~/.jars/tools/");
+                }
+                throw new JarInstallerException("There is no version " + version + " of " + name + ", installed versions are " + String.join(", ", versions));
+            }
+
+            Registry.Entry entry = Versions.readEntry(versionDir);
+            Manifest manifest = readManifest(versionDir.resolve(entry.jar));
+            if (manifest == null || manifest.getMainAttributes().getValue("Main-Class") == null) {
+                throw new JarInstallerException("The jar of version " + version + " of " + name + " is missing or has no Main-Class");
+            }
+
+            Path targetPath = getJarsDir().toPath().resolve(entry.jar);
+            Optional<Registry.Entry> previous = Registry.get(name);
+            journal.save(Versions.getCurrentPath(name));
+            journal.save(targetPath);
+            journal.save(Versions.getEntryPath(versionDir));
+
+            // The launcher of an older version can pin a java that has since been relinked away
+            writeLauncher(targetPath, versionDir, manifest, entry, optionsOf(entry), journal, new PrintStream(new ByteArrayOutputStream()));
+            Versions.writeEntry(versionDir, entry);
+
+            Versions.link(targetPath, Versions.getCurrentPath(name).resolve(entry.jar));
+            Versions.switchTo(name, version);
+            unlinkPreviousJar(previous, entry.jar, journal);
+            Registry.put(entry);
+            journal.commit();
+            Server.stop(name);
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+
+        printStream.println("Switched " + name + " to version " + version);
+    }
+
+    /**
+     * Removes the link in ~/.jars/jars to the jar of the version that was in use, and the
+     * archive and class list made for it, when the version now in use has a jar of
+     * another name. Otherwise the link would point at nothing through current.
+     */
+    private static void unlinkPreviousJar(Optional<Registry.Entry> previous, String jar, Journal journal) throws IOException {
+        if (!previous.isPresent() || previous.get().jar.equals(jar)) {
+            return;
+        }
+
+        Path previousPath = getJarsDir().toPath().resolve(previous.get().jar);
+        if (!Files.isSymbolicLink(previousPath)) {
+            return;
+        }
+        for (Path path : asList(previousPath, ClassDataSharing.getArchivePath(previousPath), ClassPreloader.getListPath(previousPath))) {
+            journal.save(path);
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * True if the Main-Class of the jar refers to DependencyLoader, the bootstrap that
+     * records and preloads the classes of a jar installed with --preload.
+     */
+    static boolean startsThroughBootstrap(Path jarPath, Manifest manifest) throws IOException {
+        String mainClass = manifest.getMainAttributes().getValue("Main-Class").trim().replace('.', '/');
+        try (JarFile jarFile = new JarFile(jarPath.toFile(), false)) {
+            ZipEntry entry = jarFile.getEntry(mainClass + ".class");
+            if (entry == null) {
+                return false;
+            }
+            try (InputStream input = jarFile.getInputStream(entry)) {
+                return SlimJar.references(SlimJar.readAll(input)).contains(DependencyLoader.class.getName().replace('.', '/'));
+            }
+        }
+    }
+
+    /**
+     * True if running the Main-Class with -cp does the same as java -jar, that is when
+     * the manifest has none of the attributes only -jar looks at.
+     */
+    static boolean canRunMainClass(Manifest manifest) {
+        for (String attribute : JAR_ONLY_ATTRIBUTES) {
+            if (manifest.getMainAttributes().getValue(attribute) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Replaces each {{key}} in template with its value. Optional lines are given as
+     * values with their newline, or empty.
+     */
+    static String renderTemplate(String template, Map<String, String> values) {
+        Matcher matcher = TEMPLATE_KEY.matcher(template);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String value = values.get(matcher.group(1));
+            if (value == null) {
+                throw new IllegalArgumentException("No value for {{" + matcher.group(1) + "}}");
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+    
+    /**
+     * Writes a java @argument file, one argument per line and quoted when needed.
+     */
+    private static void writeArgumentFile(Path argumentsPath, List<String> arguments) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String argument : arguments) {
+            if (argument.matches("[^\\s\"'\\\\#]+")) {
+                content.append(argument);
+            } else {
+                content.append('"').append(argument.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            content.append('\n');
+        }
+
+        byte[] bytes = content.toString().getBytes("UTF-8");
+        if (Files.exists(argumentsPath) && Arrays.equals(bytes, Files.readAllBytes(argumentsPath))) {
+            return;
+        }
+
+        Files.createDirectories(argumentsPath.getParent());
+        Path tempPath = JarStore.tempPathFor(argumentsPath);
+        try {
+            Files.write(tempPath, bytes);
+            Files.move(tempPath, argumentsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+    
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+    
+    /**
+     * Links the jar jarinstaller is run from to ~/.jars/lib, for the daemon client and
+     * server to run from.
+     */
+    private static Path installRuntime() throws JarInstallerException, IOException {
+        Path jarPath = getJarPathFor(Utils.class);
+        if (!Files.isRegularFile(jarPath)) {
+            throw new JarInstallerException("Installing with --daemon needs jarinstaller to be run from a jar, " + jarPath);
+        }
 
+        File libDir = getLibDir();
+        if (!libDir.exists()) {
+            libDir.mkdirs();
+        }
+
+        Path runtimePath = libDir.toPath().resolve("jarinstaller.jar");
+        JarStore.link(jarPath, runtimePath);
+        return runtimePath;
+    }
+    
+    private static void addBinDirToPath(PrintStream printStream) throws JarInstallerException {
+        try {
             if (!System.getenv("PATH").contains("/.jars/bin")) {
                 Path profilePath = new File(System.getProperty("user.home") + "/.profile").toPath();
-                boolean hasAlreadyBeenAdded = false;
-                if (Files.exists(profilePath)) {
-                    String profile = new String(Files.readAllBytes(profilePath));
-                    hasAlreadyBeenAdded = profile.contains("/.jars/bin");
-                }
-                if (!hasAlreadyBeenAdded) {
-                    printStream.println("Adding \"PATH=$PATH:$HOME/.jars/bin\" to ~/.profile");
-                    Files.write(
-                            profilePath,
-                            "\nPATH=$PATH:$HOME/.jars/bin # Add jarinstaller bin to PATH\n".getBytes(),
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.APPEND
-                    );
+                Path lockPath = Journal.getJournalDir().toPath().resolve(".profile.lock");
+                Files.createDirectories(lockPath.getParent());
+
+                // Checked and appended under a lock so installs at the same time add one line
+                synchronized (Utils.class) {
+                    try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        // Released when the channel is closed
+                        lockChannel.lock();
+
+                        boolean hasAlreadyBeenAdded = false;
+                        if (Files.exists(profilePath)) {
+                            String profile = new String(Files.readAllBytes(profilePath));
+                            hasAlreadyBeenAdded = profile.contains("/.jars/bin");
+                        }
+                        if (!hasAlreadyBeenAdded) {
+                            printStream.println("Adding \"PATH=$PATH:$HOME/.jars/bin\" to ~/.profile");
+                            Files.write(
+                                    profilePath,
+                                    "\nPATH=$PATH:$HOME/.jars/bin # Add jarinstaller bin to PATH\n".getBytes(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.APPEND
+                            );
+                        }
+                    }
                 }
 
                 System.out.println("Run the below to add ~/.jars/bin to your current $PATH\n" +
@@ -183,11 +1049,52 @@ public class Utils {
         } catch (IOException ioex) {
             throw new JarInstallerException(ioex);
         }
-        
-        return true;
     }
     
     
+    /**
+     * Returns the arguments quoted for bash, each followed by a space.
+     */
+    static String shellQuote(List<String> arguments) {
+        StringBuilder quoted = new StringBuilder();
+        for (String argument : arguments) {
+            quoted.append(shellQuote(argument)).append(' ');
+        }
+        return quoted.toString();
+    }
+    
+    static String shellQuote(String argument) {
+        if (argument.matches("[A-Za-z0-9_./:=+,@%-]+")) {
+            return argument;
+        }
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+    
+    /**
+     * Writes an executable script by moving a complete temp file into place, unless
+     * the script already has the same content.
+     */
+    static void writeScript(Path scriptPath, String content) throws IOException {
+        byte[] bytes = content.getBytes("UTF-8");
+
+        if (Files.exists(scriptPath) && Arrays.equals(bytes, Files.readAllBytes(scriptPath))) {
+            return;
+        }
+
+        Path tempPath = JarStore.tempPathFor(scriptPath);
+        try {
+            Files.write(tempPath, bytes);
+
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(tempPath);
+            perms.add(PosixFilePermission.OWNER_EXECUTE);
+            Files.setPosixFilePermissions(tempPath, perms);
+
+            Files.move(tempPath, scriptPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+    
     public static boolean unInstall(Path jarPath) throws JarInstallerException {
         return unInstall(jarPath, System.out);
     }
@@ -213,20 +1120,62 @@ public class Utils {
             Path targetPath = getJarsDir().toPath().resolve(new String(jarName));
             Path targetBashScript = getBinDir().toPath().resolve(scriptName);
 
-            if (!Files.exists(targetPath) && !Files.exists(targetBashScript)) {
+            if (!Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS) && !Files.exists(targetBashScript)) {
                 printStream.println("There is no " + jarName + " in ~/.jars/jars/ and no " + scriptName + " in ~/.jars/bin/");
                 return false;
             }
             
-            if (Files.exists(targetPath)) {
-                printStream.println("Removing ~/.jars/jars/" + jarName);
-                Files.delete(targetPath);
+            String digest = null;
+            try (Journal journal = Journal.begin(scriptName, "uninstall", printStream)) {
+                Path originalPath = SlimJar.getOriginalsDir().toPath().resolve(jarName);
+                Path argumentsPath = getLaunchDir().toPath().resolve(scriptName + ".args");
+                journal.save(Versions.getCurrentPath(scriptName));
+                journal.saveJar(targetPath);
+                journal.saveJar(originalPath);
+                journal.save(ClassDataSharing.getArchivePath(targetPath));
+                journal.save(ClassPreloader.getListPath(targetPath));
+                journal.save(targetBashScript);
+                journal.save(argumentsPath);
+
+                // A jar installed with --link may have lost what it links to
+                if (Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    printStream.println("Removing ~/.jars/jars/" + jarName);
+                    digest = Files.exists(targetPath) ? JarStore.cachedDigest(targetPath) : null;
+                    JarStore.unlink(targetPath);
+                    ClassDataSharing.removeArchive(targetPath);
+                    Files.deleteIfExists(ClassPreloader.getListPath(targetPath));
+                }
+
+                if (Files.exists(originalPath)) {
+                    JarStore.unlink(originalPath);
+                }
+
+                if (Files.exists(targetBashScript)) {
+                    printStream.println("Removing ~/.jars/bin/" + scriptName);
+                    Files.delete(targetBashScript);
+                }
+
+                Server.stop(scriptName);
+                Profiles.remove(scriptName);
+                Files.deleteIfExists(argumentsPath);
+
+                Registry.remove(scriptName);
+                journal.commit();
             }
-        
-            if (Files.exists(targetBashScript)) {
-                printStream.println("Removing ~/.jars/bin/" + scriptName);
-                Files.delete(targetBashScript);
+
+            Set<String> digests = new HashSet<>();
+            if (digest != null) {
+                digests.add(digest);
             }
+            for (Registry.Entry version : Versions.remove(scriptName)) {
+                digests.add(version.digest);
+            }
+            for (String removedDigest : digests) {
+                if (!isDigestInstalled(removedDigest)) {
+                    DependencyCache.remove(removedDigest);
+                }
+            }
+            RuntimeImage.removeUnused(installedRuntimes());
             
         } catch (IOException ioex) {
             throw new JarInstallerException(ioex);
@@ -235,14 +1184,31 @@ public class Utils {
         return true;
     }
     
+    private static Set<String> installedRuntimes() throws IOException {
+        try (Stream<Registry.Entry> entries = Registry.entries()) {
+            return entries.map(entry -> entry.attributes.get("runtime")).filter(key -> key != null).collect(Collectors.toSet());
+        }
+    }
+
+    private static boolean isDigestInstalled(String digest) throws IOException {
+        try (Stream<Registry.Entry> entries = Registry.entries()) {
+            return entries.anyMatch(entry -> digest.equals(entry.digest));
+        }
+    }
+    
     public static boolean isInJarsDirectory(Path jarPath) {
         Path targetPath =  Utils.getTargetPath(jarPath); 
 
-        if (!Files.exists(jarPath) && !Files.exists(targetPath)) {
+        if (!Files.exists(jarPath) || !Files.exists(targetPath)) {
             return false;
         }
 
-        return jarPath.equals(targetPath);
+        // The jar in ~/.jars/jars is a link to the version in use, the JVM reports the real path
+        try {
+            return jarPath.equals(targetPath) || jarPath.toRealPath().equals(targetPath.toRealPath());
+        } catch (IOException ioex) {
+            return false;
+        }
     }
     
     public static Path getJarPathFor(Class mainClass) throws JarInstallerException {
@@ -261,6 +1227,18 @@ public class Utils {
         return new File(System.getProperty("user.home") + "/.jars/bin/");
     }
     
+    public static File getLibDir() {
+        return new File(System.getProperty("user.home") + "/.jars/lib/");
+    }
+    
+    public static File getLaunchDir() {
+        return new File(System.getProperty("user.home") + "/.jars/launch/");
+    }
+    
+    public static File getRunDir() {
+        return new File(System.getProperty("user.home") + "/.jars/run/");
+    }
+    
     public static class NameAndVersion {
         
         public String name;
@@ -0,0 +1,320 @@
+package jarinstaller.impl;
+
+import jarinstaller.JarInstallerException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
+
+/**
+ * Checks the installed jars, for after a disk incident.
+ *
+ * Every jar a launcher in ~/.jars/bin runs, the kept versions in ~/.jars/tools and the
+ * originals of slim jars are read once, each entry checked against its CRC, the central
+ * directory against the entries and the content against the digest recorded at install.
+ * Jars are read in parallel, biggest first, and each result is printed when it is done.
+ * Files in ~/.jars nothing refers to any more are reported as orphans.
+ */
+public class Verifier {
+
+    private static final int MAX_THREADS = 16;
+
+    private static class Target {
+
+        final String label;
+        final Path path;
+        final String digest;
+        final long size;
+
+        Target(String label, Path path, String digest) throws IOException {
+            this.label = label;
+            this.path = path;
+            this.digest = digest;
+            this.size = Files.size(path);
+        }
+    }
+
+    /**
+     * Verifies the installed jars and prints a line for each one and for each orphan.
+     * Orphans are reported but do not fail the verify.
+     *
+     * @return the jars and launchers that failed and why, empty if all were fine
+     */
+    public static Map<String, JarInstallerException> verify(PrintStream printStream) throws JarInstallerException {
+        Map<String, JarInstallerException> failures = new LinkedHashMap<>();
+        List<Target> targets = new ArrayList<>();
+        List<String> orphans;
+
+        try {
+            Map<String, Registry.Entry> entries;
+            try (Stream<Registry.Entry> stream = Registry.entries()) {
+                entries = stream.collect(Collectors.toMap(entry -> entry.name, entry -> entry, (a, b) -> b, TreeMap::new));
+            }
+
+            Set<Object> seen = new HashSet<>();
+            Set<String> digests = new HashSet<>();
+            addLaunchers(entries, targets, seen, failures);
+            for (Registry.Entry entry : entries.values()) {
+                digests.add(entry.digest);
+                addVersions(entry, targets, seen, digests, failures);
+                if ("true".equals(entry.attributes.get("slim"))) {
+                    Path originalPath = SlimJar.getOriginalsDir().toPath().resolve(entry.jar);
+                    if (Files.exists(originalPath)) {
+                        add(new Target(display(originalPath), originalPath, null), targets, seen);
+                    }
+                }
+            }
+
+            orphans = findOrphans(entries, digests);
+        } catch (IOException ioex) {
+            throw new JarInstallerException(ioex);
+        }
+
+        for (Map.Entry<String, JarInstallerException> failure : failures.entrySet()) {
+            printStream.println("FAILED  " + failure.getKey() + ", " + failure.getValue().getMessage());
+        }
+
+        // The biggest first so a big jar at the end does not keep the others waiting
+        targets.sort(Comparator.comparingLong((Target target) -> target.size).reversed());
+        check(targets, printStream, failures);
+
+        for (String orphan : orphans) {
+            printStream.println("ORPHAN  " + orphan);
+        }
+
+        printStream.println();
+        printStream.println("Verified " + targets.size() + " jars, " + failures.size() + " failed, " + orphans.size() + " orphans");
+
+        return failures;
+    }
+
+    private static void check(List<Target> targets, PrintStream printStream, Map<String, JarInstallerException> failures) throws JarInstallerException {
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        // Reading is as much waiting for the disk as hashing, so more threads than cores
+        int threads = Math.max(1, Math.min(targets.size(), Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_THREADS)));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            CompletionService<Map.Entry<Target, JarInstallerException>> completionService = new ExecutorCompletionService<>(pool);
+            for (Target target : targets) {
+                completionService.submit(() -> new SimpleEntry<>(target, check(target)));
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                Map.Entry<Target, JarInstallerException> result = completionService.take().get();
+                if (result.getValue() == null) {
+                    printStream.println("ok      " + result.getKey().label);
+                } else {
+                    printStream.println("FAILED  " + result.getKey().label + ", " + result.getValue().getMessage());
+                    failures.put(result.getKey().label, result.getValue());
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new JarInstallerException(ex.getCause().toString(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JarInstallerException("Interrupted while verifying", ex);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return why target is not fine, null if it is
+     */
+    private static JarInstallerException check(Target target) {
+        try {
+            String digest = JarStore.check(target.path);
+            if (target.digest != null && !target.digest.equals(digest)) {
+                return new JarInstallerException("the digest is " + digest + " but " + target.digest + " was installed");
+            }
+            return null;
+        } catch (ZipException ex) {
+            return new JarInstallerException("corrupt, " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            return new JarInstallerException(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * Adds the jar of each launcher in ~/.jars/bin, and fails the launchers that are
+     * broken or whose jar is missing and the tools that have no launcher.
+     */
+    private static void addLaunchers(Map<String, Registry.Entry> entries, List<Target> targets, Set<Object> seen, Map<String, JarInstallerException> failures) throws IOException {
+        Set<String> launchers = new HashSet<>();
+        for (File script : listFiles(Utils.getBinDir())) {
+            Path scriptPath = script.toPath();
+            launchers.add(script.getName());
+            if (!Files.exists(scriptPath)) {
+                failures.put(display(scriptPath), new JarInstallerException("the launcher is a broken link"));
+                continue;
+            }
+
+            Matcher matcher = Utils.jarPathPattern.matcher(new String(Files.readAllBytes(scriptPath), StandardCharsets.UTF_8));
+            if (!matcher.find()) {
+                continue;
+            }
+
+            Path jarPath = Paths.get(matcher.group(1));
+            Registry.Entry entry = entries.get(script.getName());
+            boolean linked = entry != null && isLinked(entry);
+            if (!Files.exists(jarPath)) {
+                failures.put(display(scriptPath), new JarInstallerException(linked
+                        ? "broken link to " + entry.attributes.get("link")
+                        : "the jar " + display(jarPath) + " is missing"));
+                continue;
+            }
+
+            // A linked jar is rebuilt, its digest is not the one it was installed with
+            add(new Target(display(jarPath), jarPath, entry == null || linked ? null : entry.digest), targets, seen);
+        }
+
+        for (Registry.Entry entry : entries.values()) {
+            if (!launchers.contains(entry.name)) {
+                failures.put(display(Utils.getBinDir().toPath().resolve(entry.name)), new JarInstallerException("the launcher of an installed jar is missing"));
+            }
+        }
+    }
+
+    /**
+     * Adds the kept versions of entry that are not in use.
+     */
+    private static void addVersions(Registry.Entry entry, List<Target> targets, Set<Object> seen, Set<String> digests, Map<String, JarInstallerException> failures) throws IOException {
+        Optional<String> current = Versions.current(entry.name);
+        for (String version : Versions.list(entry.name)) {
+            if (current.isPresent() && current.get().equals(version)) {
+                continue;
+            }
+
+            Path versionDir = Versions.getVersionDir(entry.name, version);
+            Registry.Entry versionEntry;
+            try {
+                versionEntry = Versions.readEntry(versionDir);
+            } catch (IOException ioex) {
+                failures.put(display(versionDir), new JarInstallerException("the entry of the version can not be read, " + ioex.getMessage(), ioex));
+                continue;
+            }
+
+            digests.add(versionEntry.digest);
+            Path jarPath = versionDir.resolve(versionEntry.jar);
+            if (!Files.exists(jarPath)) {
+                failures.put(display(jarPath), new JarInstallerException("the jar of a kept version is missing"));
+                continue;
+            }
+            add(new Target(display(jarPath), jarPath, isLinked(versionEntry) ? null : versionEntry.digest), targets, seen);
+        }
+    }
+
+    /**
+     * Adds target unless the file it is, through links, is already added.
+     */
+    private static void add(Target target, List<Target> targets, Set<Object> seen) throws IOException {
+        Object key = Files.readAttributes(target.path, BasicFileAttributes.class).fileKey();
+        if (seen.add(key != null ? key : target.path.toRealPath())) {
+            targets.add(target);
+        }
+    }
+
+    /**
+     * Returns the files and directories in ~/.jars that no installed jar or kept version
+     * refers to.
+     */
+    private static List<String> findOrphans(Map<String, Registry.Entry> entries, Set<String> digests) throws IOException {
+        Set<String> jars = new HashSet<>();
+        Set<String> slimJars = new HashSet<>();
+        Set<String> runtimes = new HashSet<>();
+        for (Registry.Entry entry : entries.values()) {
+            jars.add(entry.jar);
+            if ("true".equals(entry.attributes.get("slim"))) {
+                slimJars.add(entry.jar);
+            }
+            if (entry.attributes.containsKey("runtime")) {
+                runtimes.add(entry.attributes.get("runtime"));
+            }
+        }
+
+        List<String> orphans = new ArrayList<>();
+        for (File file : listFiles(Utils.getJarsDir())) {
+            String name = file.getName();
+            String jar = name.endsWith(".jsa") || name.endsWith(".preload") ? name.substring(0, name.lastIndexOf('.')) + ".jar" : name;
+            if (jar.endsWith(".jar") && !jars.contains(jar)) {
+                orphans.add(display(file.toPath()));
+            }
+        }
+        for (File blob : listFiles(JarStore.getStoreDir())) {
+            if (JarStore.linkCount(blob.toPath()) == 1) {
+                orphans.add(display(blob.toPath()) + ", nothing links to it");
+            }
+        }
+        for (File original : listFiles(SlimJar.getOriginalsDir())) {
+            if (!slimJars.contains(original.getName())) {
+                orphans.add(display(original.toPath()));
+            }
+        }
+        for (File cache : listFiles(DependencyCache.getCacheDir())) {
+            if (!digests.contains(cache.getName())) {
+                orphans.add(display(cache.toPath()));
+            }
+        }
+        for (File runtime : listFiles(RuntimeImage.getRuntimesDir())) {
+            if (!runtimes.contains(runtime.getName())) {
+                orphans.add(display(runtime.toPath()));
+            }
+        }
+        for (File tool : listFiles(Versions.getToolsDir())) {
+            if (!entries.containsKey(tool.getName())) {
+                orphans.add(display(tool.toPath()));
+            }
+        }
+
+        return orphans;
+    }
+
+    private static boolean isLinked(Registry.Entry entry) {
+        return entry.attributes.containsKey("link");
+    }
+
+    /**
+     * Returns the files in dir in name order, leaving out temp files and other dot files.
+     */
+    private static List<File> listFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new ArrayList<>();
+        }
+
+        return Stream.of(files)
+                .filter(file -> !file.getName().startsWith("."))
+                .sorted(Comparator.comparing(File::getName))
+                .collect(Collectors.toList());
+    }
+
+    private static String display(Path path) {
+        Path jarsHome = Paths.get(System.getProperty("user.home"), ".jars");
+        return path.startsWith(jarsHome) ? "~/.jars/" + jarsHome.relativize(path) : path.toString();
+    }
+}
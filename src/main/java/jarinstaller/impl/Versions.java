@@ -0,0 +1,225 @@
+package jarinstaller.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Side by side versions of installed tools, ~/.jars/tools/&lt;name&gt;/&lt;version&gt;/.
+ *
+ * A version directory has the jar, linked to ~/.jars/store so keeping it costs no
+ * copy, its launcher and argument file and the registry entry it was installed with.
+ * ~/.jars/tools/&lt;name&gt;/current is a symbolic link to the version in use, and
+ * ~/.jars/bin/&lt;name&gt;, ~/.jars/launch/&lt;name&gt;.args and ~/.jars/jars/&lt;jar&gt; are
+ * symbolic links through it. Switching version is a rename of a new current link over
+ * the old one, so a launch sees either the old version or the new one.
+ *
+ * Jars without a version in their name or manifest are kept by the first 12 hex
+ * digits of their digest.
+ */
+public class Versions {
+
+    public static final int DEFAULT_KEEP = 3;
+
+    static final String CURRENT = "current";
+
+    private static final String ENTRY = "entry";
+
+    public static File getToolsDir() {
+        return new File(System.getProperty("user.home") + "/.jars/tools/");
+    }
+
+    public static Path getToolDir(String name) {
+        return getToolsDir().toPath().resolve(name);
+    }
+
+    public static Path getCurrentPath(String name) {
+        return getToolDir(name).resolve(CURRENT);
+    }
+
+    public static Path getVersionDir(String name, String version) {
+        return getToolDir(name).resolve(version);
+    }
+
+    /**
+     * Returns the name of the version directory for a jar of version and digest.
+     */
+    public static String versionKey(String version, String digest) {
+        String key = version.isEmpty() ? digest.substring(0, 12) : version;
+        return key.replaceAll("[^A-Za-z0-9._+-]", "_");
+    }
+
+    /**
+     * Returns the version in use, empty if the tool has no versions.
+     */
+    public static Optional<String> current(String name) throws IOException {
+        Path currentPath = getCurrentPath(name);
+        if (!Files.isSymbolicLink(currentPath)) {
+            return Optional.empty();
+        }
+        return Optional.of(Files.readSymbolicLink(currentPath).getFileName().toString());
+    }
+
+    /**
+     * Returns the kept versions of the tool, the oldest install first.
+     */
+    public static List<String> list(String name) throws IOException {
+        Path toolDir = getToolDir(name);
+        if (!Files.isDirectory(toolDir)) {
+            return new ArrayList<>();
+        }
+
+        List<Registry.Entry> entries = new ArrayList<>();
+        try (Stream<Path> versionDirs = Files.list(toolDir)) {
+            for (Path versionDir : (Iterable<Path>) versionDirs::iterator) {
+                if (!Files.isSymbolicLink(versionDir) && Files.isRegularFile(versionDir.resolve(ENTRY))) {
+                    Registry.Entry entry = readEntry(versionDir);
+                    // The directory name is the key, not the version in the entry
+                    entry.version = versionDir.getFileName().toString();
+                    entries.add(entry);
+                }
+            }
+        }
+
+        return entries.stream()
+                .sorted(Comparator.comparing((Registry.Entry entry) -> Instant.parse(entry.installed)))
+                .map(entry -> entry.version)
+                .collect(Collectors.toList());
+    }
+
+    public static Registry.Entry readEntry(Path versionDir) throws IOException {
+        return Registry.parse(new String(Files.readAllBytes(versionDir.resolve(ENTRY)), StandardCharsets.UTF_8).trim());
+    }
+
+    public static Path getEntryPath(Path versionDir) {
+        return versionDir.resolve(ENTRY);
+    }
+
+    public static void writeEntry(Path versionDir, Registry.Entry entry) throws IOException {
+        Path entryPath = getEntryPath(versionDir);
+        Path tempPath = JarStore.tempPathFor(entryPath);
+        try {
+            Files.write(tempPath, (Registry.format(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Points current at version with one rename.
+     */
+    public static void switchTo(String name, String version) throws IOException {
+        Path currentPath = getCurrentPath(name);
+        if (Files.isSymbolicLink(currentPath) && Files.readSymbolicLink(currentPath).equals(Paths.get(version))) {
+            return;
+        }
+
+        Path tempPath = JarStore.tempPathFor(currentPath);
+        try {
+            Files.createSymbolicLink(tempPath, Paths.get(version));
+            Files.move(tempPath, currentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Makes linkPath a relative symbolic link to targetPath, replacing what is there
+     * with a rename. A jar that was installed there before versions is released from
+     * the store.
+     */
+    public static void link(Path linkPath, Path targetPath) throws IOException {
+        Path relativePath = linkPath.getParent().relativize(targetPath);
+        if (Files.isSymbolicLink(linkPath) && Files.readSymbolicLink(linkPath).equals(relativePath)) {
+            return;
+        }
+
+        Files.createDirectories(linkPath.getParent());
+        Path blobPath = Files.isRegularFile(linkPath, LinkOption.NOFOLLOW_LINKS) ? JarStore.findBlob(linkPath) : null;
+        Path tempPath = JarStore.tempPathFor(linkPath);
+        try {
+            Files.createSymbolicLink(tempPath, relativePath);
+            Files.move(tempPath, linkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        if (blobPath != null) {
+            JarStore.releaseBlob(blobPath);
+        }
+    }
+
+    /**
+     * Removes the oldest versions of the tool so keep are left, never the one in use.
+     *
+     * @return the entries of the removed versions, with the version directory name as version
+     */
+    public static List<Registry.Entry> prune(String name, int keep) throws IOException {
+        List<String> versions = list(name);
+        Optional<String> current = current(name);
+        List<Registry.Entry> removed = new ArrayList<>();
+
+        for (String version : versions) {
+            if (versions.size() - removed.size() <= Math.max(1, keep)) {
+                break;
+            }
+            if (!current.isPresent() || !current.get().equals(version)) {
+                removed.add(removeVersion(name, version, versions));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all versions of the tool.
+     *
+     * @return the entries of the removed versions
+     */
+    public static List<Registry.Entry> remove(String name) throws IOException {
+        List<Registry.Entry> removed = new ArrayList<>();
+        for (String version : list(name)) {
+            removed.add(removeVersion(name, version, new ArrayList<>()));
+        }
+        Files.deleteIfExists(getCurrentPath(name));
+        DependencyCache.delete(getToolDir(name));
+        return removed;
+    }
+
+    private static Registry.Entry removeVersion(String name, String version, List<String> versions) throws IOException {
+        Path versionDir = getVersionDir(name, version);
+        Registry.Entry entry = readEntry(versionDir);
+        entry.version = version;
+
+        // The link in ~/.jars/jars goes when no other version has a jar of the same name
+        boolean jarNameKept = false;
+        for (String other : versions) {
+            if (!other.equals(version) && Files.exists(getVersionDir(name, other).resolve(entry.jar))) {
+                jarNameKept = true;
+            }
+        }
+        Path jarLinkPath = Utils.getJarsDir().toPath().resolve(entry.jar);
+        if (!jarNameKept && Files.isSymbolicLink(jarLinkPath)) {
+            Files.delete(jarLinkPath);
+        }
+
+        Path jarPath = versionDir.resolve(entry.jar);
+        if (Files.exists(jarPath)) {
+            JarStore.unlink(jarPath);
+        }
+        DependencyCache.delete(versionDir);
+        return entry;
+    }
+}
@@ -0,0 +1,331 @@
+package jarinstaller.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip archive held in a ByteBuffer, a mapped file
+ * or a region of another archive, without streaming through the entries.
+ */
+public class ZipDirectory {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    public static class Entry {
+
+        public final String name;
+        public final int method;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final ByteBuffer archive;
+    private final Map<String, Entry> entries;
+
+    private ZipDirectory(ByteBuffer archive, Map<String, Entry> entries) {
+        this.archive = archive;
+        this.entries = entries;
+    }
+
+    /**
+     * Maps the file and reads its central directory.
+     */
+    public static ZipDirectory map(Path path) throws IOException {
+        return map(path, "");
+    }
+
+    /**
+     * Maps the file and reads the entries of its central directory whose names start with prefix.
+     */
+    public static ZipDirectory map(Path path, String prefix) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("Too large to map, " + path);
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, prefix);
+        }
+    }
+
+    public static ZipDirectory read(ByteBuffer archive) throws IOException {
+        return read(archive, "");
+    }
+
+    /**
+     * Reads the entries of the central directory whose names start with prefix. Only the
+     * end of the archive and the central directory are touched.
+     */
+    public static ZipDirectory read(ByteBuffer archive, String prefix) throws IOException {
+        ByteBuffer buffer = archive.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.clear();
+
+        int end = findEndOfCentralDirectory(buffer);
+        long count = buffer.getShort(end + 10) & 0xffff;
+        long directorySize = buffer.getInt(end + 12) & 0xffffffffL;
+        long offset = buffer.getInt(end + 16) & 0xffffffffL;
+        int directoryEnd = end;
+
+        if (end >= 20 && buffer.getInt(end - 20) == ZIP64_LOCATOR) {
+            int zip64End = checkedPosition(buffer, buffer.getLong(end - 12), 56);
+            if (buffer.getInt(zip64End) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new ZipException("Invalid zip64 end of central directory");
+            }
+            count = buffer.getLong(zip64End + 32);
+            directorySize = buffer.getLong(zip64End + 40);
+            offset = buffer.getLong(zip64End + 48);
+            directoryEnd = zip64End;
+        }
+
+        // Offsets are relative to the start of the zip, which is not the start of the
+        // file when something like a launch script has been put in front of it
+        long base = directoryEnd - directorySize - offset;
+        if (base < 0) {
+            throw new ZipException("Invalid central directory offset " + offset);
+        }
+        offset += base;
+
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int position = checkedPosition(buffer, offset, 0);
+
+        for (long i = 0; i < count; i++) {
+            checkedPosition(buffer, position, 46);
+            if (buffer.getInt(position) != CENTRAL_HEADER) {
+                throw new ZipException("Invalid central directory header at " + position);
+            }
+
+            int method = buffer.getShort(position + 10) & 0xffff;
+            long crc = buffer.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = buffer.getInt(position + 20) & 0xffffffffL;
+            long size = buffer.getInt(position + 24) & 0xffffffffL;
+            int nameLength = buffer.getShort(position + 28) & 0xffff;
+            int extraLength = buffer.getShort(position + 30) & 0xffff;
+            int commentLength = buffer.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = buffer.getInt(position + 42) & 0xffffffffL;
+            int namePosition = checkedPosition(buffer, position + 46, nameLength + extraLength + commentLength);
+
+            if (startsWith(buffer, namePosition, nameLength, prefixBytes)) {
+                byte[] nameBytes = new byte[nameLength];
+                ByteBuffer name = buffer.duplicate();
+                name.position(namePosition);
+                name.get(nameBytes);
+
+                if (size == 0xffffffffL || compressedSize == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                    long[] values = readZip64Extra(buffer, namePosition + nameLength, extraLength,
+                            size == 0xffffffffL, compressedSize == 0xffffffffL, localHeaderOffset == 0xffffffffL);
+                    size = values[0] >= 0 ? values[0] : size;
+                    compressedSize = values[1] >= 0 ? values[1] : compressedSize;
+                    localHeaderOffset = values[2] >= 0 ? values[2] : localHeaderOffset;
+                }
+
+                Entry entry = new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, crc, compressedSize, size, base + localHeaderOffset);
+                entries.put(entry.name, entry);
+            }
+
+            position = namePosition + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipDirectory(buffer, entries);
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Returns the bytes of the entry as they are stored in the archive, compressed if the entry is.
+     */
+    public ByteBuffer data(Entry entry) throws IOException {
+        int header = checkedPosition(archive, entry.localHeaderOffset, 30);
+        if (archive.getInt(header) != LOCAL_HEADER) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+
+        int nameLength = archive.getShort(header + 26) & 0xffff;
+        int extraLength = archive.getShort(header + 28) & 0xffff;
+        int start = checkedPosition(archive, header + 30L + nameLength + extraLength, entry.compressedSize);
+
+        ByteBuffer data = archive.duplicate();
+        data.limit(start + (int) entry.compressedSize);
+        data.position(start);
+        return data.slice();
+    }
+
+    /**
+     * Returns the uncompressed bytes of the entry.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        ByteBuffer data = data(entry);
+
+        if (entry.method == STORED) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return bytes;
+        }
+
+        if (entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+
+        // One extra byte of input, raw deflate streams may need it to finish
+        byte[] compressed = new byte[data.remaining() + 1];
+        data.get(compressed, 0, compressed.length - 1);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(entry.size > 0 && entry.size < Integer.MAX_VALUE ? (int) entry.size : 8192);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated entry " + entry.name);
+                }
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new ZipException("Invalid compressed data for " + entry.name + ", " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public InputStream open(Entry entry) throws IOException {
+        if (entry.method == STORED) {
+            ByteBuffer data = data(entry);
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return data.hasRemaining() ? data.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) {
+                    if (!data.hasRemaining()) {
+                        return -1;
+                    }
+                    int count = Math.min(length, data.remaining());
+                    data.get(bytes, offset, count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return data.remaining();
+                }
+            };
+        }
+
+        return new ByteArrayInputStream(read(entry));
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) throws ZipException {
+        int limit = buffer.limit();
+        int lowest = Math.max(0, limit - 22 - 0xffff);
+
+        for (int position = limit - 22; position >= lowest; position--) {
+            if (buffer.getInt(position) == END_OF_CENTRAL_DIRECTORY
+                    && position + 22 + (buffer.getShort(position + 20) & 0xffff) == limit) {
+                return position;
+            }
+        }
+
+        throw new ZipException("No end of central directory found");
+    }
+
+    private static long[] readZip64Extra(ByteBuffer buffer, int position, int length, boolean hasSize, boolean hasCompressedSize, boolean hasOffset) {
+        long[] values = { -1, -1, -1 };
+        int end = position + length;
+
+        while (position + 4 <= end) {
+            int id = buffer.getShort(position) & 0xffff;
+            int size = buffer.getShort(position + 2) & 0xffff;
+            int field = position + 4;
+
+            if (id == 0x0001) {
+                if (hasSize && field + 8 <= end) {
+                    values[0] = buffer.getLong(field);
+                    field += 8;
+                }
+                if (hasCompressedSize && field + 8 <= end) {
+                    values[1] = buffer.getLong(field);
+                    field += 8;
+                }
+                if (hasOffset && field + 8 <= end) {
+                    values[2] = buffer.getLong(field);
+                }
+                break;
+            }
+
+            position = field + size;
+        }
+
+        return values;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int position, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int checkedPosition(ByteBuffer buffer, long position, long length) throws ZipException {
+        if (position < 0 || position + length > buffer.limit()) {
+            throw new ZipException("Invalid offset " + position + " in zip archive");
+        }
+
+        return (int) position;
+    }
+}
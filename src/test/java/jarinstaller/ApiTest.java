@@ -7,7 +7,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -28,6 +30,36 @@ public class ApiTest {
     }
     
     public static String runJar(String jarPath, Map<String, String> env, String... args) throws IOException {
+        return runJar(jarPath, env, null, args);
+    }
+    
+    /**
+     * Runs the jar with the content of input on stdin.
+     */
+    public static String runJarWithInput(File input, String jarPath, String... args) throws IOException {
+        return runJar(jarPath, new HashMap(), input, args);
+    }
+    
+    public static int runJarForExitCode(String jarPath, String... args) throws IOException, InterruptedException {
+        List<String> commands = new ArrayList();
+        commands.add("java");
+        commands.add("-jar");
+        commands.add(jarPath);
+        commands.addAll(Arrays.asList(args));
+
+        ProcessBuilder builder = new ProcessBuilder(commands.toArray(new String[commands.size()]));
+        builder.environment().put("HOME", System.getProperty("user.home"));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        while (br.readLine() != null) {
+        }
+
+        return process.waitFor();
+    }
+
+    private static String runJar(String jarPath, Map<String, String> env, File input, String... args) throws IOException {
         
         List<String> commands = new ArrayList();
         commands.add("java");
@@ -38,6 +70,9 @@ public class ApiTest {
         ProcessBuilder builder = new ProcessBuilder(commands.toArray(new String[commands.size()]));
         builder.environment().putAll(env);
         builder.environment().put("HOME", System.getProperty("user.home"));
+        if (input != null) {
+            builder.redirectInput(input);
+        }
         Process process = builder.start();
         
         InputStreamReader isr = new InputStreamReader(process.getErrorStream());
@@ -93,6 +128,10 @@ public class ApiTest {
     }
     
     public static String runScript(String scriptPath, String... args) throws IOException {
+        return runScriptIn(new File("."), scriptPath, args);
+    }
+
+    public static String runScriptIn(File directory, String scriptPath, String... args) throws IOException {
         List<String> commands = new ArrayList();
         commands.add("/bin/bash");
         commands.add(scriptPath);
@@ -100,6 +139,7 @@ public class ApiTest {
         
         ProcessBuilder builder = new ProcessBuilder(commands.toArray(new String[commands.size()]));
         builder.environment().put("HOME", System.getProperty("user.home"));
+        builder.directory(directory);
         Process process = builder.start();
         
         InputStreamReader isr = new InputStreamReader(process.getErrorStream());
@@ -133,6 +173,9 @@ public class ApiTest {
     
     public static void tryToDelete(File file) {
         try {
+            if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+                tryToDelete(file.listFiles());
+            }
             file.delete();
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -179,6 +222,25 @@ public class ApiTest {
             process.waitFor();
         }
     }
+
+    /**
+     * Builds target/signed-1.0.jar, test.jar signed with a new key, and
+     * target/tampered-1.0.jar, the signed jar with an unsigned file added.
+     */
+    public static void buildSignedTestJars() throws IOException, InterruptedException {
+        new File("./target/test.keystore").delete();
+        Process process = new ProcessBuilder("keytool", "-genkeypair", "-keystore", "./target/test.keystore", "-storepass", "changeit", "-keypass", "changeit",
+                "-alias", "test", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=jarinstaller test").start();
+        process.waitFor();
+
+        Files.copy(Paths.get("./target/test.jar"), Paths.get("./target/signed-1.0.jar"), StandardCopyOption.REPLACE_EXISTING);
+        process = new ProcessBuilder("jarsigner", "-keystore", "./target/test.keystore", "-storepass", "changeit", "./target/signed-1.0.jar", "test").start();
+        process.waitFor();
+
+        Files.copy(Paths.get("./target/signed-1.0.jar"), Paths.get("./target/tampered-1.0.jar"), StandardCopyOption.REPLACE_EXISTING);
+        process = new ProcessBuilder("jar", "uvf", "./target/tampered-1.0.jar", "README.md").start();
+        process.waitFor();
+    }
     
     {
 
@@ -203,6 +265,9 @@ public class ApiTest {
             tryToDelete(new File(DUMMY_HOME + ".jars/jars/"));
             tryToDelete(new File(DUMMY_HOME + ".jars/bin/").listFiles());
             tryToDelete(new File(DUMMY_HOME + ".jars/bin/"));
+            tryToDelete(new File(DUMMY_HOME + ".jars/store/").listFiles());
+            tryToDelete(new File(DUMMY_HOME + ".jars/store/"));
+            tryToDelete(new File(DUMMY_HOME + ".jars/").listFiles());
             tryToDelete(new File(DUMMY_HOME + ".jars/"));
         });
         
@@ -355,6 +420,33 @@ public class ApiTest {
             });
         });
         
+        describe(".install(Collection)", () -> {
+            context("is called with a jar without Main-Class: in manifest among others", () -> {
+
+                Variable<Exception> exception = new Variable();
+
+                beforeEach(() -> {
+                    exception.set(null);
+                    try {
+                        Api.install(Arrays.asList(Paths.get("target/test.jar"), Paths.get("target/test-without-main.jar")));
+                    } catch (JarInstallerException ex) {
+                        exception.set(ex);
+                    }
+                });
+
+                it("should throw an exception with the reason for the failed jar", () -> {
+                    assertThat(exception.get().getMessage(), containsString("test-without-main.jar"));
+                    assertThat(exception.get().getSuppressed().length, is(1));
+                    assertThat(exception.get().getSuppressed()[0].getMessage(), containsString("Jar file Manifest does not have Main-class"));
+                });
+
+                it("should install the other jar", () -> {
+                    assertThat(new File(DUMMY_HOME+".jars/jars/test.jar").exists(), is(true));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(true));
+                });
+            });
+        });
+        
         describe(".isInJarsDirectory()", () -> {
             context("is called with a jar path that has been installed but is not run in the installed jar", () -> {
                
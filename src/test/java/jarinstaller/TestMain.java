@@ -1,10 +1,13 @@
 package jarinstaller;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 /**
  * Used to test parts of the API that is only relevant from within a jar.
  */
 public class TestMain {
-    public static void main(String[] args) throws JarInstallerException {
+    public static void main(String[] args) throws Exception {
         System.setProperty("user.home", System.getenv("HOME"));
         
         if (args[0].equalsIgnoreCase("install")) {
@@ -22,5 +25,20 @@ public class TestMain {
         if (args[0].equalsIgnoreCase("isInJarsDirectory")) {
             System.out.println(Api.isRunFromJarsDir());
         }
+
+        if (args[0].equalsIgnoreCase("cat")) {
+            System.out.print(new String(Files.readAllBytes(Paths.get(args[1])), "UTF-8"));
+        }
+
+        if (args[0].equalsIgnoreCase("later")) {
+            new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                System.out.println("later");
+            }).start();
+        }
     }
 }
@@ -3,16 +3,29 @@ package jarinstaller.cmdline;
 import com.greghaskins.spectrum.Spectrum;
 import com.greghaskins.spectrum.Variable;
 import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.buildSignedTestJars;
 import static jarinstaller.ApiTest.buildTestJars;
 import static jarinstaller.ApiTest.runJar;
+import static jarinstaller.ApiTest.runJarForExitCode;
+import static jarinstaller.ApiTest.runJarWithInput;
+import static jarinstaller.ApiTest.runScript;
+import static jarinstaller.ApiTest.runScriptIn;
 import static jarinstaller.ApiTest.tryToDelete;
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import org.junit.runner.RunWith;
@@ -43,6 +56,9 @@ public class ApplicationIT {
                 tryToDelete(new File(DUMMY_HOME + ".jars/jars/"));
                 tryToDelete(new File(DUMMY_HOME + ".jars/bin/").listFiles());
                 tryToDelete(new File(DUMMY_HOME + ".jars/bin/"));
+                tryToDelete(new File(DUMMY_HOME + ".jars/store/").listFiles());
+                tryToDelete(new File(DUMMY_HOME + ".jars/store/"));
+                tryToDelete(new File(DUMMY_HOME + ".jars/").listFiles());
                 tryToDelete(new File(DUMMY_HOME + ".jars/"));
                 
                 Files.write(new File(DUMMY_HOME + ".profile").toPath(), "".getBytes(), TRUNCATE_EXISTING, CREATE);
@@ -127,8 +143,37 @@ public class ApplicationIT {
                
                 it("should add script file to bin directory", () -> {
                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(true));
-                }); 
-                
+                });
+
+                it("should exec the java that did the install with an argument file", () -> {
+                    String script = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/test")));
+                    assertThat(script, containsString("JARINSTALLER_JAVA=" + System.getProperty("java.home") + "/bin/java\n"));
+                    assertThat(script, containsString("exec \"$JARINSTALLER_JAVA\" @" + DUMMY_HOME + ".jars/launch/test.args \"$@\"\n"));
+                });
+
+                it("should run the main class with -cp", () -> {
+                    String arguments = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/launch/test.args")));
+                    assertThat(arguments, is("-cp\n" + DUMMY_HOME + ".jars/jars/test.jar\njarinstaller.TestMain\n"));
+                });
+
+                context("installed again without changes", () -> {
+
+                    Variable<Object> fileKey = new Variable();
+
+                    beforeEach(() -> {
+                        fileKey.set(Files.readAttributes(Paths.get(DUMMY_HOME+".jars/jars/test.jar"), BasicFileAttributes.class).fileKey());
+                        stdout.set(runJar(pathToJarInstaller, "install", "target/test.jar"));
+                    });
+
+                    it("should print that the jar is already up to date", () -> {
+                        assertThat(stdout.get(), containsString("~/.jars/jars/test.jar is already up to date"));
+                    });
+
+                    it("should not replace the installed jar", () -> {
+                        assertThat(Files.readAttributes(Paths.get(DUMMY_HOME+".jars/jars/test.jar"), BasicFileAttributes.class).fileKey(), is(fileKey.get()));
+                    });
+                });
+
                 context("~/.jars/bin is not in PATH", () -> {
                     
                     beforeEach(() -> {
@@ -186,7 +231,252 @@ public class ApplicationIT {
                     });
                 });
             });
-            
+
+            describe("install --cds target/test.jar", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    stdout.set(runJar(pathToJarInstaller, "install", "--cds", "target/test.jar"));
+                });
+
+                it("should print that it created an archive", () -> {
+                    assertThat(stdout.get(), containsString("Created class data sharing archive ~/.jars/tools/test/"));
+                });
+
+                it("should make the launcher use the archive", () -> {
+                    String arguments = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/launch/test.args")));
+                    assertThat(arguments, containsString("-XX:SharedArchiveFile=" + DUMMY_HOME + ".jars/tools/test/"));
+                });
+
+                context("and then uninstalled", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "uninstall", "test");
+                    });
+
+                    it("should remove the archive", () -> {
+                        assertThat(new File(DUMMY_HOME+".jars/tools/test").exists(), is(false));
+                    });
+                });
+            });
+
+            describe("install --daemon target/test.jar", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "--daemon", "target/test.jar");
+                    runScript(DUMMY_HOME+".jars/bin/test", "isInstalled");
+                    stdout.set(runScript(DUMMY_HOME+".jars/bin/test", "isInstalled"));
+                });
+
+                it("should run the jar in the daemon", () -> {
+                    assertThat(stdout.get(), is("true\n"));
+                    assertThat(new File(DUMMY_HOME+".jars/run/test.token").exists(), is(true));
+                    assertThat(new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/run/test.log"))), containsString("Serving"));
+                });
+
+                it("should link jarinstaller to ~/.jars/lib", () -> {
+                    assertThat(new File(DUMMY_HOME+".jars/lib/jarinstaller.jar").exists(), is(true));
+                });
+
+                it("should resolve relative paths against the directory it is run in", () -> {
+                    File first = new File("target/daemon_first");
+                    File second = new File("target/daemon_second");
+                    first.mkdirs();
+                    second.mkdirs();
+                    Files.write(new File(first, "x").toPath(), "first".getBytes());
+                    Files.write(new File(second, "x").toPath(), "second".getBytes());
+                    // The daemon started in the directory of the tests stops, the next starts in first
+                    tryToDelete(new File(DUMMY_HOME+".jars/run/").listFiles());
+
+                    assertThat(runScriptIn(first, DUMMY_HOME+".jars/bin/test", "cat", "./x"), is("first\n"));
+                    assertThat(runScriptIn(second, DUMMY_HOME+".jars/bin/test", "cat", "./x"), is("second\n"));
+                    assertThat(runScriptIn(first, DUMMY_HOME+".jars/bin/test", "cat", "./x"), is("first\n"));
+                });
+
+                it("should wait for the threads main started", () -> {
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/test", "later"), is("later\n"));
+                });
+
+                context("and then uninstalled", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "uninstall", "test");
+                    });
+
+                    it("should stop the daemon", () -> {
+                        assertThat(new File(DUMMY_HOME+".jars/run/test.token").exists(), is(false));
+                    });
+                });
+            });
+
+            describe("install --profile=fast-startup target/test.jar", () -> {
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "--profile=fast-startup", "target/test.jar");
+                });
+
+                it("should give the launcher the options of the profile", () -> {
+                    String arguments = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/launch/test.args")));
+                    assertThat(arguments, startsWith("-XX:TieredStopAtLevel=1\n-XX:+UseSerialGC\n-Xshare:auto\n-Xms16m\n"));
+                });
+
+                it("should show the profile with info", () -> {
+                    String stdout = runJar(pathToJarInstaller, "info", "test");
+                    assertThat(stdout, containsString("profile    fast-startup\n"));
+                    assertThat(stdout, containsString("options    -XX:TieredStopAtLevel=1"));
+                });
+            });
+
+            describe("install --profile=auto target/test.jar", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "--profile=auto", "target/test.jar");
+                    for (int i = 0; i < 5; i++) {
+                        stdout.set(runScript(DUMMY_HOME+".jars/bin/test", "isInstalled"));
+                    }
+                });
+
+                it("should run the jar", () -> {
+                    assertThat(stdout.get(), is("true\n"));
+                });
+
+                it("should record the runs and switch to fast-startup", () -> {
+                    assertThat(Files.readAllLines(Paths.get(DUMMY_HOME+".jars/profiles/test.runs")).size(), is(5));
+                    assertThat(new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/profiles/test.auto"))), is("fast-startup 5\n"));
+                });
+
+                it("should show the recorded runs with info", () -> {
+                    String info = runJar(pathToJarInstaller, "info", "test");
+                    assertThat(info, containsString("profile    auto, now fast-startup\n"));
+                    assertThat(info, containsString("Recorded runs"));
+                });
+
+                context("and then uninstalled", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "uninstall", "test");
+                    });
+
+                    it("should remove the recorded runs", () -> {
+                        assertThat(new File(DUMMY_HOME+".jars/profiles/test.runs").exists(), is(false));
+                    });
+                });
+            });
+
+            describe("install --profile with an unknown profile", () -> {
+
+                it("should name the profiles", () -> {
+                    String stdout = runJar(pathToJarInstaller, "install", "--profile=fastest", "target/test.jar");
+                    assertThat(stdout, containsString("Unknown profile \"fastest\", use default, fast-startup, throughput, auto"));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(false));
+                });
+            });
+
+            describe("relink", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "--profile=throughput", "target/test.jar");
+                    runJar(pathToJarInstaller, "install", "target/test2-1.0.1.jar");
+                    Files.write(Paths.get(DUMMY_HOME+".jars/bin/test"), "#!/bin/bash\n".getBytes(), TRUNCATE_EXISTING);
+                    Files.delete(Paths.get(DUMMY_HOME+".jars/launch/test.args"));
+                    stdout.set(runJar(pathToJarInstaller, "relink"));
+                });
+
+                it("should rewrite every launcher with its options", () -> {
+                    assertThat(stdout.get(), containsString("Relinked 2 of 2 jars"));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/test", "isInstalled"), is("true\n"));
+                    assertThat(new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/launch/test.args"))), startsWith("-XX:+UseParallelGC\n"));
+                });
+            });
+
+            describe("install of a jar with the same content as an installed jar", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    Files.copy(Paths.get("target/test.jar"), Paths.get("target/test-copy-2.0.jar"), REPLACE_EXISTING);
+                    runJar(pathToJarInstaller, "install", "target/test.jar");
+                    stdout.set(runJar(pathToJarInstaller, "install", "target/test-copy-2.0.jar"));
+                });
+
+                it("should print that it linked the jar", () -> {
+                    assertThat(stdout.get(), containsString("Linked target/test-copy-2.0.jar to ~/.jars/jars/test-copy-2.0.jar, content already in ~/.jars/store"));
+                });
+
+                it("should share the content between the two jars", () -> {
+                    assertThat(Files.isSameFile(
+                            Paths.get(DUMMY_HOME+".jars/jars/test.jar"),
+                            Paths.get(DUMMY_HOME+".jars/jars/test-copy-2.0.jar")
+                    ), is(true));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(1));
+                });
+
+                context("and one of them is uninstalled", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "uninstall", "test-copy");
+                    });
+
+                    it("should keep the content in the store", () -> {
+                        assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(1));
+                    });
+
+                    context("and then the other one", () -> {
+
+                        beforeEach(() -> {
+                            runJar(pathToJarInstaller, "uninstall", "test");
+                        });
+
+                        it("should remove the content from the store", () -> {
+                            assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                        });
+                    });
+                });
+            });
+
+            describe("install of several jars where one has no Main-Class", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    stdout.set(runJar(pathToJarInstaller, "install", "target/test.jar", "target/test2-1.0.1.jar", "target/test-without-main.jar"));
+                });
+
+                it("should install the other jars", () -> {
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(true));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test2").exists(), is(true));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test-without-main").exists(), is(false));
+                });
+
+                it("should print a summary with the failed jar", () -> {
+                    assertThat(stdout.get(), containsString("Installed 2 of 3 jars"));
+                    assertThat(stdout.get(), containsString("test-without-main.jar, Jar file Manifest does not have Main-class"));
+                });
+            });
+
+            describe("install @target/jars.txt", () -> {
+
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    Files.write(Paths.get("target/jars.txt"), "# Test jars\ntest.jar\n\ntest2-1.0.1.jar\n".getBytes());
+                    stdout.set(runJar(pathToJarInstaller, "install", "@target/jars.txt"));
+                });
+
+                it("should install the listed jars", () -> {
+                    assertThat(stdout.get(), containsString("Installed 2 of 2 jars"));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(true));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test2").exists(), is(true));
+                });
+            });
+
             describe("--install-self", () -> {
                 
                 Variable<String> stdout = new Variable();
@@ -210,6 +500,358 @@ public class ApplicationIT {
                 it("should add the jar to the jars directory", () -> {
                    assertThat(DUMMY_HOME+".jars/jars/jarinstaller-0.3.0.jar does not exist", new File(DUMMY_HOME+".jars/jars/jarinstaller-0.3.0.jar").exists(), is(true));
                 });
+
+                it("should extract the dependencies to the cache directory", () -> {
+                    File[] cacheDirs = new File(DUMMY_HOME+".jars/cache/").listFiles();
+                    assertThat(cacheDirs.length, is(1));
+                    assertThat(new File(cacheDirs[0], "jopt-simple-5.0.3.jar").exists(), is(true));
+                });
+
+                it("should be runnable with the dependencies from the cache directory", () -> {
+                    String script = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/jarinstaller")));
+                    assertThat(script, containsString("export JARINSTALLER_CACHE_PATH=" + DUMMY_HOME + ".jars/cache/"));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/jarinstaller", "--version"), containsString("jarinstaller 0.3.0"));
+                });
+
+                context("and then uninstalled", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "uninstall", "jarinstaller");
+                    });
+
+                    it("should remove the cache directory", () -> {
+                        assertThat(new File(DUMMY_HOME+".jars/cache/").list().length, is(0));
+                    });
+                });
+            });
+
+            describe("install --preload", () -> {
+
+                Path listPath = Paths.get(DUMMY_HOME+".jars/jars/jarinstaller-0.3.0.preload");
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "--preload", pathToJarInstaller);
+                });
+
+                it("should give the launcher the digest of the jar", () -> {
+                    String script = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/jarinstaller")));
+                    assertThat(script, containsString("export JARINSTALLER_PRELOAD="));
+                });
+
+                it("should record the classes of the first run for the later ones", () -> {
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/jarinstaller", "--version"), containsString("jarinstaller 0.3.0"));
+                    String list = new String(Files.readAllBytes(listPath));
+                    assertThat(list, startsWith("# jarinstaller preload "));
+                    assertThat(list, containsString("\njarinstaller.cmdline.Application\n"));
+                    assertThat(list, containsString("\njoptsimple.OptionParser\n"));
+
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/jarinstaller", "--version"), containsString("jarinstaller 0.3.0"));
+                    assertThat(new String(Files.readAllBytes(listPath)), is(list));
+                });
+
+                it("should remove the list on uninstall", () -> {
+                    runScript(DUMMY_HOME+".jars/bin/jarinstaller", "--version");
+                    runJar(pathToJarInstaller, "uninstall", "jarinstaller");
+                    assertThat(Files.exists(listPath), is(false));
+                });
+
+                it("should not preload a jar that is not started through the bootstrap", () -> {
+                    assertThat(runJar(pathToJarInstaller, "install", "--preload", "target/test.jar"), containsString("Not preloading, test.jar is not started through the jarinstaller bootstrap"));
+                    assertThat(new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/test"))), not(containsString("JARINSTALLER_PRELOAD")));
+                    assertThat(runJar(pathToJarInstaller, "info", "test"), not(containsString("preload")));
+                });
+            });
+
+            describe("install --slim", () -> {
+
+                Variable<String> stdout = new Variable();
+                Path originalPath = Paths.get(DUMMY_HOME+".jars/originals/slimtest-1.0.jar");
+
+                beforeEach(() -> {
+                    // jarinstaller with a dependency jar that nothing uses
+                    Path unusedDir = Paths.get("target/slim_unused/dependencies");
+                    Files.createDirectories(unusedDir);
+                    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(unusedDir.resolve("unused.jar")))) {
+                        zip.putNextEntry(new ZipEntry("jarinstaller/TestMain.class"));
+                        zip.write(Files.readAllBytes(Paths.get("target/test-classes/jarinstaller/TestMain.class")));
+                        zip.closeEntry();
+                    }
+                    Files.copy(Paths.get(pathToJarInstaller), Paths.get("target/slimtest-1.0.jar"), REPLACE_EXISTING);
+                    new ProcessBuilder("jar", "uf", "target/slimtest-1.0.jar", "-C", "target/slim_unused", "dependencies/unused.jar").start().waitFor();
+
+                    stdout.set(runJar(pathToJarInstaller, "install", "--slim", "target/slimtest-1.0.jar"));
+                });
+
+                it("should leave out the unused dependency jar and keep the full jar", () -> {
+                    assertThat(stdout.get(), containsString("Left out 1 unused dependency jars, dependencies/unused.jar"));
+                    assertThat(Files.exists(originalPath), is(true));
+                    try (ZipFile zip = new ZipFile(DUMMY_HOME+".jars/jars/slimtest-1.0.jar")) {
+                        assertThat(zip.getEntry("dependencies/unused.jar"), is(nullValue()));
+                        assertThat(zip.getEntry("dependencies/jopt-simple-5.0.3.jar"), is(notNullValue()));
+                    }
+                });
+
+                it("should still run", () -> {
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/slimtest", "--version"), containsString("jarinstaller 0.3.0"));
+                    String script = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/slimtest")));
+                    assertThat(script, containsString("export JARINSTALLER_SLIM=slimtest\n"));
+                });
+
+                it("should install the full jar on unslim", () -> {
+                    runJar(pathToJarInstaller, "unslim", "slimtest");
+                    try (ZipFile zip = new ZipFile(DUMMY_HOME+".jars/jars/slimtest-1.0.jar")) {
+                        assertThat(zip.getEntry("dependencies/unused.jar"), is(notNullValue()));
+                    }
+                    assertThat(Files.exists(originalPath), is(false));
+                    assertThat(new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/slimtest"))), not(containsString("JARINSTALLER_SLIM")));
+                });
+
+                it("should remove the full jar on uninstall", () -> {
+                    runJar(pathToJarInstaller, "uninstall", "slimtest");
+                    assertThat(Files.exists(originalPath), is(false));
+                });
+            });
+
+            describe("install --runtime", () -> {
+
+                Variable<String> stdout = new Variable();
+                File runtimesDir = new File(DUMMY_HOME+".jars/runtimes/");
+
+                beforeEach(() -> {
+                    stdout.set(runJar(pathToJarInstaller, "install", "--runtime", "target/test.jar"));
+                });
+
+                it("should run the jar on an image with only the modules it needs", () -> {
+                    assertThat(stdout.get(), containsString("Linked runtime image ~/.jars/runtimes/"));
+                    assertThat(runtimesDir.list().length, is(1));
+
+                    String release = new String(Files.readAllBytes(runtimesDir.listFiles()[0].toPath().resolve("release")));
+                    assertThat(release, containsString("java.base"));
+                    assertThat(release, not(containsString("java.desktop")));
+
+                    String script = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/bin/test")));
+                    assertThat(script, containsString("JARINSTALLER_JAVA=" + runtimesDir.listFiles()[0] + "/bin/java\n"));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/test", "isInstalled"), containsString("true"));
+                });
+
+                it("should share the image and remove it with the last jar using it", () -> {
+                    assertThat(runJar(pathToJarInstaller, "install", "--runtime", "target/test2-1.0.1.jar"), containsString("Using runtime image ~/.jars/runtimes/"));
+                    assertThat(runtimesDir.list().length, is(1));
+
+                    runJar(pathToJarInstaller, "uninstall", "test");
+                    assertThat(runtimesDir.list().length, is(1));
+                    runJar(pathToJarInstaller, "uninstall", "test2");
+                    assertThat(runtimesDir.list().length, is(0));
+                });
+            });
+
+            describe("install --link", () -> {
+
+                Path buildPath = Paths.get("target/linktest-1.0.jar").toAbsolutePath().normalize();
+                Variable<String> stdout = new Variable();
+
+                beforeEach(() -> {
+                    Files.copy(Paths.get("target/test.jar"), buildPath, REPLACE_EXISTING);
+                    stdout.set(runJar(pathToJarInstaller, "install", "--link", buildPath.toString()));
+                });
+
+                it("should link to the jar instead of copying it", () -> {
+                    assertThat(stdout.get(), containsString("Linked ~/.jars/jars/linktest-1.0.jar to " + buildPath + ", nothing copied"));
+                    assertThat(Files.readSymbolicLink(Paths.get(DUMMY_HOME+".jars/tools/linktest/1.0/linktest-1.0.jar")), is(buildPath));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").exists(), is(false));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/linktest", "isInstalled"), containsString("true"));
+                });
+
+                it("should run the rebuilt jar", () -> {
+                    Files.delete(buildPath);
+                    Files.copy(Paths.get("target/test2-1.0.1.jar"), buildPath);
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/linktest", "isInstalled"), containsString("true"));
+                });
+
+                it("should flag the link when the jar is gone and still uninstall", () -> {
+                    Files.delete(buildPath);
+                    assertThat(runJar(pathToJarInstaller, "list"), containsString("linktest -> linktest-1.0.jar (broken link to " + buildPath + ")"));
+                    assertThat(runJar(pathToJarInstaller, "list", "--format=tsv", "--check"), containsString("\tbroken link"));
+
+                    assertThat(runJar(pathToJarInstaller, "uninstall", "linktest"), containsString("Removing ~/.jars/jars/linktest-1.0.jar"));
+                    assertThat(Files.exists(Paths.get(DUMMY_HOME+".jars/jars/linktest-1.0.jar"), LinkOption.NOFOLLOW_LINKS), is(false));
+                    assertThat(Files.exists(Paths.get(DUMMY_HOME+".jars/tools/linktest")), is(false));
+                });
+            });
+
+            describe("install --require-signed", () -> {
+
+                beforeAll(() -> {
+                    buildSignedTestJars();
+                });
+
+                it("should check the signature once and keep the verdict", () -> {
+                    String stdout = runJar(pathToJarInstaller, "install", "--require-signed", "target/signed-1.0.jar");
+                    assertThat(stdout, containsString("Checked the signature of ~/.jars/jars/signed-1.0.jar, signed by CN=jarinstaller test"));
+
+                    String registry = new String(Files.readAllBytes(Paths.get(DUMMY_HOME+".jars/registry")));
+                    assertThat(registry, containsString("\tsigner=CN=jarinstaller test"));
+                    assertThat(registry, containsString("\trequire-signed=true"));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/signed", "isInstalled"), containsString("true"));
+                });
+
+                it("should not trust the verdict when the jar has been changed", () -> {
+                    runJar(pathToJarInstaller, "install", "target/signed-1.0.jar");
+                    assertThat(runJar("target/signed-1.0.jar", "isInstalled"), is("true\n"));
+
+                    // Changed in place, the cached digest no longer matches the file
+                    Path blobPath = new File(DUMMY_HOME+".jars/store/").listFiles()[0].toPath();
+                    byte[] bytes = Files.readAllBytes(blobPath);
+                    bytes[bytes.length / 2] ^= 0x55;
+                    Files.write(blobPath, bytes);
+                    Files.setLastModifiedTime(blobPath, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+                    assertThat(runJar("target/signed-1.0.jar", "isInstalled"), is("false\n"));
+                });
+
+                it("should refuse an unsigned jar before copying it", () -> {
+                    assertThat(runJar(pathToJarInstaller, "install", "--require-signed", "target/test.jar"), containsString("target/test.jar is not signed and --require-signed was given"));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/test").exists(), is(false));
+                });
+
+                it("should refuse a signed jar with an entry that is not signed", () -> {
+                    String stdout = runJar(pathToJarInstaller, "install", "target/tampered-1.0.jar");
+                    assertThat(stdout, containsString("The signature of target/tampered-1.0.jar is not valid, README.md is not signed"));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                });
+            });
+
+            describe("install -", () -> {
+
+                it("should install the jar read from stdin", () -> {
+                    String stdout = runJarWithInput(new File("target/test.jar"), pathToJarInstaller, "install", "-", "--name=piped");
+                    assertThat(stdout, containsString("Copied stdin to ~/.jars/jars/piped.jar"));
+                    assertThat(runScript(DUMMY_HOME+".jars/bin/piped", "isInstalled"), containsString("true"));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(1));
+                });
+
+                it("should need a name when the manifest has no Implementation-Title", () -> {
+                    String stdout = runJarWithInput(new File("target/test.jar"), pathToJarInstaller, "install", "-");
+                    assertThat(stdout, containsString("give the name to install it as with --name=NAME"));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                });
+
+                it("should refuse a jar without a manifest", () -> {
+                    File jar = new File("target/no-manifest.jar");
+                    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar.toPath()))) {
+                        zip.putNextEntry(new ZipEntry("README.md"));
+                        zip.write(Files.readAllBytes(Paths.get("README.md")));
+                    }
+
+                    String stdout = runJarWithInput(jar, pathToJarInstaller, "install", "-", "--name=foo");
+                    assertThat(stdout, containsString("Jar file Manifest does not have Main-class, stdin"));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/foo").exists(), is(false));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                });
+
+                it("should refuse what is not a jar", () -> {
+                    String stdout = runJarWithInput(new File("README.md"), pathToJarInstaller, "install", "-", "--name=readme");
+                    assertThat(stdout, containsString("Not a valid jar file, stdin"));
+                    assertThat(new File(DUMMY_HOME+".jars/bin/readme").exists(), is(false));
+                });
+            });
+
+            describe("verify", () -> {
+
+                beforeEach(() -> {
+                    runJar(pathToJarInstaller, "install", "target/test.jar");
+                });
+
+                it("should pass the installed jars", () -> {
+                    String stdout = runJar(pathToJarInstaller, "verify");
+                    assertThat(stdout, containsString("ok      ~/.jars/jars/test.jar"));
+                    assertThat(stdout, containsString("Verified 1 jars, 0 failed, 0 orphans"));
+                    assertThat(runJarForExitCode(pathToJarInstaller, "verify"), is(0));
+                });
+
+                it("should fail a corrupt jar", () -> {
+                    Path blobPath = new File(DUMMY_HOME+".jars/store/").listFiles()[0].toPath();
+                    byte[] bytes = Files.readAllBytes(blobPath);
+                    bytes[bytes.length / 2] ^= 0x55;
+                    Files.write(blobPath, bytes);
+
+                    assertThat(runJar(pathToJarInstaller, "verify"), containsString("FAILED  ~/.jars/jars/test.jar, "));
+                    assertThat(runJarForExitCode(pathToJarInstaller, "verify"), is(1));
+                });
+
+                it("should report orphans and launchers whose jar is missing", () -> {
+                    Files.copy(Paths.get("target/test2-1.0.1.jar"), Paths.get(DUMMY_HOME+".jars/jars/stray.jar"));
+                    Files.delete(Paths.get(DUMMY_HOME+".jars/jars/test.jar"));
+
+                    String stdout = runJar(pathToJarInstaller, "verify");
+                    assertThat(stdout, containsString("FAILED  ~/.jars/bin/test, the jar ~/.jars/jars/test.jar is missing"));
+                    assertThat(stdout, containsString("ORPHAN  ~/.jars/jars/stray.jar"));
+                });
+            });
+
+            describe("use", () -> {
+
+                Path toolDir = Paths.get(DUMMY_HOME+".jars/tools/tool");
+                Path scriptPath = Paths.get(DUMMY_HOME+".jars/bin/tool");
+
+                beforeEach(() -> {
+                    for (String version : new String[] {"1.0", "1.1", "1.2"}) {
+                        Files.copy(Paths.get("target/test.jar"), Paths.get("target/tool-" + version + ".jar"), REPLACE_EXISTING);
+                    }
+                    runJar(pathToJarInstaller, "install", "target/tool-1.0.jar");
+                    runJar(pathToJarInstaller, "install", "target/tool-1.1.jar");
+                });
+
+                it("should switch the launcher back to an earlier version", () -> {
+                    assertThat(runJar(pathToJarInstaller, "use", "tool"), containsString("* 1.1"));
+                    assertThat(new String(Files.readAllBytes(scriptPath)), containsString("tool-1.1.jar"));
+
+                    assertThat(runJar(pathToJarInstaller, "use", "tool", "1.0"), containsString("Switched tool to version 1.0"));
+                    assertThat(Files.readSymbolicLink(toolDir.resolve("current")).toString(), is("1.0"));
+                    assertThat(new String(Files.readAllBytes(scriptPath)), containsString("tool-1.0.jar"));
+                    assertThat(runScript(scriptPath.toString(), "isInstalled"), containsString("true"));
+                    assertThat(runJar(pathToJarInstaller, "list", "--format=tsv"), containsString("tool\ttool-1.0.jar\t1.0\t"));
+                });
+
+                it("should write the launcher again for the java of today", () -> {
+                    Path versionScriptPath = toolDir.resolve("1.0/tool");
+                    String launcher = new String(Files.readAllBytes(versionScriptPath));
+                    Files.write(versionScriptPath, launcher.replace(System.getProperty("java.home"), "/gone/jdk").getBytes());
+
+                    runJar(pathToJarInstaller, "use", "tool", "1.0");
+                    assertThat(new String(Files.readAllBytes(scriptPath)), not(containsString("/gone/jdk")));
+                    assertThat(runScript(scriptPath.toString(), "isInstalled"), containsString("true"));
+                });
+
+                it("should only link the jar of the version in use", () -> {
+                    Path jarsDir = Paths.get(DUMMY_HOME+".jars/jars");
+
+                    runJar(pathToJarInstaller, "use", "tool", "1.0");
+                    assertThat(Files.exists(jarsDir.resolve("tool-1.0.jar")), is(true));
+                    assertThat(Files.exists(jarsDir.resolve("tool-1.1.jar"), LinkOption.NOFOLLOW_LINKS), is(false));
+
+                    runJar(pathToJarInstaller, "use", "tool", "1.1");
+                    assertThat(Files.exists(jarsDir.resolve("tool-1.0.jar"), LinkOption.NOFOLLOW_LINKS), is(false));
+                    assertThat(Files.exists(jarsDir.resolve("tool-1.1.jar")), is(true));
+                });
+
+                it("should tell which versions there are", () -> {
+                    assertThat(runJar(pathToJarInstaller, "use", "tool", "2.0"), containsString("There is no version 2.0 of tool, installed versions are 1.0, 1.1"));
+                });
+
+                it("should keep only --keep versions", () -> {
+                    assertThat(runJar(pathToJarInstaller, "install", "--keep=2", "target/tool-1.2.jar"), containsString("Removed version 1.0 of tool, keeping 2"));
+                    assertThat(Files.exists(toolDir.resolve("1.0")), is(false));
+                    assertThat(Files.exists(Paths.get(DUMMY_HOME+".jars/jars/tool-1.0.jar"), LinkOption.NOFOLLOW_LINKS), is(false));
+                    assertThat(Files.exists(toolDir.resolve("1.1")), is(true));
+                });
+
+                it("should remove all versions on uninstall", () -> {
+                    runJar(pathToJarInstaller, "uninstall", "tool");
+                    assertThat(Files.exists(toolDir), is(false));
+                    assertThat(new File(DUMMY_HOME+".jars/store/").list().length, is(0));
+                });
             });
             
             
@@ -313,6 +955,21 @@ public class ApplicationIT {
                 it("should show the current version", () -> {
                     assertThat(stdout.get(), containsString("jarinstaller 0.3.0"));
                 });
+
+                context("and JARINSTALLER_TRACE=1", () -> {
+
+                    beforeEach(() -> {
+                        HashMap<String, String> env = new HashMap();
+                        env.put("JARINSTALLER_TRACE", "1");
+                        stdout.set(runJar(pathToJarInstaller, env, "--version"));
+                    });
+
+                    it("should print the startup phases as json lines", () -> {
+                        assertThat(stdout.get(), containsString("{\"phase\":\"handler.setup\",\"ns\":"));
+                        assertThat(stdout.get(), containsString("{\"phase\":\"main.invoke\",\"ns\":"));
+                        assertThat(stdout.get(), containsString("{\"counters\":{\"classesLoaded\":"));
+                    });
+                });
             });
             
             describe("list", () -> {
@@ -332,6 +989,62 @@ public class ApplicationIT {
                         assertThat(stdout.get(), containsString("test2 -> test2-1.0.1.jar"));
                     });
                 });
+
+                context("there are two jars installed and --format=tsv is given", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "install", "target/test.jar");
+                        runJar(pathToJarInstaller, "install", "target/test2-1.0.1.jar");
+                        stdout.set(runJar(pathToJarInstaller, "list", "--format=tsv"));
+                    });
+
+                    it("should print a header", () -> {
+                        assertThat(stdout.get(), containsString("name\tjar\tversion\tdigest\tsize\tinstalled\n"));
+                    });
+
+                    it("should print one line per installed jar", () -> {
+                        assertThat(stdout.get(), containsString("test\ttest.jar\t\t"));
+                        assertThat(stdout.get(), containsString("test2\ttest2-1.0.1.jar\t1.0.1\t"));
+                    });
+                });
+
+                context("there is a jar installed and --format=json is given", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "install", "target/test2-1.0.1.jar");
+                        stdout.set(runJar(pathToJarInstaller, "list", "--format=json"));
+                    });
+
+                    it("should print the jar as json", () -> {
+                        assertThat(stdout.get(), containsString("{\"name\": \"test2\", \"jar\": \"test2-1.0.1.jar\", \"version\": \"1.0.1\""));
+                    });
+                });
+
+                context("an installed jar has been removed", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "install", "target/test.jar");
+                        new File(DUMMY_HOME+".jars/jars/test.jar").delete();
+                        stdout.set(runJar(pathToJarInstaller, "list"));
+                    });
+
+                    it("should mark the jar as missing", () -> {
+                        assertThat(stdout.get(), containsString("test -> test.jar (missing jar)"));
+                    });
+                });
+
+                context("an installed jar has been removed and --check is given", () -> {
+
+                    beforeEach(() -> {
+                        runJar(pathToJarInstaller, "install", "target/test.jar");
+                        new File(DUMMY_HOME+".jars/jars/test.jar").delete();
+                        stdout.set(runJar(pathToJarInstaller, "list", "--check"));
+                    });
+
+                    it("should mark the jar as missing", () -> {
+                        assertThat(stdout.get(), containsString("test -> test.jar (missing jar)"));
+                    });
+                });
             });
         });
     }  
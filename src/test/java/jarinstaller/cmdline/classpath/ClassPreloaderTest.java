@@ -0,0 +1,85 @@
+package jarinstaller.cmdline.classpath;
+
+import com.greghaskins.spectrum.Spectrum;
+import com.greghaskins.spectrum.Variable;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class ClassPreloaderTest {
+
+    private static final String CLASS_NAME = "jarinstaller.TestMain";
+
+    {
+        Path dir = Paths.get("target/preloader").toAbsolutePath();
+        Path jarPath = dir.resolve("app-1.0.jar");
+
+        describe("ClassPreloader", () -> {
+
+            Variable<NestedJarClassLoader> loader = new Variable<>();
+
+            beforeAll(() -> {
+                Files.createDirectories(dir);
+                try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(jarPath))) {
+                    output.putNextEntry(new ZipEntry("jarinstaller/TestMain.class"));
+                    output.write(Files.readAllBytes(Paths.get("target/test-classes/jarinstaller/TestMain.class")));
+                    output.closeEntry();
+                }
+            });
+
+            afterAll(() -> {
+                tryToDelete(new File(dir.toString()));
+            });
+
+            beforeEach(() -> {
+                Files.deleteIfExists(ClassPreloader.getListPath(jarPath));
+                loader.set(new NestedJarClassLoader(jarPath, "dependencies/", null));
+            });
+
+            afterEach(() -> {
+                loader.get().close();
+                System.clearProperty("jarinstaller.preload.threads");
+            });
+
+            it("should keep the list next to the jar", () -> {
+                assertThat(ClassPreloader.getListPath(jarPath), is(dir.resolve("app-1.0.preload")));
+            });
+
+            it("should record the classes loaded when there is no list", () -> {
+                assertThat(new ClassPreloader(ClassPreloader.getListPath(jarPath), "abc").start(loader.get()), is(0));
+                loader.get().loadClass(CLASS_NAME);
+                assertThat(loader.get().getLoadedClasses(), is(Arrays.asList(CLASS_NAME)));
+            });
+
+            it("should read back the list written for the same digest only", () -> {
+                new ClassPreloader(ClassPreloader.getListPath(jarPath), "abc").write(Arrays.asList(CLASS_NAME));
+                assertThat(new ClassPreloader(ClassPreloader.getListPath(jarPath), "abc").read(), is(Arrays.asList(CLASS_NAME)));
+                assertThat(new ClassPreloader(ClassPreloader.getListPath(jarPath), "def").read(), is(nullValue()));
+            });
+
+            it("should preload the listed classes in the background", () -> {
+                new ClassPreloader(ClassPreloader.getListPath(jarPath), "abc").write(Arrays.asList(CLASS_NAME, "missing.Class"));
+                System.setProperty("jarinstaller.preload.threads", "2");
+
+                long preloaded = Trace.preloadedClasses.get();
+                assertThat(new ClassPreloader(ClassPreloader.getListPath(jarPath), "abc").start(loader.get()), is(2));
+                for (int i = 0; i < 500 && Trace.preloadedClasses.get() == preloaded; i++) {
+                    Thread.sleep(10);
+                }
+
+                assertThat(Trace.preloadedClasses.get() - preloaded, is(1L));
+                assertThat(loader.get().getLoadedClasses().isEmpty(), is(true));
+            });
+        });
+    }
+}
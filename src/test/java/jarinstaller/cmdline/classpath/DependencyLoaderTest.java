@@ -0,0 +1,75 @@
+package jarinstaller.cmdline.classpath;
+
+import com.greghaskins.spectrum.Spectrum;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import static jarinstaller.impl.ZipDirectoryTest.zip;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class DependencyLoaderTest {
+
+    private static List<String> listing(Path jarPath) throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[] { jarPath.toUri().toURL() }, null)) {
+            return new ArrayList<>(DependencyLoader.getDependencyListing(classLoader, "dependencies/"));
+        }
+    }
+
+    private static long openFiles() {
+        String[] files = new File("/proc/self/fd").list();
+        return files != null ? files.length : 0;
+    }
+
+    {
+        Path dir = Paths.get("target/dependency_loader").toAbsolutePath();
+
+        describe("DependencyLoader.getDependencyListing", () -> {
+
+            beforeAll(() -> {
+                Files.createDirectories(dir);
+                Files.write(dir.resolve("indexed.jar"), zip(false,
+                        DependencyLoader.DEPENDENCIES_INDEX, "dependencies/b.jar\ndependencies/a.jar\n",
+                        "dependencies/a.jar", "a",
+                        "dependencies/b.jar", "b",
+                        "dependencies/c.jar", "c"
+                ));
+                Files.write(dir.resolve("plain.jar"), zip(false,
+                        "dependencies/", "",
+                        "dependencies/a.jar", "a",
+                        "dependencies/b.jar", "b"
+                ));
+            });
+
+            afterAll(() -> {
+                tryToDelete(new File(dir.toString()));
+            });
+
+            it("should list the jars in the index, in its order", () -> {
+                assertThat(listing(dir.resolve("indexed.jar")), is(Arrays.asList("b.jar", "a.jar")));
+            });
+
+            it("should list the entries of a jar without an index", () -> {
+                assertThat(listing(dir.resolve("plain.jar")), hasItems("a.jar", "b.jar"));
+            });
+
+            it("should close the jar it lists", () -> {
+                long before = openFiles();
+                for (int i = 0; i < 20; i++) {
+                    listing(dir.resolve("plain.jar"));
+                }
+                assertThat(openFiles() - before < 20, is(true));
+            });
+        });
+    }
+}
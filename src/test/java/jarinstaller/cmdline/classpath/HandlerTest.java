@@ -0,0 +1,142 @@
+package jarinstaller.cmdline.classpath;
+
+import com.greghaskins.spectrum.Spectrum;
+import com.greghaskins.spectrum.Variable;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Scanner;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class HandlerTest {
+
+    private static final long ENTRY_TIME = 1500000000000L;
+
+    private static URLConnection open(String url) throws IOException {
+        return new URL(null, url, new Handler()).openConnection();
+    }
+
+    private static String read(String url) throws IOException {
+        try (InputStream input = open(url).getInputStream(); Scanner scanner = new Scanner(input, "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    private static Handler.CachedResource resource(int size) {
+        return new Handler.CachedResource(new byte[size], 0);
+    }
+
+    {
+        Path dir = Paths.get("target/handler").toAbsolutePath();
+        Path jarPath = dir.resolve("resources.jar");
+
+        describe("Handler", () -> {
+
+            Variable<URLClassLoader> classLoader = new Variable<>();
+
+            beforeAll(() -> {
+                Files.createDirectories(dir);
+                try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(jarPath))) {
+                    ZipEntry small = new ZipEntry("res/small.txt");
+                    small.setTime(ENTRY_TIME);
+                    output.putNextEntry(small);
+                    output.write("small".getBytes("UTF-8"));
+                    output.closeEntry();
+
+                    output.putNextEntry(new ZipEntry("res/big.bin"));
+                    output.write(new byte[Handler.MAX_CACHED_SIZE + 1]);
+                    output.closeEntry();
+                }
+            });
+
+            afterAll(() -> {
+                tryToDelete(new File(dir.toString()));
+            });
+
+            beforeEach(() -> {
+                classLoader.set(new URLClassLoader(new URL[] { jarPath.toUri().toURL() }, null));
+                Handler.setup(classLoader.get());
+            });
+
+            afterEach(() -> {
+                classLoader.get().close();
+            });
+
+            it("should read a resource with or without a leading slash and fragment", () -> {
+                assertThat(read("classpath:res/small.txt"), is("small"));
+                assertThat(read("classpath:/res/small.txt#runtime"), is("small"));
+            });
+
+            it("should give the size and time of the entry", () -> {
+                for (int i = 0; i < 2; i++) {
+                    URLConnection connection = open("classpath:res/small.txt");
+                    assertThat(connection.getContentLengthLong(), is(5L));
+                    assertThat(connection.getContentLength(), is(5));
+                    assertThat(connection.getLastModified(), is(ENTRY_TIME / 1000 * 1000));
+                }
+                assertThat(open("classpath:res/big.bin").getContentLengthLong(), is((long) Handler.MAX_CACHED_SIZE + 1));
+            });
+
+            it("should serve a reread small resource from the cache", () -> {
+                long hits = Handler.getCacheHits();
+                long misses = Handler.getCacheMisses();
+                read("classpath:res/small.txt");
+                read("classpath:res/small.txt");
+                assertThat(Handler.getCacheMisses() - misses, is(1L));
+                assertThat(Handler.getCacheHits() - hits, is(1L));
+            });
+
+            it("should not cache a large resource", () -> {
+                long misses = Handler.getCacheMisses();
+                open("classpath:res/big.bin").getInputStream().close();
+                open("classpath:res/big.bin").getInputStream().close();
+                assertThat(Handler.getCacheMisses() - misses, is(2L));
+            });
+
+            it("should fail for a missing resource", () -> {
+                try {
+                    open("classpath:res/missing.txt").getInputStream();
+                    throw new AssertionError("Expected an IOException");
+                } catch (IOException ex) {
+                    assertThat(ex.getMessage(), containsString("res/missing.txt"));
+                }
+            });
+        });
+
+        describe("Handler.ResourceCache", () -> {
+
+            it("should drop the least recently used resources past its size", () -> {
+                Handler.ResourceCache cache = new Handler.ResourceCache(10);
+                cache.put("a", resource(4));
+                cache.put("b", resource(4));
+                cache.get("a");
+                cache.put("c", resource(4));
+
+                assertThat(cache.get("a"), is(notNullValue()));
+                assertThat(cache.get("b"), is(nullValue()));
+                assertThat(cache.get("c"), is(notNullValue()));
+                assertThat(cache.size(), is(8L));
+            });
+
+            it("should not keep a resource larger than all of it", () -> {
+                Handler.ResourceCache cache = new Handler.ResourceCache(10);
+                cache.put("a", resource(11));
+                assertThat(cache.get("a"), is(nullValue()));
+                assertThat(cache.size(), is(0L));
+            });
+        });
+    }
+}
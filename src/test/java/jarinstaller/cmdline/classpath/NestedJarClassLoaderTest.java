@@ -0,0 +1,118 @@
+package jarinstaller.cmdline.classpath;
+
+import com.greghaskins.spectrum.Spectrum;
+import com.greghaskins.spectrum.Variable;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import jarinstaller.impl.DependencyCache;
+import static jarinstaller.impl.ZipDirectoryTest.entry;
+import static jarinstaller.impl.ZipDirectoryTest.zip;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class NestedJarClassLoaderTest {
+
+    private static String read(URL url) throws Exception {
+        try (InputStream input = url.openStream(); Scanner scanner = new Scanner(input, "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    {
+        String ORIGINAL_HOME = System.getProperty("user.home");
+        Path home = Paths.get("target/nested_home").toAbsolutePath();
+        Path jarPath = home.resolve("app.jar");
+
+        describe("NestedJarClassLoader", () -> {
+
+            Variable<NestedJarClassLoader> loader = new Variable<>();
+
+            beforeAll(() -> {
+                Files.createDirectories(home);
+                System.setProperty("user.home", home.toString());
+
+                try (ZipOutputStream outer = new ZipOutputStream(Files.newOutputStream(jarPath))) {
+                    String[][] dependencies = {
+                        { "dependencies/a.jar", "a/config.txt", "a" },
+                        { "dependencies/b.jar", "b/config.txt", "b", "shared/x.txt", "from b" },
+                        { "dependencies/c.jar", "shared/x.txt", "from c" },
+                    };
+                    for (String[] dependency : dependencies) {
+                        String[] namesAndContents = new String[dependency.length - 1];
+                        System.arraycopy(dependency, 1, namesAndContents, 0, namesAndContents.length);
+                        byte[] content = zip(dependency[0].contains("b"), namesAndContents);
+                        outer.putNextEntry(entry(dependency[0], content, true));
+                        outer.write(content);
+                        outer.closeEntry();
+                    }
+                }
+            });
+
+            afterAll(() -> {
+                tryToDelete(new File(home.toString()));
+                System.setProperty("user.home", ORIGINAL_HOME);
+            });
+
+            afterEach(() -> {
+                loader.get().close();
+            });
+
+            context("given the dependency cache", () -> {
+
+                beforeEach(() -> {
+                    Path cachePath = DependencyCache.extract(jarPath, "test");
+                    loader.set(new NestedJarClassLoader(jarPath, cachePath, null));
+                });
+
+                it("should have written a package index", () -> {
+                    assertThat(NestedJarClassLoader.hasIndex(DependencyCache.getCachePath("test")), is(true));
+                });
+
+                it("should only open the jar the index points to", () -> {
+                    long opened = Trace.nestedJarsOpened.get();
+                    URL url = loader.get().getResource("b/config.txt");
+                    assertThat(read(url), is("b"));
+                    assertThat(url.toString(), startsWith("jar:file:"));
+                    assertThat(Trace.nestedJarsOpened.get() - opened, is(1L));
+                });
+
+                it("should not open any jar for a package none of them has", () -> {
+                    long opened = Trace.nestedJarsOpened.get();
+                    assertThat(loader.get().getResource("missing/config.txt"), is(nullValue()));
+                    assertThat(Trace.nestedJarsOpened.get() - opened, is(0L));
+                });
+
+                it("should find a resource in every jar that has it, in order", () -> {
+                    List<URL> urls = Collections.list(loader.get().getResources("shared/x.txt"));
+                    assertThat(urls.size(), is(2));
+                    assertThat(read(urls.get(0)), is("from b"));
+                    assertThat(read(urls.get(1)), is("from c"));
+                });
+            });
+
+            context("given only the jar", () -> {
+
+                beforeEach(() -> {
+                    loader.set(new NestedJarClassLoader(jarPath, "dependencies/", null));
+                });
+
+                it("should read resources from the nested jars", () -> {
+                    assertThat(read(loader.get().getResource("a/config.txt")), is("a"));
+                    assertThat(read(loader.get().getResource("b/config.txt")), is("b"));
+                });
+            });
+        });
+    }
+}
@@ -0,0 +1,163 @@
+package jarinstaller.impl;
+
+import com.greghaskins.spectrum.Spectrum;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class JarStoreTest {
+
+    /**
+     * A jar with a manifest and one stored entry with content.
+     */
+    private static byte[] jar(String content) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\r\nMain-Class: app.Main\r\n\r\n".getBytes("UTF-8"));
+            zip.closeEntry();
+
+            byte[] data = content.getBytes("UTF-8");
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ZipEntry entry = new ZipEntry("app/data.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(data);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    {
+        Path home = Paths.get("target/jar_store_home").toAbsolutePath();
+        String originalHome = System.getProperty("user.home");
+
+        describe("JarStore.stage", () -> {
+
+            beforeEach(() -> {
+                tryToDelete(new File(home.toString()));
+                Files.createDirectories(home);
+                System.setProperty("user.home", home.toString());
+            });
+
+            afterEach(() -> {
+                System.setProperty("user.home", originalHome);
+            });
+
+            it("should hash, read the manifest and store the jar in one pass", () -> {
+                byte[] jar = jar("some data");
+                Path jarPath = home.resolve("app.jar");
+                Files.write(jarPath, jar);
+
+                Path targetPath = home.resolve("installed.jar");
+                try (JarStore.Staged staged = JarStore.stage(new ByteArrayInputStream(jar))) {
+                    assertThat(staged.digest, is(JarStore.digest(jarPath)));
+                    assertThat(staged.manifest.getMainAttributes().getValue("Main-Class"), is("app.Main"));
+                    assertThat(staged.link(targetPath), is(JarStore.Result.COPIED));
+                }
+
+                assertThat(Files.readAllBytes(targetPath), is(jar));
+                assertThat(JarStore.isLinkedTo(targetPath, JarStore.digest(jarPath)), is(true));
+                assertThat(JarStore.getStoreDir().list(), is(new String[] {JarStore.digest(jarPath) + ".jar"}));
+            });
+
+            it("should link content that is already in the store", () -> {
+                byte[] jar = jar("some data");
+                try (JarStore.Staged staged = JarStore.stage(new ByteArrayInputStream(jar))) {
+                    staged.link(home.resolve("first.jar"));
+                }
+                try (JarStore.Staged staged = JarStore.stage(new ByteArrayInputStream(jar))) {
+                    assertThat(staged.link(home.resolve("second.jar")), is(JarStore.Result.LINKED));
+                    assertThat(staged.link(home.resolve("second.jar")), is(JarStore.Result.UNCHANGED));
+                }
+                assertThat(JarStore.getStoreDir().list().length, is(1));
+            });
+
+            it("should reject an entry that does not match its CRC", () -> {
+                byte[] jar = jar("some data");
+                int data = indexOf(jar, "some data".getBytes("UTF-8"));
+                jar[data] = 'S';
+
+                try {
+                    JarStore.stage(new ByteArrayInputStream(jar)).close();
+                    throw new AssertionError("A corrupt jar was staged");
+                } catch (ZipException ex) {
+                    assertThat(ex.getMessage(), containsString("CRC"));
+                }
+                assertThat(JarStore.getStoreDir().list().length, is(0));
+            });
+
+            it("should reject what is not a jar", () -> {
+                try {
+                    JarStore.stage(new ByteArrayInputStream("not a jar".getBytes("UTF-8"))).close();
+                    throw new AssertionError("Text was staged");
+                } catch (ZipException ex) {
+                    assertThat(ex.getMessage(), containsString("no entries"));
+                }
+                assertThat(JarStore.getStoreDir().list().length, is(0));
+            });
+
+            it("should check a jar in place and tell its digest", () -> {
+                byte[] jar = jar("some data");
+                Path jarPath = home.resolve("app.jar");
+                Files.write(jarPath, jar);
+                assertThat(JarStore.check(jarPath), is(JarStore.digest(jarPath)));
+
+                jar[indexOf(jar, "some data".getBytes("UTF-8"))] = 'S';
+                Files.write(jarPath, jar);
+                try {
+                    JarStore.check(jarPath);
+                    throw new AssertionError("A corrupt jar passed the check");
+                } catch (ZipException ex) {
+                    assertThat(ex.getMessage(), containsString("in app/data.txt"));
+                }
+            });
+        });
+
+        describe("JarStore.isNotSupported", () -> {
+
+            it("should copy instead only when the file system can not link", () -> {
+                assertThat(JarStore.isNotSupported(new FileSystemException("a.jar", "b.jar", "Invalid cross-device link")), is(true));
+                assertThat(JarStore.isNotSupported(new FileSystemException("a.jar", "b.jar", "Operation not permitted")), is(true));
+                assertThat(JarStore.isNotSupported(new FileSystemException("a.jar", "b.jar", "Too many links")), is(true));
+
+                assertThat(JarStore.isNotSupported(new FileAlreadyExistsException("a.jar")), is(false));
+                assertThat(JarStore.isNotSupported(new AccessDeniedException("a.jar")), is(false));
+                assertThat(JarStore.isNotSupported(new FileSystemException("a.jar", "b.jar", "Read-only file system")), is(false));
+                assertThat(JarStore.isNotSupported(new FileSystemException("a.jar", "b.jar", "No space left on device")), is(false));
+            });
+        });
+    }
+}
@@ -0,0 +1,176 @@
+package jarinstaller.impl;
+
+import com.greghaskins.spectrum.Spectrum;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class JournalTest {
+
+    private static final PrintStream QUIET = new PrintStream(new ByteArrayOutputStream());
+
+    /**
+     * Changes the files of tool in home and dies before committing, run in its own JVM.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("user.home", args[0]);
+        Journal journal = Journal.begin("tool", "install", QUIET);
+        change(journal, Paths.get(args[0]));
+        Runtime.getRuntime().halt(3);
+    }
+
+    private static void change(Journal journal, Path home) throws Exception {
+        journal.save(home.resolve("script"));
+        journal.save(home.resolve("added"));
+        replace(home.resolve("script"), "new");
+        replace(home.resolve("added"), "added");
+        Registry.put(new Registry.Entry("tool", "tool-2.0.jar", "2.0", "def", 2, "later"));
+    }
+
+    /**
+     * Replaces the file by a rename, the way the files of a tool are changed.
+     */
+    private static void replace(Path path, String content) throws Exception {
+        Path tempPath = JarStore.tempPathFor(path);
+        Files.write(tempPath, content.getBytes());
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    {
+        Path home = Paths.get("target/journal_home").toAbsolutePath();
+        String originalHome = System.getProperty("user.home");
+
+        describe("Journal", () -> {
+
+            beforeEach(() -> {
+                tryToDelete(new File(home.toString()));
+                Files.createDirectories(home);
+                System.setProperty("user.home", home.toString());
+                Files.write(home.resolve("script"), "old".getBytes());
+                Registry.put(new Registry.Entry("tool", "tool-1.0.jar", "1.0", "abc", 1, "earlier"));
+            });
+
+            afterEach(() -> {
+                System.setProperty("user.home", originalHome);
+            });
+
+            it("should keep the changes and drop the saved files on commit", () -> {
+                try (Journal journal = Journal.begin("tool", "install", QUIET)) {
+                    change(journal, home);
+                    journal.commit();
+                }
+
+                assertThat(new String(Files.readAllBytes(home.resolve("script"))), is("new"));
+                assertThat(Registry.get("tool").get().version, is("2.0"));
+                assertThat(Files.exists(home.resolve(".jars/journal/tool.journal")), is(false));
+                assertThat(home.resolve(".jars/journal/tool").toFile().list().length, is(0));
+            });
+
+            it("should roll back when closed without a commit", () -> {
+                try (Journal journal = Journal.begin("tool", "install", QUIET)) {
+                    change(journal, home);
+                }
+
+                assertThat(new String(Files.readAllBytes(home.resolve("script"))), is("old"));
+                assertThat(Files.exists(home.resolve("added")), is(false));
+                assertThat(Registry.get("tool").get().version, is("1.0"));
+            });
+
+            it("should roll back the operation of a process that died on the next run", () -> {
+                Process process = new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        JournalTest.class.getName(), home.toString()).inheritIO().start();
+                assertThat(process.waitFor(), is(3));
+                assertThat(new String(Files.readAllBytes(home.resolve("script"))), is("new"));
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                Journal.recover(new PrintStream(output, true));
+
+                assertThat(output.toString(), containsString("Rolled back the interrupted install of tool"));
+                assertThat(new String(Files.readAllBytes(home.resolve("script"))), is("old"));
+                assertThat(Files.exists(home.resolve("added")), is(false));
+                assertThat(Registry.get("tool").get().version, is("1.0"));
+                assertThat(Files.exists(home.resolve(".jars/journal/tool.journal")), is(false));
+            });
+
+            it("should leave out a record cut off by the crash", () -> {
+                Process process = new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        JournalTest.class.getName(), home.toString()).inheritIO().start();
+                assertThat(process.waitFor(), is(3));
+                Files.write(home.resolve(".jars/journal/tool.journal"), "file\tplain\t/some/pa".getBytes(), StandardOpenOption.APPEND);
+
+                Journal.recover(QUIET);
+
+                assertThat(new String(Files.readAllBytes(home.resolve("script"))), is("old"));
+                assertThat(Registry.get("tool").get().version, is("1.0"));
+                assertThat(Files.exists(home.resolve(".jars/journal/tool.journal")), is(false));
+            });
+
+            it("should not wait for an operation that is still running on recover", () -> {
+                ExecutorService executor = Executors.newSingleThreadExecutor();
+                try (Journal journal = Journal.begin("tool", "install", QUIET)) {
+                    executor.submit(() -> {
+                        Journal.recover(QUIET);
+                        return null;
+                    }).get(10, TimeUnit.SECONDS);
+
+                    assertThat(Files.exists(home.resolve(".jars/journal/tool.journal")), is(true));
+                    journal.commit();
+                } finally {
+                    executor.shutdownNow();
+                }
+            });
+
+            it("should let other tools through while one is locked", () -> {
+                ExecutorService executor = Executors.newSingleThreadExecutor();
+                try (Journal journal = Journal.begin("tool", "install", QUIET)) {
+                    Future<?> other = executor.submit(() -> {
+                        try (Journal otherJournal = Journal.begin("other", "install", QUIET)) {
+                            otherJournal.commit();
+                        }
+                        return null;
+                    });
+                    other.get(10, TimeUnit.SECONDS);
+
+                    Future<?> same = executor.submit(() -> {
+                        try (Journal sameJournal = Journal.begin("tool", "install", QUIET)) {
+                            sameJournal.commit();
+                        }
+                        return null;
+                    });
+                    try {
+                        same.get(200, TimeUnit.MILLISECONDS);
+                        throw new AssertionError("The same tool was not locked");
+                    } catch (TimeoutException ex) {
+                        // Waiting for the lock
+                    }
+
+                    journal.commit();
+                    journal.close();
+                    same.get(10, TimeUnit.SECONDS);
+                } finally {
+                    executor.shutdownNow();
+                }
+            });
+        });
+    }
+}
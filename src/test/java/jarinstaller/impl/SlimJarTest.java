@@ -0,0 +1,104 @@
+package jarinstaller.impl;
+
+import com.greghaskins.spectrum.Spectrum;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import jarinstaller.cmdline.classpath.DependencyLoader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Scanner;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class SlimJarTest {
+
+    private static byte[] classBytes(String directory, String className) throws IOException {
+        return Files.readAllBytes(Paths.get(directory, className.replace('.', '/') + ".class"));
+    }
+
+    /**
+     * A jar of the given names and contents, a byte[] content is used as is and a
+     * String one as UTF-8.
+     */
+    private static byte[] jar(Object... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry((String) namesAndContents[i]));
+                Object content = namesAndContents[i + 1];
+                zip.write(content instanceof byte[] ? (byte[]) content : ((String) content).getBytes("UTF-8"));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    {
+        Path dir = Paths.get("target/slim_jar").toAbsolutePath();
+        Path jarPath = dir.resolve("app-1.0.jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "jarinstaller.TestMain");
+
+        describe("SlimJar", () -> {
+
+            beforeAll(() -> {
+                Files.createDirectories(dir);
+                Files.write(jarPath, jar(
+                        "jarinstaller/TestMain.class", classBytes("target/test-classes", "jarinstaller.TestMain"),
+                        DependencyLoader.DEPENDENCIES_INDEX, "dependencies/api.jar\ndependencies/unused.jar\n",
+                        "dependencies/api.jar", jar("jarinstaller/Api.class", classBytes("target/classes", "jarinstaller.Api")),
+                        "dependencies/unused.jar", jar("jarinstaller/cmdline/RunRecorder.class", classBytes("target/classes", "jarinstaller.cmdline.RunRecorder")),
+                        "dependencies/services.jar", jar(
+                                "META-INF/services/java.lang.Runnable", "x.Provider",
+                                "jarinstaller/impl/Profiles.class", classBytes("target/classes", "jarinstaller.impl.Profiles")),
+                        "dependencies/resources.jar", jar("config.txt", "config")
+                ));
+            });
+
+            afterAll(() -> {
+                tryToDelete(new File(dir.toString()));
+            });
+
+            it("should find the class names in the constant pool, also those in strings", () -> {
+                assertThat(SlimJar.references(classBytes("target/classes", "jarinstaller.cmdline.InitClass")),
+                        hasItems("jarinstaller/cmdline/classpath/DependencyLoader", "jarinstaller/cmdline/Application"));
+            });
+
+            it("should leave out the dependency jars no class from the main class reaches", () -> {
+                assertThat(SlimJar.unusedDependencies(jarPath, manifest, Collections.emptyList()), is(Arrays.asList("dependencies/unused.jar")));
+            });
+
+            it("should keep the dependency jars of recorded classes", () -> {
+                assertThat(SlimJar.unusedDependencies(jarPath, manifest, Arrays.asList("jarinstaller.cmdline.RunRecorder")).isEmpty(), is(true));
+            });
+
+            it("should write the jar without the left out entries", () -> {
+                Path slimPath = dir.resolve("slim.jar");
+                SlimJar.write(jarPath, Arrays.asList("dependencies/unused.jar"), slimPath);
+
+                try (ZipFile zip = new ZipFile(slimPath.toFile())) {
+                    assertThat(zip.getEntry("dependencies/unused.jar"), is(nullValue()));
+                    assertThat(zip.getEntry("dependencies/api.jar"), is(notNullValue()));
+                    assertThat(zip.getEntry("jarinstaller/TestMain.class").getSize(), is((long) classBytes("target/test-classes", "jarinstaller.TestMain").length));
+                    try (Scanner scanner = new Scanner(zip.getInputStream(zip.getEntry(DependencyLoader.DEPENDENCIES_INDEX)), "UTF-8")) {
+                        assertThat(scanner.useDelimiter("\\A").next(), is("dependencies/api.jar\n"));
+                    }
+                }
+            });
+        });
+    }
+}
@@ -0,0 +1,81 @@
+package jarinstaller.impl;
+
+import com.greghaskins.spectrum.Spectrum;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import static jarinstaller.ApiTest.tryToDelete;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class VersionsTest {
+
+    /**
+     * Adds a version of tool installed at the given time, with its jar.
+     */
+    private static void addVersion(String version, String installed) throws Exception {
+        Path versionDir = Versions.getVersionDir("tool", version);
+        Files.createDirectories(versionDir);
+        Files.write(versionDir.resolve("tool-" + version + ".jar"), version.getBytes());
+        Versions.writeEntry(versionDir, new Registry.Entry("tool", "tool-" + version + ".jar", version, "abc", 3, installed));
+    }
+
+    {
+        Path home = Paths.get("target/versions_home").toAbsolutePath();
+        String originalHome = System.getProperty("user.home");
+
+        describe("Versions", () -> {
+
+            beforeEach(() -> {
+                tryToDelete(new File(home.toString()));
+                Files.createDirectories(home);
+                System.setProperty("user.home", home.toString());
+                addVersion("1.1", "2024-02-01T00:00:00Z");
+                addVersion("1.0", "2024-01-01T00:00:00Z");
+                addVersion("1.2", "2024-03-01T00:00:00Z");
+            });
+
+            afterEach(() -> {
+                System.setProperty("user.home", originalHome);
+            });
+
+            it("should list the versions in the order they were installed", () -> {
+                assertThat(Versions.list("tool"), is(Arrays.asList("1.0", "1.1", "1.2")));
+                assertThat(Versions.list("other").isEmpty(), is(true));
+            });
+
+            it("should switch current and the links through it", () -> {
+                Path jarLink = home.resolve(".jars/jars/tool.jar");
+                Versions.switchTo("tool", "1.2");
+                Versions.link(jarLink, Versions.getCurrentPath("tool").resolve("tool-1.2.jar"));
+                assertThat(new String(Files.readAllBytes(jarLink)), is("1.2"));
+
+                Files.move(Versions.getVersionDir("tool", "1.0").resolve("tool-1.0.jar"), Versions.getVersionDir("tool", "1.0").resolve("tool-1.2.jar"));
+                Versions.switchTo("tool", "1.0");
+
+                assertThat(Versions.current("tool").get(), is("1.0"));
+                assertThat(Files.isSymbolicLink(jarLink), is(true));
+                assertThat(new String(Files.readAllBytes(jarLink)), is("1.0"));
+            });
+
+            it("should prune the oldest versions but not the one in use", () -> {
+                Versions.switchTo("tool", "1.0");
+
+                assertThat(Versions.prune("tool", 2).get(0).version, is("1.1"));
+                assertThat(Versions.list("tool"), is(Arrays.asList("1.0", "1.2")));
+                assertThat(Files.exists(Versions.getVersionDir("tool", "1.1")), is(false));
+                assertThat(Versions.prune("tool", 2).isEmpty(), is(true));
+            });
+
+            it("should key versions by a name that is safe as a directory", () -> {
+                assertThat(Versions.versionKey("1.0/beta 2", ""), is("1.0_beta_2"));
+                assertThat(Versions.versionKey("", "0123456789abcdef"), is("0123456789ab"));
+            });
+        });
+    }
+}
@@ -0,0 +1,175 @@
+package jarinstaller.impl;
+
+import com.greghaskins.spectrum.Spectrum;
+import com.greghaskins.spectrum.Variable;
+import static com.greghaskins.spectrum.dsl.specification.Specification.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.runner.RunWith;
+
+@RunWith(Spectrum.class)
+public class ZipDirectoryTest {
+
+    public static byte[] zip(boolean stored, String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                byte[] content = namesAndContents[i + 1].getBytes("UTF-8");
+                zip.putNextEntry(entry(namesAndContents[i], content, stored));
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ZipEntry entry(String name, byte[] content, boolean stored) {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        return entry;
+    }
+
+    {
+        describe("ZipDirectory", () -> {
+
+            Variable<ZipDirectory> directory = new Variable<>();
+
+            beforeEach(() -> {
+                directory.set(ZipDirectory.read(ByteBuffer.wrap(zip(false,
+                        "META-INF/MANIFEST.MF", "Main-Class: a.Main\n",
+                        "dependencies/a.jar", "not really a jar",
+                        "a/Main.class", "class bytes"
+                ))));
+            });
+
+            it("should find entries by name", () -> {
+                assertThat(directory.get().get("a/Main.class"), is(notNullValue()));
+                assertThat(directory.get().get("b/Main.class"), is(nullValue()));
+            });
+
+            it("should inflate compressed entries", () -> {
+                ZipDirectory.Entry entry = directory.get().get("META-INF/MANIFEST.MF");
+                assertThat(entry.method, is(ZipDirectory.DEFLATED));
+                assertThat(new String(directory.get().read(entry), "UTF-8"), is(equalTo("Main-Class: a.Main\n")));
+            });
+
+            context("given a prefix", () -> {
+
+                beforeEach(() -> {
+                    directory.set(ZipDirectory.read(ByteBuffer.wrap(zip(false,
+                            "dependencies/a.jar", "a",
+                            "a/Main.class", "class bytes"
+                    )), "dependencies/"));
+                });
+
+                it("should only read entries starting with the prefix", () -> {
+                    assertThat(directory.get().entries().size(), is(1));
+                    assertThat(directory.get().get("dependencies/a.jar"), is(notNullValue()));
+                });
+            });
+
+            context("given a zip stored inside of another zip", () -> {
+
+                beforeEach(() -> {
+                    byte[] nested = zip(false, "b/Resource.txt", "nested content");
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+                        zip.putNextEntry(entry("dependencies/b.jar", nested, true));
+                        zip.write(nested);
+                        zip.closeEntry();
+                    }
+
+                    ZipDirectory outer = ZipDirectory.read(ByteBuffer.wrap(bytes.toByteArray()));
+                    directory.set(ZipDirectory.read(outer.data(outer.get("dependencies/b.jar"))));
+                });
+
+                it("should read the nested zip in place", () -> {
+                    ZipDirectory.Entry entry = directory.get().get("b/Resource.txt");
+                    assertThat(new String(directory.get().read(entry), "UTF-8"), is(equalTo("nested content")));
+                });
+            });
+
+            context("given a zip with a script in front of it", () -> {
+
+                beforeEach(() -> {
+                    byte[] zip = zip(true, "a.txt", "content");
+                    byte[] script = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8");
+                    ByteBuffer buffer = ByteBuffer.allocate(script.length + zip.length);
+                    buffer.put(script).put(zip).flip();
+                    directory.set(ZipDirectory.read(buffer));
+                });
+
+                it("should still find the entries", () -> {
+                    assertThat(new String(directory.get().read(directory.get().get("a.txt")), "UTF-8"), is(equalTo("content")));
+                });
+            });
+
+            context("given a jar with the manifest as the last entry", () -> {
+
+                Variable<Path> jarPath = new Variable<>();
+
+                beforeEach(() -> {
+                    jarPath.set(Files.createTempFile("manifest-last", ".jar"));
+                    Files.write(jarPath.get(), zip(false,
+                            "a/Main.class", "class bytes",
+                            "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nMain-Class: a.Main\n\n"
+                    ));
+                });
+
+                afterEach(() -> {
+                    Files.deleteIfExists(jarPath.get());
+                });
+
+                it("should still find the Main-Class", () -> {
+                    assertThat(Utils.readManifest(jarPath.get()).getMainAttributes().getValue("Main-Class"), is(equalTo("a.Main")));
+                    assertThat(Utils.hasMainClassInManifest(jarPath.get()), is(true));
+                });
+            });
+
+            context("given a jar larger than 2 GB", () -> {
+
+                Variable<Path> jarPath = new Variable<>();
+
+                beforeEach(() -> {
+                    // A launch script like prefix of 3 GB, left as a hole in the file
+                    jarPath.set(Files.createTempFile("large", ".jar"));
+                    try (FileChannel channel = FileChannel.open(jarPath.get(), StandardOpenOption.WRITE)) {
+                        channel.write(ByteBuffer.wrap(zip(false,
+                                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nMain-Class: a.Main\n\n",
+                                "a/Main.class", "class bytes"
+                        )), 3L * 1024 * 1024 * 1024);
+                    }
+                });
+
+                afterEach(() -> {
+                    Files.deleteIfExists(jarPath.get());
+                });
+
+                it("should still find the Main-Class", () -> {
+                    assertThat(Utils.readManifest(jarPath.get()).getMainAttributes().getValue("Main-Class"), is(equalTo("a.Main")));
+                    assertThat(Utils.hasMainClassInManifest(jarPath.get()), is(true));
+                });
+            });
+        });
+    }
+}